@@ -1,31 +1,34 @@
+import ftp.Config;
 import ftp.Server;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.Properties;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Main {
 
-    @SuppressWarnings("unchecked")
-    private static void loadProperties() throws IOException {
-        Properties prop = new Properties();
-        try (FileInputStream fis = new FileInputStream("main/src/ftp.properties")) {
-            prop.load(fis);
-        }
-
-        for (Enumeration e = prop.keys(); e.hasMoreElements(); ) {
-            String key = (String) e.nextElement();
-            System.setProperty(key, prop.getProperty(key));
-        }
-    }
-
+    /**
+     * Arguments are an optional properties file (main/src/ftp.properties by
+     * default) and key=value settings that override the file
+     */
     public static void main(String[] args) {
         try {
-            loadProperties();
-            int port = Integer.getInteger("ftp.port", 9999);
-            String home = System.getProperty("ftp.home");
-            Server server = new Server(port, home);
+            String file = "main/src/ftp.properties";
+            Map<String, String> overrides = new HashMap<>();
+            for (String arg : args) {
+                int i = arg.indexOf('=');
+                if (i > 0)
+                    overrides.put(arg.substring(0, i), arg.substring(i + 1));
+                else
+                    file = arg;
+            }
+            Config.load(file, overrides);
+
+            Config config = Config.get();
+            Server server = new Server(config.getInt("ftp.port", 9999), config.get("ftp.home", null));
+            // SIGTERM and SIGINT drain the sessions before the JVM exits, with the timeout in effect then
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> server.drain(Config.get().getLong("ftp.drain.timeout", 60000L)), "ftp-drain"));
             server.start();
         } catch (IOException e) {
             e.printStackTrace();
@@ -1,17 +1,38 @@
 package ftp;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SocketChannel;
 
 public class ActiveConnection extends DataConnection {
+    /** Gives up on a client that doesn't accept the data connection within this many ms */
+    private final int connectTimeout = Config.get().getInt("ftp.active.connect.timeout", 10000);
+    /** Local port active connections come from, 0 for any. RFC 959 has 20, which needs privileges */
+    private final int sourcePort = Config.get().getInt("ftp.active.source.port", 0);
 
-    ActiveConnection() {
+    private final InetAddress local;
+
+    ActiveConnection(InetSocketAddress address, InetAddress local) {
+        this.address = address;
+        this.local = local;
     }
 
+    /**
+     * Connects to the client with a timeout, from the address the client
+     * reached the control connection on. Runs on the transfer thread
+     */
     @Override
     protected void doNegotiate() throws IOException {
+        long start = System.currentTimeMillis();
         channel = SocketChannel.open();
         channel.configureBlocking(true);
-        channel.connect(this.address);
+        if (sourcePort > 0)
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (local != null || sourcePort > 0)
+            channel.bind(new InetSocketAddress(local, sourcePort));
+        channel.socket().connect(this.address, connectTimeout);
+        connectMillis = System.currentTimeMillis() - start;
     }
 }
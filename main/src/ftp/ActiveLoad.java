@@ -0,0 +1,274 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of the time to first byte of active mode downloads, against the
+ * server of the classpath started in this process. A client downloads a file
+ * of -size bytes -transfers times with PORT, listening on loopback, and as
+ * many times with PASV for reference:
+ *
+ * java -cp out ftp.ActiveLoad [-transfers 1000] [-size 4096] [-config main/src/ftp.properties]
+ *
+ * For each mode it prints the median and p95 time from sending RETR to the
+ * first byte of the file, and of the whole download from PORT or PASV to the
+ * 226. The server connects back as soon as it answers PORT, so by the time of
+ * the RETR the connection should be waiting to be accepted. It exits with 1
+ * when a download failed or the first byte of active mode came more than
+ * twice as late as that of passive mode, and 1 ms more
+ */
+class ActiveLoad {
+
+    private static final Pattern PASV_REPLY = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+
+    private final long size;
+    private final BufferedReader in;
+    private final Writer out;
+    /** Where the server connects to in active mode, one listener for all downloads */
+    private final ServerSocket listener;
+    private final byte[] buffer = new byte[65536];
+
+    private ActiveLoad(Socket control, long size) throws IOException {
+        this.size = size;
+        this.in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+        this.out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+        this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.listener.setSoTimeout(60000);
+    }
+
+    private void login() throws IOException {
+        expect(in, "220");
+        send(out, "USER bench");
+        expect(in, "331");
+        send(out, "PASS bench");
+        expect(in, "230");
+        send(out, "TYPE I");
+        expect(in, "200");
+    }
+
+    /**
+     * Downloads the file once
+     *
+     * @return ns from the RETR to the first byte, and from PORT or PASV to the 226
+     */
+    private long[] download(boolean active) throws IOException {
+        long began = System.nanoTime();
+        Socket data = null;
+        try {
+            if (active) {
+                int port = listener.getLocalPort();
+                send(out, "PORT 127,0,0,1," + port / 256 + "," + port % 256);
+                expect(in, "200");
+            } else {
+                send(out, "PASV");
+                Matcher m = PASV_REPLY.matcher(expect(in, "227"));
+                if (!m.find())
+                    throw new IOException("Bad PASV reply");
+                data = new Socket();
+                data.connect(new InetSocketAddress(m.group(1) + "." + m.group(2) + "." + m.group(3) + "." +
+                        m.group(4), Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6))), 10000);
+            }
+
+            long requested = System.nanoTime();
+            send(out, "RETR load.bin");
+            if (active)
+                data = listener.accept();
+            data.setSoTimeout(60000);
+            InputStream stream = data.getInputStream();
+            int n = stream.read(buffer);
+            long firstByte = System.nanoTime() - requested;
+            long received = 0L;
+            while (n >= 0) {
+                received += n;
+                n = stream.read(buffer);
+            }
+            expect(in, "150");
+            expect(in, "226");
+            if (received != size)
+                throw new IOException("Download ended after " + received + " of " + size + " bytes");
+            return new long[]{firstByte, System.nanoTime() - began};
+        } finally {
+            if (data != null)
+                data.close();
+        }
+    }
+
+    /**
+     * Runs the downloads of one mode, after a tenth as many to warm up
+     *
+     * @return the median time to the first byte in ns
+     */
+    private long run(boolean active, int transfers) throws IOException {
+        for (int i = 0; i < Math.max(1, transfers / 10); i++)
+            download(active);
+
+        long[] firstBytes = new long[transfers];
+        long[] totals = new long[transfers];
+        for (int i = 0; i < transfers; i++) {
+            long[] result = download(active);
+            firstBytes[i] = result[0];
+            totals[i] = result[1];
+        }
+        Arrays.sort(firstBytes);
+        Arrays.sort(totals);
+        System.out.printf("* %s: first byte median %.0f us, p95 %.0f us; download median %.0f us, p95 %.0f us%n",
+                active ? "Active (PORT)" : "Passive (PASV)", percentile(firstBytes, 0.5) / 1e3,
+                percentile(firstBytes, 0.95) / 1e3, percentile(totals, 0.5) / 1e3, percentile(totals, 0.95) / 1e3);
+        return percentile(firstBytes, 0.5);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    /**
+     * @return the reply, which starts with the code
+     */
+    private static String expect(BufferedReader in, String code) throws IOException {
+        String line = in.readLine();
+        // the 226 of a transfer is followed by an empty line
+        while (line != null && line.isEmpty())
+            line = in.readLine();
+        while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+            String first = line.substring(0, 3);
+            do {
+                line = in.readLine();
+            } while (line != null && !line.startsWith(first + " "));
+        }
+        if (line == null)
+            throw new IOException("Connection closed waiting for " + code);
+        if (!line.startsWith(code))
+            throw new IOException("Expected " + code + ", got " + line);
+        return line;
+    }
+
+    private static void send(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    public static void main(String[] args) {
+        int transfers = 1000;
+        long size = 4096L;
+        String config = "main/src/ftp.properties";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-transfers":
+                    transfers = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-size":
+                    size = Math.max(1, Long.parseLong(args[i + 1]));
+                    break;
+                case "-config":
+                    config = args[i + 1];
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.ActiveLoad [-transfers 1000] [-size 4096] " +
+                            "[-config main/src/ftp.properties]");
+                    return;
+            }
+        }
+
+        Path root = null;
+        int status = 0;
+        try {
+            root = Files.createTempDirectory("ftp-active-load");
+            Path home = Files.createDirectories(root.resolve("bench"));
+            byte[] block = new byte[65536];
+            Arrays.fill(block, (byte) 'x');
+            try (OutputStream file = Files.newOutputStream(home.resolve("load.bin"))) {
+                for (long written = 0; written < size; written += block.length)
+                    file.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Map<String, String> overrides = new HashMap<>();
+            overrides.put("ftp.port", Integer.toString(port));
+            overrides.put("ftp.home", root.toString());
+            overrides.put("ftp.storage", "local");
+            overrides.put("ftp.active.source.port", "0");
+            overrides.put("ftp.listen.inherited", "false");
+            overrides.put("ftp.tls.required", "false");
+            overrides.put("ftp.config.watch", "false");
+            overrides.put("ftp.trace.dir", "");
+            overrides.put("ftp.xferlog.dir", "");
+            overrides.put("ftp.events.subscribers", "");
+            overrides.put("ftp.user.bench", "bench");
+            // before any other class of the server reads its settings
+            Config.load(config, overrides);
+
+            Server server = new Server(port, root.toString());
+            Thread thread = new Thread(server::start, "ftp-active-server");
+            thread.setDaemon(true);
+            thread.start();
+            for (int i = 0; ; i++) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    break;
+                } catch (IOException e) {
+                    if (i == 50)
+                        throw e;
+                    Thread.sleep(100);
+                }
+            }
+
+            System.out.printf("* %d downloads of %d bytes each mode%n", transfers, size);
+            try (Socket control = new Socket("127.0.0.1", port)) {
+                control.setSoTimeout(60000);
+                ActiveLoad load = new ActiveLoad(control, size);
+                load.login();
+                long passive = load.run(false, transfers);
+                long active = load.run(true, transfers);
+                send(load.out, "QUIT");
+                expect(load.in, "221");
+                load.listener.close();
+                if (active > 2 * passive + 1000000) {
+                    System.out.println("* The first byte of active mode comes late");
+                    status = 1;
+                }
+            }
+            server.stop();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            try {
+                if (root != null)
+                    delete(root);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + root);
+            }
+        }
+        System.exit(status);
+    }
+}
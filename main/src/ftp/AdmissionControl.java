@@ -0,0 +1,252 @@
+package ftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides in the accept loop whether a new connection gets a session, before
+ * anything is allocated for it. Limits are
+ *
+ * <ul>
+ *   <li>ftp.sessions.max sessions in total. Clients over the limit wait in a queue
+ *       of ftp.sessions.queue places for at most ftp.sessions.queue.timeout ms, a
+ *       timer of the TimerWheel turns them away when it runs out</li>
+ *   <li>ftp.sessions.max.per.ip sessions, waiting ones included, per client address.
+ *       Clients over this limit are turned away at once</li>
+ * </ul>
+ *
+ * Rejected clients get a 421 reply and are disconnected. Counters are updated
+ * with compare and set only, so the accept thread never waits for a session
+ * that is ending
+ */
+class AdmissionControl {
+
+    private final String directory;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> perAddress = new ConcurrentHashMap<>();
+    private final BlockingQueue<Waiting> queue;
+    private final Set<ControlChannel> active = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining = false;
+
+    AdmissionControl(String directory) {
+        this.directory = directory;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, Config.get().getInt("ftp.sessions.queue", 100)));
+    }
+
+    /**
+     * Starts a session for the connection, queues it or turns it away. The
+     * session stays on the shard that accepted it
+     */
+    void admit(SocketChannel channel, Shard shard) {
+        if (draining) {
+            reject(channel, "421 Service shutting down, please reconnect.");
+            return;
+        }
+
+        InetAddress address;
+        try {
+            address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } catch (IOException e) {
+            FtpUtil.releaseChannelResource(channel);
+            return;
+        }
+
+        if (LoginThrottle.getInstance().isBanned(address)) {
+            reject(channel, "421 Too many failed logins from your address.");
+            return;
+        }
+        if (!acquire(address)) {
+            reject(channel, "421 Too many connections from your address.");
+            return;
+        }
+        if (acquireSession()) {
+            start(channel, address, shard);
+            return;
+        }
+
+        long queueTimeout = Config.get().getLong("ftp.sessions.queue.timeout", 30000L);
+        Waiting waiting = new Waiting(channel, address, shard, System.currentTimeMillis() + queueTimeout);
+        if (!queue.offer(waiting)) {
+            release(address);
+            reject(channel, "421 Too many users, try again later.");
+            return;
+        }
+        waiting.timer = TimerWheel.getInstance().schedule(queueTimeout, () -> expire(waiting));
+        // a session may have ended since acquireSession() failed
+        admitWaiting();
+    }
+
+    /**
+     * Turns away the waiting clients and closes every session as soon as it has
+     * no transfer running. Transfers still running after timeout ms are aborted
+     *
+     * @return once all sessions have ended, or shortly after the timeout
+     */
+    void drain(long timeout) {
+        draining = true;
+        Waiting waiting;
+        while ((waiting = queue.poll()) != null) {
+            waiting.cancel();
+            release(waiting.address);
+            reject(waiting.channel, "421 Service shutting down, please reconnect.");
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (sessions.get() > 0) {
+            long now = System.currentTimeMillis();
+            boolean force = now >= deadline;
+            for (ControlChannel session : active)
+                session.drain(force);
+            if (now >= deadline + 5000) {
+                System.out.println("* " + sessions.get() + " sessions didn't end");
+                return;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    String getStatistics() {
+        return sessions.get() + "/" + getMaxSessions() + " sessions, " + queue.size() + " waiting, " +
+                perAddress.size() + " addresses, " + rejected.get() + " rejected";
+    }
+
+    private void start(SocketChannel channel, InetAddress address, Shard shard) {
+        shard.sessionStarted();
+        try {
+            ControlChannel session = new ControlChannel(channel, directory, shard, s -> {
+                active.remove(s);
+                shard.sessionEnded();
+                sessionEnded(address);
+            });
+            active.add(session);
+            session.start();
+        } catch (IOException e) {
+            // the client left before the greeting
+            FtpUtil.releaseChannelResource(channel);
+            shard.sessionEnded();
+            sessionEnded(address);
+        }
+    }
+
+    private void sessionEnded(InetAddress address) {
+        release(address);
+        sessions.decrementAndGet();
+        admitWaiting();
+    }
+
+    /**
+     * Moves waiting clients into the sessions that are free
+     */
+    private void admitWaiting() {
+        while (!queue.isEmpty() && acquireSession()) {
+            Waiting waiting = queue.poll();
+            if (waiting == null) {
+                sessions.decrementAndGet();
+                return;
+            }
+            waiting.cancel();
+            if (waiting.deadline < System.currentTimeMillis() || !waiting.channel.isOpen()) {
+                sessions.decrementAndGet();
+                release(waiting.address);
+                reject(waiting.channel, "421 Timed out waiting for a free session.");
+                continue;
+            }
+            start(waiting.channel, waiting.address, waiting.shard);
+        }
+    }
+
+    /**
+     * Turns the client away if it is still waiting, on the timer thread
+     */
+    private void expire(Waiting waiting) {
+        if (queue.remove(waiting)) {
+            release(waiting.address);
+            reject(waiting.channel, "421 Timed out waiting for a free session.");
+        }
+    }
+
+    private static int getMaxSessions() {
+        return Config.get().getInt("ftp.sessions.max", 500);
+    }
+
+    private boolean acquireSession() {
+        int maxSessions = getMaxSessions();
+        while (true) {
+            int n = sessions.get();
+            if (n >= maxSessions)
+                return false;
+            if (sessions.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Counts a connection from the address. A counter that dropped to zero is set
+     * to -1 before it is removed from the map, so nobody counts on a removed one
+     */
+    private boolean acquire(InetAddress address) {
+        int maxPerAddress = Config.get().getInt("ftp.sessions.max.per.ip", 10);
+        while (true) {
+            AtomicInteger count = perAddress.computeIfAbsent(address, a -> new AtomicInteger());
+            int n = count.get();
+            if (n < 0)
+                continue; // being removed, look it up again
+            if (n >= maxPerAddress)
+                return false;
+            if (count.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    private void release(InetAddress address) {
+        AtomicInteger count = perAddress.get(address);
+        if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1))
+            perAddress.remove(address, count);
+    }
+
+    void reject(SocketChannel channel, String reply) {
+        rejected.incrementAndGet();
+        try {
+            System.out.println("* Rejected " + channel.getRemoteAddress() + ": " + reply + " (" + getStatistics() + ")");
+            FtpUtil.println(channel, reply);
+        } catch (IOException e) {
+            // client already gone
+        } finally {
+            FtpUtil.releaseChannelResource(channel);
+        }
+    }
+
+    private static class Waiting {
+        final SocketChannel channel;
+        final InetAddress address;
+        final Shard shard;
+        final long deadline;
+        /** Null until scheduled, the client may leave the queue before */
+        volatile TimerWheel.Timeout timer;
+
+        Waiting(SocketChannel channel, InetAddress address, Shard shard, long deadline) {
+            this.channel = channel;
+            this.address = address;
+            this.shard = shard;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            TimerWheel.Timeout timeout = timer;
+            if (timeout != null)
+                timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel that performs the TYPE A line ending conversion on everything written
+ * to it. Outgoing data has bare LF turned into CRLF, incoming data has CRLF turned
+ * into LF. State is carried between writes so a CRLF split across two buffers is
+ * handled. Closing it flushes pending output but leaves the underlying channel open
+ */
+class AsciiChannel implements WritableByteChannel {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final WritableByteChannel target;
+    private final boolean encode;
+    private ByteBuffer out;
+    private boolean open = true;
+
+    /** Last byte written when encoding, used to leave existing CRLF pairs alone */
+    private byte last = 0;
+    /** Whether the previous write ended with a CR when decoding */
+    private boolean pendingCR = false;
+
+    private AsciiChannel(WritableByteChannel target, boolean encode) {
+        this.target = target;
+        this.encode = encode;
+        this.out = BufferPool.DEFAULT.acquire();
+    }
+
+    /**
+     * @return a channel converting LF to CRLF, for sending files to the client
+     */
+    static AsciiChannel encoding(WritableByteChannel target) {
+        return new AsciiChannel(target, true);
+    }
+
+    /**
+     * @return a channel converting CRLF to LF, for storing files sent by the client
+     */
+    static AsciiChannel decoding(WritableByteChannel target) {
+        return new AsciiChannel(target, false);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open)
+            throw new IOException("ASCII channel is closed");
+
+        int len = src.remaining();
+        if (encode)
+            encode(src);
+        else
+            decode(src);
+        src.position(src.limit());
+        return len;
+    }
+
+    private void encode(ByteBuffer src) throws IOException {
+        int start = src.position();
+        int end = src.limit();
+        if (start == end)
+            return;
+
+        ByteBuffer run = src.duplicate();
+        int i = start;
+        while (i < end) {
+            int lf = indexOf(src, i, end, LF);
+            if (lf == -1) {
+                put(run, i, end);
+                break;
+            }
+
+            put(run, i, lf);
+            byte prev = lf > start ? src.get(lf - 1) : last;
+            if (prev != CR)
+                put(CR);
+            put(LF);
+            i = lf + 1;
+        }
+        last = src.get(end - 1);
+    }
+
+    private void decode(ByteBuffer src) throws IOException {
+        int i = src.position();
+        int end = src.limit();
+        if (i == end)
+            return;
+
+        if (pendingCR) {
+            pendingCR = false;
+            if (src.get(i) != LF)
+                put(CR);
+        }
+
+        ByteBuffer run = src.duplicate();
+        while (i < end) {
+            int cr = indexOf(src, i, end, CR);
+            if (cr == -1) {
+                put(run, i, end);
+                break;
+            }
+
+            put(run, i, cr);
+            if (cr + 1 == end) {
+                // decided by the first byte of the next write
+                pendingCR = true;
+                break;
+            }
+            if (src.get(cr + 1) != LF)
+                put(CR);
+            i = cr + 1;
+        }
+    }
+
+    /**
+     * Finds the first occurrence of a byte, comparing eight bytes at a time
+     * instead of branching on every byte
+     *
+     * @return the absolute index of the byte, or -1 if it doesn't occur in [from, to)
+     */
+    static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long v = buf.getLong(i) ^ pattern;
+            // high bit of each byte of t is set exactly where v has a zero byte
+            long t = ~(((v & LOW_BITS) + LOW_BITS) | v | LOW_BITS);
+            if (t != 0) {
+                int bits = bigEndian ? Long.numberOfLeadingZeros(t) : Long.numberOfTrailingZeros(t);
+                return i + (bits >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buf.get(i) == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private void put(ByteBuffer run, int from, int to) throws IOException {
+        run.limit(to).position(from);
+        while (run.hasRemaining()) {
+            if (!out.hasRemaining())
+                flush();
+            int n = Math.min(run.remaining(), out.remaining());
+            run.limit(run.position() + n);
+            out.put(run);
+            run.limit(to);
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (!out.hasRemaining())
+            flush();
+        out.put(b);
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            target.write(out);
+        out.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+
+        try {
+            if (pendingCR)
+                put(CR);
+            flush();
+        } finally {
+            BufferPool.DEFAULT.release(out);
+            out = null;
+        }
+    }
+}
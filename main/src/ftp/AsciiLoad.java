@@ -0,0 +1,254 @@
+package ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Benchmark of the TYPE A conversion of AsciiChannel against the per-byte loop
+ * it replaced. Text of -size bytes with lines of -lines bytes on average (one
+ * run for each length) is held in a direct buffer and fed in slices of a pool
+ * buffer, as a download is:
+ *
+ * java -cp out ftp.AsciiLoad [-size 33554432] [-lines 20,80,1000] [-rounds 5]
+ *
+ * For every length it prints the MB per second of the scan for LF alone, with
+ * AsciiChannel.indexOf and with a loop reading a byte at a time, and of the
+ * whole LF to CRLF conversion through AsciiChannel and through the per-byte
+ * loop. It exits with 1 when the two conversions don't give the same bytes or
+ * the eight bytes at a time scan isn't faster than the per-byte one
+ */
+class AsciiLoad {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final ByteBuffer text;
+    private final int rounds;
+
+    private AsciiLoad(ByteBuffer text, int rounds) {
+        this.text = text;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Counts the bytes written to it and drops them, or sums them up when checking
+     */
+    private static class Sink implements WritableByteChannel {
+        private final CRC32 crc;
+        private long total = 0L;
+
+        Sink(boolean check) {
+            this.crc = check ? new CRC32() : null;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int len = src.remaining();
+            if (crc != null)
+                crc.update(src);
+            src.position(src.limit());
+            total += len;
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The conversion as it was, a byte at a time through a buffer of the same size
+     */
+    private static class PerByte implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BufferPool.BUFFER_SIZE);
+        private byte last = 0;
+
+        PerByte(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int len = src.remaining();
+            for (int i = src.position(); i < src.limit(); i++) {
+                byte b = src.get(i);
+                if (b == LF && last != CR)
+                    put(CR);
+                put(b);
+                last = b;
+            }
+            src.position(src.limit());
+            return len;
+        }
+
+        private void put(byte b) throws IOException {
+            if (!out.hasRemaining())
+                flush();
+            out.put(b);
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining())
+                target.write(out);
+            out.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static int perByteIndexOf(ByteBuffer buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of LFs, found with either scan
+     */
+    private long scan(boolean swar) {
+        long lines = 0L;
+        int size = text.limit();
+        for (int start = 0; start < size; start += BufferPool.BUFFER_SIZE) {
+            int end = Math.min(size, start + BufferPool.BUFFER_SIZE);
+            int i = start;
+            while (true) {
+                int lf = swar ? AsciiChannel.indexOf(text, i, end, LF) : perByteIndexOf(text, i, end, LF);
+                if (lf == -1)
+                    break;
+                lines++;
+                i = lf + 1;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Converts the text once
+     */
+    private Sink convert(boolean swar, boolean check) throws IOException {
+        Sink sink = new Sink(check);
+        WritableByteChannel channel = swar ? AsciiChannel.encoding(sink) : new PerByte(sink);
+        ByteBuffer slice = text.duplicate();
+        int size = text.limit();
+        for (int start = 0; start < size; start += BufferPool.BUFFER_SIZE) {
+            slice.limit(Math.min(size, start + BufferPool.BUFFER_SIZE)).position(start);
+            channel.write(slice);
+        }
+        channel.close();
+        return sink;
+    }
+
+    private interface Round {
+        void run() throws IOException;
+    }
+
+    /**
+     * @return the best MB per second of the rounds, after one to warm up
+     */
+    private double best(Round round) throws IOException {
+        round.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long began = System.nanoTime();
+            round.run();
+            best = Math.min(best, System.nanoTime() - began);
+        }
+        return text.limit() / 1048576.0 / (best / 1e9);
+    }
+
+    /**
+     * Text of random letters with an LF after lines of the average length
+     */
+    private static ByteBuffer text(int size, int line) {
+        ByteBuffer text = ByteBuffer.allocateDirect(size);
+        Random random = new Random(line);
+        while (text.hasRemaining()) {
+            if (random.nextInt(line) == 0)
+                text.put(LF);
+            else
+                text.put((byte) ('a' + random.nextInt(26)));
+        }
+        text.flip();
+        return text;
+    }
+
+    public static void main(String[] args) {
+        int size = 32 * 1048576;
+        int[] lines = {20, 80, 1000};
+        int rounds = 5;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-size":
+                    size = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-lines":
+                    lines = Arrays.stream(args[i + 1].split(","))
+                            .mapToInt(s -> Math.max(1, Integer.parseInt(s.trim()))).toArray();
+                    break;
+                case "-rounds":
+                    rounds = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.AsciiLoad [-size 33554432] [-lines 20,80,1000] " +
+                            "[-rounds 5]");
+                    return;
+            }
+        }
+
+        int status = 0;
+        try {
+            System.out.printf("* %d KB of text, converted in slices of %d bytes%n", size / 1024,
+                    BufferPool.BUFFER_SIZE);
+            for (int line : lines) {
+                AsciiLoad load = new AsciiLoad(text(size, line), rounds);
+                if (load.scan(true) != load.scan(false)) {
+                    System.out.println("* The scans found different LFs");
+                    status = 1;
+                }
+                Sink swar = load.convert(true, true);
+                Sink perByte = load.convert(false, true);
+                if (swar.total != perByte.total || swar.crc.getValue() != perByte.crc.getValue()) {
+                    System.out.println("* The conversions gave different bytes for lines of " + line);
+                    status = 1;
+                }
+
+                double fastScan = load.best(() -> load.scan(true));
+                double slowScan = load.best(() -> load.scan(false));
+                double fastConvert = load.best(() -> load.convert(true, false));
+                double slowConvert = load.best(() -> load.convert(false, false));
+                System.out.printf("* Lines of %d: scan %.0f MB/s, per byte %.0f MB/s, %.2fx; " +
+                                "conversion %.0f MB/s, per byte %.0f MB/s, %.2fx%n", line, fastScan, slowScan,
+                        fastScan / slowScan, fastConvert, slowConvert, fastConvert / slowConvert);
+                if (fastScan < slowScan) {
+                    System.out.println("* The scan isn't faster than a byte at a time for lines of " + line);
+                    status = 1;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            status = 1;
+        }
+        System.exit(status);
+    }
+}
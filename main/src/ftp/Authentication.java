@@ -1,14 +1,161 @@
 package ftp;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Checks passwords against the UserDirectory. Passwords are stored as
+ *
+ * <pre>
+ *   pbkdf2-sha256$iterations$salt$hash
+ * </pre>
+ *
+ * with salt and hash in Base64, anything else is compared as plain text. A key
+ * derivation costs milliseconds on purpose, so successful logins are remembered
+ * in a bounded cache as a keyed SHA-256 of the password. A client logging in
+ * again with the same password skips the derivation, and a changed entry in the
+ * user file misses the cache. A name that isn't known is checked against a
+ * dummy hash, so the time a login takes doesn't tell which accounts exist.
+ *
+ * To hash a password for the user file:
+ * java -cp out ftp.Authentication password
+ */
 class Authentication {
 
-    Authentication() {
+    private static final String PBKDF2_PREFIX = "pbkdf2-sha256$";
+
+    private static final int CACHE_SIZE = Config.get().getInt("ftp.users.cache.size", 10000);
+
+    private static final Authentication instance = new Authentication(UserDirectory.getInstance());
+
+    private final UserDirectory users;
+    private final SecureRandom random = new SecureRandom();
+
+    /** Random per process, so cached digests are useless outside this server */
+    private final byte[] cacheKey = new byte[32];
+
+    /** Checked for unknown names, costs what a hashed account costs */
+    private final String dummyHash;
+
+    private final Map<String, Verified> verified =
+            new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private Authentication(UserDirectory users) {
+        this.users = users;
+        random.nextBytes(cacheKey);
+        byte[] dummy = new byte[16];
+        random.nextBytes(dummy);
+        this.dummyHash = hash(Base64.getEncoder().encodeToString(dummy));
+    }
+
+    static Authentication getInstance() {
+        return instance;
     }
 
-    boolean isValidUser(String user, String pass) {
-        String fileAuth = System.getProperty("ftp.user." + user);
-        return fileAuth != null && pass.equals(fileAuth);
+    /**
+     * @return the account if the password is right, otherwise null
+     */
+    UserDirectory.User authenticate(String name, String pass) {
+        UserDirectory.User user = users.find(name);
+        if (user == null) {
+            verify(dummyHash, pass);
+            return null;
+        }
 
+        byte[] digest = cacheDigest(pass);
+        Verified entry;
+        synchronized (verified) {
+            entry = verified.get(name);
+        }
+        if (entry != null && entry.user == user && MessageDigest.isEqual(entry.digest, digest))
+            return user;
+
+        if (!verify(user.getPassword(), pass))
+            return null;
+
+        synchronized (verified) {
+            verified.put(name, new Verified(user, digest));
+        }
+        return user;
     }
 
+    /**
+     * @return a new salted hash of the password to put in the user file
+     */
+    String hash(String pass) {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        int iterations = Config.get().getInt("ftp.users.pbkdf2.iterations", 100000);
+        return PBKDF2_PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" +
+                base64.encodeToString(pbkdf2(pass, salt, iterations, 32));
+    }
+
+    static boolean verify(String stored, String pass) {
+        if (!stored.startsWith(PBKDF2_PREFIX))
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), pass.getBytes(StandardCharsets.UTF_8));
+
+        String[] parts = stored.substring(PBKDF2_PREFIX.length()).split("\\$");
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] hash = Base64.getDecoder().decode(parts[2]);
+            return MessageDigest.isEqual(hash, pbkdf2(pass, salt, iterations, hash.length));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("* Malformed password hash");
+            return false;
+        }
+    }
+
+    private static byte[] pbkdf2(String pass, byte[] salt, int iterations, int length) {
+        PBEKeySpec spec = new PBEKeySpec(pass.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private byte[] cacheDigest(String pass) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(cacheKey);
+            return sha256.digest(pass.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Verified {
+        final UserDirectory.User user;
+        final byte[] digest;
+
+        Verified(UserDirectory.User user, byte[] digest) {
+            this.user = user;
+            this.digest = digest;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java ftp.Authentication password");
+            return;
+        }
+        System.out.println(getInstance().hash(args[0]));
+    }
 }
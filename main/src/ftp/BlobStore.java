@@ -0,0 +1,207 @@
+package ftp;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed file store behind DedupStorage. Every distinct content is
+ * kept once, as store/ab/abcdef... named by its SHA-256, and the files users see
+ * are hard links to it. The link count of a blob is its reference count: a blob
+ * only linked from the store itself is garbage and is removed when its last user
+ * file goes away, or on startup if the server stopped in between.
+ *
+ * The store has to be on the same file system as the user roots using it
+ */
+class BlobStore {
+
+    private static final Map<Path, BlobStore> stores = new HashMap<>();
+
+    private final Path dir;
+    private final Path tempDir;
+
+    /** Hash of each blob by file key (device and inode), to find the blob of a user file */
+    private final Map<Object, String> hashes = new HashMap<>();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesDeduplicated = new AtomicLong();
+    private final AtomicLong bytesLinked = new AtomicLong();
+
+    private BlobStore(Path dir) throws IOException {
+        this.dir = dir;
+        this.tempDir = dir.resolve("tmp");
+        Files.createDirectories(tempDir);
+        load();
+    }
+
+    static BlobStore forDirectory(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        synchronized (stores) {
+            BlobStore store = stores.get(key);
+            if (store == null) {
+                store = new BlobStore(key);
+                stores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * @return a new file for an upload in progress, on the same file system as the blobs
+     */
+    Path createTempFile() throws IOException {
+        return Files.createTempFile(tempDir, "upload", ".tmp");
+    }
+
+    /**
+     * Turns a finished upload into a blob, or drops it if the content is already
+     * stored, and links the blob to the user's path
+     */
+    synchronized void commit(Path temp, String hash, long size, Path target) throws IOException {
+        Path blob = blobPath(hash);
+        if (Files.exists(blob)) {
+            Files.delete(temp);
+            bytesDeduplicated.addAndGet(size);
+        } else {
+            Files.createDirectories(blob.getParent());
+            Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+            hashes.put(fileKey(blob), hash);
+            bytesWritten.addAndGet(size);
+        }
+        link(blob, target);
+    }
+
+    /**
+     * Links already stored content to a user path, for uploads announced by hash
+     *
+     * @return the size of the content, or -1 if no blob has that hash
+     */
+    synchronized long link(String hash, Path target) throws IOException {
+        Path blob = blobPath(hash);
+        long size;
+        try {
+            size = Files.size(blob);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+        link(blob, target);
+        bytesLinked.addAndGet(size);
+        return size;
+    }
+
+    /**
+     * @return the SHA-256 of a user file, or null if it isn't a link into this store
+     */
+    synchronized String hashOf(Path path) {
+        try {
+            return hashes.get(fileKey(path));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Called after a user file was deleted or replaced, removes the blob if that
+     * was its last reference
+     *
+     * @param key file key of the removed file, null if it didn't exist
+     */
+    synchronized void release(Object key) throws IOException {
+        String hash = key == null ? null : hashes.get(key);
+        if (hash == null)
+            return;
+
+        Path blob = blobPath(hash);
+        if (linkCount(blob) <= 1) {
+            Files.deleteIfExists(blob);
+            hashes.remove(key);
+        }
+    }
+
+    /**
+     * @return the file key of a regular file, or null if there is none
+     */
+    static Object fileKey(Path path) throws IOException {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.isRegularFile() ? attrs.fileKey() : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    String getStatistics() {
+        long written = bytesWritten.get();
+        long saved = bytesDeduplicated.get() + bytesLinked.get();
+        int blobs;
+        synchronized (this) {
+            blobs = hashes.size();
+        }
+        return blobs + " blobs, " + written + " bytes written, " + saved + " bytes saved (" +
+                bytesDeduplicated.get() + " uploaded again, " + bytesLinked.get() + " never transferred)";
+    }
+
+    private void link(Path blob, Path target) throws IOException {
+        Object old = fileKey(target);
+        if (blob.equals(target) || fileKey(blob).equals(old))
+            return;
+
+        // link under a temporary name and rename it over the target, so the
+        // path never disappears while it is replaced
+        Path link = target.resolveSibling("." + target.getFileName() + ".link");
+        Files.deleteIfExists(link);
+        Files.createLink(link, blob);
+        try {
+            Files.move(link, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(link, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        release(old);
+    }
+
+    private Path blobPath(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static int linkCount(Path path) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink");
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the hashes of the stored blobs and removes the ones nothing links to anymore
+     */
+    private void load() throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> fanout = Files.newDirectoryStream(dir, "??")) {
+            for (Path sub : fanout) {
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(sub)) {
+                    for (Path blob : blobs) {
+                        if (linkCount(blob) <= 1) {
+                            Files.delete(blob);
+                            removed++;
+                        } else {
+                            hashes.put(fileKey(blob), blob.getFileName().toString());
+                        }
+                    }
+                }
+            }
+        }
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(tempDir)) {
+            for (Path temp : temps)
+                Files.delete(temp);
+        }
+        System.out.println("* Blob store " + dir + ": " + hashes.size() + " blobs, " + removed + " unreferenced removed");
+    }
+}
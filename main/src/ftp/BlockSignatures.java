@@ -0,0 +1,163 @@
+package ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Per block checksums of a file, sent to clients by SITE SIGN so they can work
+ * out which blocks of a changed file they actually need to upload with SITE DELTA.
+ * Every block gets the rsync rolling checksum and an MD5 hash. Blocks are hashed
+ * in parallel and the result is cached until the size or modification time of
+ * the file changes
+ */
+class BlockSignatures {
+
+    private static final int CACHE_SIZE = Config.get().getInt("ftp.delta.cache.size", 1024);
+
+    /** Number of blocks hashed by a single task before the work is split */
+    private static final int BLOCKS_PER_TASK = 16;
+
+    private static final Map<String, BlockSignatures> cache =
+            new LinkedHashMap<String, BlockSignatures>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BlockSignatures> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final long size;
+    private final long modified;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+
+    private BlockSignatures(long size, long modified, int blockSize) {
+        this.size = size;
+        this.modified = modified;
+        this.blockSize = blockSize;
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        this.weak = new int[blocks];
+        this.strong = new byte[blocks][];
+    }
+
+    /**
+     * Returns the signatures of a file, computing them unless an up to date copy is cached
+     */
+    static BlockSignatures of(File f, int blockSize) throws IOException {
+        String key = f.getAbsolutePath();
+        long size = f.length();
+        long modified = f.lastModified();
+
+        BlockSignatures signatures;
+        synchronized (cache) {
+            signatures = cache.get(key);
+        }
+        if (signatures != null && signatures.size == size && signatures.modified == modified &&
+                signatures.blockSize == blockSize)
+            return signatures;
+
+        signatures = new BlockSignatures(size, modified, blockSize);
+        try (FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ForkJoinPool.commonPool().invoke(signatures.new SignTask(file, 0, signatures.weak.length));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        synchronized (cache) {
+            cache.put(key, signatures);
+        }
+        return signatures;
+    }
+
+    /**
+     * rsync style weak checksum of the remaining bytes of the buffer. The position
+     * of the buffer is left untouched
+     */
+    static int rollingChecksum(ByteBuffer buf) {
+        int a = 0;
+        int b = 0;
+        int len = buf.remaining();
+        for (int i = 0; i < len; i++) {
+            int v = buf.get(buf.position() + i) & 0xFF;
+            a += v;
+            b += (len - i) * v;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Formats the signatures as sent over the data connection: a header line
+     * followed by one "index weak strong" line per block, all in hex but the index
+     */
+    String toListing() {
+        StringBuilder sb = new StringBuilder(64 + weak.length * 48);
+        sb.append("blocksize ").append(blockSize).append(" size ").append(size)
+                .append(" blocks ").append(weak.length).append("\r\n");
+        for (int i = 0; i < weak.length; i++) {
+            sb.append(i).append(' ').append(String.format("%08x", weak[i])).append(' ');
+            for (byte b : strong[i])
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            sb.append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    private class SignTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel file;
+        private final int from;
+        private final int to;
+
+        SignTask(FileChannel file, int from, int to) {
+            this.file = file;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BLOCKS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SignTask(file, from, middle), new SignTask(file, middle, to));
+                return;
+            }
+
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                ByteBuffer buf = ByteBuffer.allocate(blockSize);
+                for (int i = from; i < to; i++) {
+                    long position = (long) i * blockSize;
+                    buf.clear();
+                    buf.limit((int) Math.min(blockSize, size - position));
+                    while (buf.hasRemaining()) {
+                        if (file.read(buf, position + buf.position()) < 0)
+                            throw new IOException("File changed while computing signatures");
+                    }
+                    buf.flip();
+                    weak[i] = rollingChecksum(buf);
+                    md5.update(buf);
+                    strong[i] = md5.digest();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
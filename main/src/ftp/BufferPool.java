@@ -0,0 +1,66 @@
+package ftp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers shared by the transfer paths so that a transfer
+ * doesn't allocate (and later leak to the GC) its own direct memory
+ */
+class BufferPool {
+
+    static final int BUFFER_SIZE = 16384;
+
+    static final BufferPool DEFAULT = new BufferPool(BUFFER_SIZE, 256);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the pool is empty
+     *
+     * @return a direct buffer of bufferSize bytes
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buf = buffers.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that weren't handed out by this pool
+     * and buffers beyond the pool limit are dropped
+     *
+     * @param buf the buffer to give back, may be null
+     */
+    void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect() || buf.capacity() != bufferSize)
+            return;
+
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buf);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    int getPooled() {
+        return pooled.get();
+    }
+}
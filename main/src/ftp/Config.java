@@ -0,0 +1,300 @@
+package ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server settings, read from the properties file and from key=value overrides
+ * given on the command line, which win over the file. Each load makes an
+ * immutable snapshot, published through a volatile reference, so the settings
+ * sessions read while running (the client file encoding as a Charset, the
+ * storage type, the MODE Z level and the accounts from ftp.user.&lt;name&gt;) cost
+ * a field read. Other settings are read through getInt(), getLong(),
+ * getBoolean() and get(), which fall back to the default for a missing or
+ * malformed value. Nothing is copied into the System properties.
+ *
+ * With ftp.config.watch the file is watched and loaded again when it changes.
+ * Timeouts, limits and login throttling are read from the snapshot when they
+ * are used, so a reload takes effect for the next command, session or
+ * transfer. Settings that size listeners, thread pools, caches and rings, or
+ * name files the server opens, are read once at startup and need a restart
+ */
+public class Config {
+
+    private static volatile Config current = new Config(Collections.emptyMap());
+
+    private static Path file;
+    private static Map<String, String> overrides = Collections.emptyMap();
+
+    private final Map<String, String> values;
+    private final Charset clientCharset;
+    private final String home;
+    private final String storage;
+    private final int modeZLevel;
+    private final Map<String, UserDirectory.User> users;
+
+    private Config(Map<String, String> values) {
+        this.values = values;
+        this.clientCharset = charset(values.get("client.file.encoding"));
+        this.home = values.get("ftp.home");
+        this.storage = values.getOrDefault("ftp.storage", "local");
+        this.modeZLevel = parseInt(values.get("ftp.mode.z.level"), 6);
+
+        Map<String, UserDirectory.User> users = new HashMap<>();
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            if (e.getKey().startsWith("ftp.user.")) {
+                String name = e.getKey().substring("ftp.user.".length());
+                users.put(name, new UserDirectory.User(name, e.getValue(), values.get("ftp.home." + name),
+                        0L, 0L, 0L, 0L, 0L));
+            }
+        }
+        this.users = users;
+    }
+
+    /**
+     * @return the settings in effect
+     */
+    public static Config get() {
+        return current;
+    }
+
+    /**
+     * Reads the settings. Call before anything else of the server is used
+     *
+     * @param overrides values that replace those of the file, now and on every reload
+     */
+    public static void load(String path, Map<String, String> overrides) throws IOException {
+        Config.file = Paths.get(path).toAbsolutePath();
+        Config.overrides = new HashMap<>(overrides);
+        publish(read());
+        if (current.getBoolean("ftp.config.watch", false)) {
+            Thread thread = new Thread(Config::watch, "ftp-config-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static Config read() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, String> values = new HashMap<>();
+        for (String key : properties.stringPropertyNames())
+            values.put(key, properties.getProperty(key));
+        values.putAll(overrides);
+        return new Config(Collections.unmodifiableMap(values));
+    }
+
+    private static void publish(Config config) {
+        current = config;
+    }
+
+    /**
+     * Loads the file again whenever it changes, keeping the settings in effect
+     * when it can't be read
+     */
+    private static void watch() {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents())
+                    changed |= file.getFileName().equals(event.context());
+                key.reset();
+                if (!changed)
+                    continue;
+
+                // editors write in several steps, let them finish
+                Thread.sleep(200);
+                while ((key = watcher.poll(200, TimeUnit.MILLISECONDS)) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.println("* Configuration watcher stopped");
+        } catch (IOException e) {
+            System.out.println("* Can't watch " + file + ", configuration changes need a restart");
+            e.printStackTrace();
+        }
+    }
+
+    private static void reload() {
+        Config config;
+        try {
+            config = read();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("* Keeping the current configuration, can't read " + file + ": " + e);
+            return;
+        }
+
+        Set<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> e : config.values.entrySet()) {
+            if (!Objects.equals(e.getValue(), current.values.get(e.getKey())))
+                changed.add(e.getKey());
+        }
+        for (String key : current.values.keySet()) {
+            if (!config.values.containsKey(key))
+                changed.add(key);
+        }
+        if (changed.isEmpty())
+            return;
+        publish(config);
+        System.out.println("* Configuration reloaded, changed: " + String.join(", ", changed));
+    }
+
+    private static Charset charset(String name) {
+        if (name == null || name.isEmpty())
+            return StandardCharsets.UTF_8;
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            System.out.println("* Unknown client.file.encoding " + name + ", using UTF-8");
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the value of a setting, or null
+     */
+    String get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * @return the value of a setting, or the default if it isn't set
+     */
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    /**
+     * @return the value of a setting, or the default if it isn't set or isn't a number
+     */
+    public int getInt(String key, int defaultValue) {
+        return parseInt(values.get(key), defaultValue);
+    }
+
+    /**
+     * @return the value of a setting, or the default if it isn't set or isn't a number
+     */
+    public long getLong(String key, long defaultValue) {
+        return parseLong(values.get(key), defaultValue);
+    }
+
+    /**
+     * @return whether a setting is "true", the default if it isn't set
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * @return the encoding of file names for clients that didn't turn on UTF8
+     */
+    Charset getClientCharset() {
+        return clientCharset;
+    }
+
+    /**
+     * @return the directory user roots are in
+     */
+    String getHome() {
+        return home;
+    }
+
+    /**
+     * @return the storage type for a user, ftp.storage.&lt;name&gt; or else ftp.storage
+     */
+    String getStorage(String user) {
+        return values.getOrDefault("ftp.storage." + user, storage);
+    }
+
+    int getModeZLevel() {
+        return modeZLevel;
+    }
+
+    /**
+     * @return whether ftp.storage or any ftp.storage.&lt;name&gt; is the type
+     */
+    boolean usesStorage(String type) {
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            if ((e.getKey().equals("ftp.storage") || e.getKey().startsWith("ftp.storage.")) &&
+                    e.getValue().trim().equalsIgnoreCase(type))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Files of the server's own mustn't be where users can read or change them
+     *
+     * @return whether the path is ftp.home, an ftp.home.&lt;name&gt;, a home of the
+     * users file or inside one of them
+     */
+    boolean isInsideRoot(Path path) {
+        Path target = path.toAbsolutePath().normalize();
+        List<String> roots = new ArrayList<>(UserDirectory.getInstance().getHomes());
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            if (e.getKey().equals("ftp.home") || e.getKey().startsWith("ftp.home."))
+                roots.add(e.getValue());
+        }
+        for (String root : roots) {
+            if (root != null && !root.trim().isEmpty() &&
+                    target.startsWith(Paths.get(root.trim()).toAbsolutePath().normalize()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the account defined by ftp.user.&lt;name&gt; and ftp.home.&lt;name&gt;, or null
+     */
+    UserDirectory.User getUser(String name) {
+        return users.get(name);
+    }
+}
@@ -1,34 +1,62 @@
 package ftp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.function.Consumer;
 
 /**
  * Control channel class
  */
 public class ControlChannel implements Runnable {
+    /** Closes a session that sent no command for this many ms, 0 to keep it forever */
+    private final long idleTimeout = Config.get().getLong("ftp.timeout.idle", 300000L);
+    /** Closes a session that didn't log in within this many ms */
+    private final long loginTimeout = Config.get().getLong("ftp.timeout.login", 60000L);
+
     private final RequestHandler requestHandler;
     private final String directory;
+    private final Shard shard;
     private SocketChannel channel;
     private final Scanner reader;
     private Thread thread;
     private boolean running;
+    private Consumer<ControlChannel> onClose;
+    private volatile long lastCommand;
+    private volatile TimerWheel.Timeout idleTimer;
+    private volatile TimerWheel.Timeout loginTimer;
 
     /**
      * Constructor class that initialises field method and calls onConnect() method
      *
      * @param socketChannel socketChannel
      * @param directory     default home directory
+     * @param shard         the shard that accepted the connection
+     * @param onClose       called once when the session has ended and its channel is closed
      * @throws IOException thrown by onConnect() method
      */
-    public ControlChannel(SocketChannel socketChannel, String directory) throws IOException {
+    ControlChannel(SocketChannel socketChannel, String directory, Shard shard, Consumer<ControlChannel> onClose) throws IOException {
         running = false;
+        this.shard = shard;
+        this.onClose = onClose;
         this.directory = directory;
         this.channel = socketChannel;
-        this.reader = new Scanner(channel);
-        this.requestHandler = new RequestHandler(this.channel, this.directory);
+        // urgent data marks ABOR, it has to reach the reader instead of being dropped
+        this.channel.socket().setOOBInline(true);
+        // replies are short writes, often two in a row (150 then 226), Nagle would hold
+        // back the second until the client acknowledges the first, which it delays
+        this.channel.socket().setTcpNoDelay(true);
+        // Telnet bytes aren't valid UTF-8, they must not end the session
+        this.reader = new Scanner(Channels.newReader(new ControlInput(), StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE), -1));
+        this.requestHandler = new RequestHandler(this.channel, this.directory, shard);
 
         onConnect();
     }
@@ -39,6 +67,7 @@ public class ControlChannel implements Runnable {
      * @throws IOException thrown by println method
      */
     private void onConnect() throws IOException {
+        requestHandler.publish(EventBus.Type.CONNECT, null);
         FtpUtil.println(channel, "220 welcome to our ftp server");
     }
 
@@ -47,8 +76,13 @@ public class ControlChannel implements Runnable {
      */
     public void start() {
         if (thread == null) {
-            thread = new Thread(this);
+            thread = new Thread(this, "ftp-shard-" + shard.getId() + "-session");
             running = true;
+            lastCommand = System.currentTimeMillis();
+            if (idleTimeout > 0)
+                idleTimer = TimerWheel.getInstance().schedule(idleTimeout, this::checkIdle);
+            if (loginTimeout > 0)
+                loginTimer = TimerWheel.getInstance().schedule(loginTimeout, this::checkLogin);
             thread.start();
         }
     }
@@ -63,8 +97,9 @@ public class ControlChannel implements Runnable {
             while (running) {
                 String line = reader.nextLine();
                 if (line == null) break;
+                lastCommand = System.currentTimeMillis();
 
-                String[] requestLine = FtpUtil.split(line);
+                String[] requestLine = FtpUtil.split(FtpUtil.stripTelnet(line));
                 String command = requestLine[0];
                 String parameter = requestLine[1];
 
@@ -78,20 +113,110 @@ public class ControlChannel implements Runnable {
             e.printStackTrace();
         } finally {
             stop();
+            requestHandler.releaseControl();
+        }
+    }
+
+    /**
+     * Runs on the timer thread. The idle time is only checked when the timer
+     * fires, so commands don't have to move the timer. A running transfer counts
+     * as activity, it has its own timeouts
+     */
+    private void checkIdle() {
+        if (!running)
+            return;
+        long idle = System.currentTimeMillis() - lastCommand;
+        if (requestHandler.isTransferring()) {
+            idleTimer = TimerWheel.getInstance().schedule(idleTimeout, this::checkIdle);
+        } else if (idle >= idleTimeout) {
+            reap("421 Timeout (" + idleTimeout / 1000 + " seconds): closing control connection.");
+        } else {
+            idleTimer = TimerWheel.getInstance().schedule(idleTimeout - idle, this::checkIdle);
+        }
+    }
+
+    private void checkLogin() {
+        if (running && !requestHandler.isLoggedIn())
+            reap("421 Login timeout (" + loginTimeout / 1000 + " seconds): closing control connection.");
+    }
+
+    /**
+     * Closes the session for a shutdown once its transfer is done, or right away
+     * when force is set
+     */
+    void drain(boolean force) {
+        if (!running)
+            return;
+        if (requestHandler.isTransferring()) {
+            if (!force)
+                return;
+            requestHandler.abortTransfer("server shutting down");
+        }
+        reap("421 Service shutting down, please reconnect.");
+    }
+
+    /**
+     * Says goodbye and closes the channel, which ends the blocked read in run()
+     * and releases the rest of the session there
+     */
+    private void reap(String reply) {
+        System.out.println("* Reaping session (" + channel.socket().getInetAddress() + "): " + reply);
+        try {
+            FtpUtil.println(requestHandler.getControl(), reply);
+        } catch (IOException e) {
+            // client already gone
         }
+        FtpUtil.releaseChannelResource(channel);
     }
 
     /**
      * Interrupts the thread and closes the channel. Also set the running field to false
      */
     private void stop() {
+        TimerWheel.Timeout timer = idleTimer;
+        if (timer != null)
+            timer.cancel();
+        timer = loginTimer;
+        if (timer != null)
+            timer.cancel();
+        requestHandler.close();
+        requestHandler.publish(EventBus.Type.DISCONNECT, null);
+        FtpUtil.releaseChannelResource(channel);
+
+        running = false;
+
+        // before the interrupt, the listener may start the next session on this thread
+        if (onClose != null) {
+            Consumer<ControlChannel> listener = onClose;
+            onClose = null;
+            listener.accept(this);
+        }
+
         if (thread != null) {
             thread.interrupt();
             thread = null;
         }
+    }
 
-        FtpUtil.releaseChannelResource(channel);
+    /**
+     * Reads commands from the socket, or from TLS over it once AUTH TLS succeeded.
+     * The client waits for the 234 reply before it starts the handshake, so
+     * nothing sent in the clear is left in the reader's buffers by then
+     */
+    private class ControlInput implements ReadableByteChannel {
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return requestHandler.getControl().read(dst);
+        }
 
-        running = false;
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
 }
@@ -1,39 +1,111 @@
 package ftp;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.FileChannel;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
 
 public abstract class DataConnection implements Runnable {
+    /** Aborts a transfer that moved no data for this many ms, 0 to wait forever */
+    private final long transferTimeout = Config.get().getLong("ftp.timeout.transfer", 120000L);
+    /** Aborts a transfer slower than this many bytes per second, measured over the window */
+    private final long minRate = Config.get().getLong("ftp.transfer.min.rate", 0L);
+    private final long minRateWindow = Config.get().getLong("ftp.transfer.min.rate.window", 30000L);
+    /** Refuses protected data connections that don't resume the control connection's TLS session */
+    private final boolean requireReuse = Config.get().getBoolean("ftp.tls.data.reuse.required", false);
+    /** Drops a data connection that no transfer command asked for within this many ms */
+    private final long commandTimeout = Config.get().getLong("ftp.timeout.data.command", 8000L);
+    /** How often a running transfer publishes its progress, in ms */
+    private final long progressInterval = Config.get().getLong("ftp.events.progress.interval", 1000L);
+
     protected InetSocketAddress address;
     protected SocketChannel channel;
+    /** How long the connect to the client took, set by ActiveConnection */
+    protected long connectMillis = -1L;
     private Thread thread = null;
 
-    private List<DataConnectionListener> listeners =
-            Collections.synchronizedList(new ArrayList<>());
+    /** Iterated on the transfer thread without locking */
+    private List<DataConnectionListener> listeners = new CopyOnWriteArrayList<>();
+    /** The session the transfer events are published for */
+    private long session = 0L;
+    private InetAddress remote = null;
+    private String user = null;
     private boolean isNegotiable = false;
     private final Object lock = new Object();
     private boolean notified = false;
+    private boolean failed = false;
+    /** Set by the timer thread when no command came for the connection in time */
+    private boolean expired = false;
+    /** Set by stop(), the transfer thread waits on the lock and is never interrupted */
+    private boolean stopped = false;
 
     private ByteBuffer toWrite = null;
-    private File fileSend = null;
-    private File fileReceive = null;
+    private ReadableByteChannel listing = null;
+    private Storage storage = null;
+    private Path fileSend = null;
+    private Path fileReceive = null;
+    private Quota quota = null;
+    private File fileDelta = null;
     private long offset = 0L;
+    private int compressionLevel = -1;
+    private boolean isBinary = false;
+    /** Bytes per second the transfer is held to, 0 for no limit */
+    private long rate = 0L;
+
+    private Shard shard;
+    /** TLS session of the control connection when PROT P is set, otherwise null */
+    private SSLSession controlSession = null;
+    private TlsChannel tls = null;
+    private ByteChannel metered = null;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    /** Written by the transfer thread only, read by STAT without locking */
+    private volatile long transferred = 0L;
+    private volatile long started = 0L;
+    private volatile long expectedSize = -1L;
+    private volatile long requestedAt = 0L;
+    private long firstByteAt = 0L;
+    private volatile long lastActivity;
+    private volatile String abortReason = null;
+    /** Replaced by checkProgress() on the timer thread, cancelled by run() */
+    private volatile TimerWheel.Timeout watchdog = null;
+    private long windowStart;
+    private long windowBytes;
+    private long progressPublished = 0L;
 
-    static DataConnection createPassive() throws IOException {
-        return new PassiveConnection();
+    /**
+     * @param local the address to listen on, null for the host's first non-loopback IPv4 address
+     * @param shard the shard of the session, whose passive ports and buffers the connection uses
+     */
+    static DataConnection createPassive(InetAddress local, Shard shard) throws IOException {
+        DataConnection connection = new PassiveConnection(local, shard);
+        connection.shard = shard;
+        return connection;
     }
 
-    static DataConnection createActive(InetSocketAddress addr) {
-        return new ActiveConnection();
+    /**
+     * @param addr  where the client listens
+     * @param local the address of the control connection on this side, the connection goes out from there
+     */
+    static DataConnection createActive(InetSocketAddress addr, InetAddress local, Shard shard) {
+        DataConnection connection = new ActiveConnection(addr, local);
+        connection.shard = shard;
+        return connection;
     }
 
     void start() {
@@ -47,76 +119,434 @@ public abstract class DataConnection implements Runnable {
 
     @Override
     public void run() {
-        FileChannel file = null;
+        ReadableByteChannel source = null;
+        WritableByteChannel target = null;
+        WritableByteChannel inflating = null;
+        WritableByteChannel decoding = null;
         try {
             isNegotiable = false;
             doNegotiate();
             isNegotiable = true;
+            startWatchdog();
             for (DataConnectionListener l : listeners)
                 l.actionNegotiated(true);
 
-            synchronized (lock) {
-                if (!notified) {
-//					System.out.println( "DEBUG: lock.wait()" );
-                    lock.wait(1000 * 8);
+            TimerWheel.Timeout deadline = TimerWheel.getInstance().schedule(commandTimeout, this::commandExpired);
+            try {
+                synchronized (lock) {
+                    while (!notified && !expired && !stopped)
+                        lock.wait();
+                    if (!notified) {
+                        // nothing to abort yet, the next command hears 425
+                        isNegotiable = false;
+                        throw new IOException(stopped ? "closed before any command" :
+                                "no command within " + commandTimeout + " ms");
+                    }
                 }
+            } finally {
+                deadline.cancel();
             }
 
+            // the client starts TLS once it has the 150 reply, so after the command
+            metered = new MeteredChannel(controlSession != null ? secure() : channel);
+            started = System.currentTimeMillis();
+            progressPublished = started;
             for (DataConnectionListener l : listeners)
                 l.transferStarted();
+            publish(EventBus.Type.TRANSFER_START, getDescription(), expectedSize);
 
             if (toWrite != null) {
+                WritableByteChannel out = openOutbound(true);
                 while (toWrite.hasRemaining())
-                    channel.write(toWrite);
+                    out.write(toWrite);
+                closeOutbound(out);
+                checkAborted();
+            }
+
+            if (listing != null) {
+                WritableByteChannel out = openOutbound(true);
+                // the listing reads ahead itself
+                new TransferPipeline(listing, out, shard.getPool(), 1).copy();
+                closeOutbound(out);
+                checkAborted();
             }
 
             if (fileSend != null) {
-                ByteBuffer buf = ByteBuffer.allocateDirect(16384);
-                file = new FileInputStream(fileSend).getChannel();
-                file.position(offset);
-                FtpUtil.readWriteOperation(file, channel, buf);
+                source = storage.openRead(fileSend, offset);
+                WritableByteChannel out = openOutbound(!FtpUtil.isCompressedFileType(fileSend.getFileName().toString()));
+                // sendfile goes around the metered channel, which holds the rate
+                if (out == metered && isBinary && source instanceof FileChannel && tls == null && rate == 0) {
+                    FtpUtil.transferOperation((FileChannel) source, channel, this::progress);
+                } else {
+                    WritableByteChannel converted = isBinary ? out : AsciiChannel.encoding(out);
+                    new TransferPipeline(source, converted, shard.getPool()).copy();
+                    if (converted != out)
+                        converted.close();
+                }
+                closeOutbound(out);
+                checkAborted();
             }
 
             if (fileReceive != null) {
-                ByteBuffer buf = ByteBuffer.allocateDirect(16384);
-                file = new FileOutputStream(fileReceive).getChannel();
-                FtpUtil.readWriteOperation(channel, file, buf);
+                target = quota != null ? quota.openWrite(storage, fileReceive, offset) :
+                        storage.openWrite(fileReceive, offset);
+                decoding = isBinary ? null : AsciiChannel.decoding(target);
+                WritableByteChannel converted = decoding != null ? decoding : target;
+                inflating = isCompressed() ? new InflateChannel(converted) : null;
+                WritableByteChannel in = inflating != null ? inflating : converted;
+                new TransferPipeline(metered, in, shard.getPool()).copy();
+                if (inflating != null)
+                    inflating.close();
+                if (decoding != null)
+                    decoding.close();
+                // an abort shuts down the input, which looks like the end of the upload
+                checkAborted();
+                target.close();
+            }
+
+            if (fileDelta != null) {
+                long literal = DeltaFile.apply(metered, fileDelta, quota, () -> abortReason != null);
+                System.out.println("* Delta upload of " + fileDelta.getName() + ": " + literal +
+                        " literal bytes for " + fileDelta.length() + " bytes");
             }
 
+            if (tls != null) {
+                tls.close();
+                System.out.println("* " + getTlsStatistics());
+            }
+            if (connectMillis >= 0 && firstByteAt > 0)
+                System.out.println("* Active " + getDescription() + ": connected in " + connectMillis +
+                        " ms, first byte " + (firstByteAt - requestedAt) + " ms after the command");
+            // the listeners reply first, subscribers hear of it once the client did
             for (DataConnectionListener l : listeners)
                 l.transferCompleted(false);
+            publish(EventBus.Type.TRANSFER_COMPLETE, getDescription(), transferred);
 
         } catch (InterruptedException e) {
             System.out.println("Interrupted exception");
             e.printStackTrace();
-            FtpUtil.setTransferComplete(isNegotiable, listeners);
+            transferFailed();
+        } catch (Quota.ExceededException e) {
+            System.out.println("* Transfer refused: " + e.getMessage());
+            for (DataConnectionListener l : listeners)
+                l.transferRefused(e.getMessage());
+            publish(EventBus.Type.TRANSFER_REFUSED, e.getMessage(), transferred);
         } catch (Exception e) {
-            e.printStackTrace();
-            FtpUtil.setTransferComplete(isNegotiable, listeners);
+            if (abortReason != null)
+                System.out.println("* Transfer aborted: " + abortReason);
+            else if (!isNegotiable)
+                System.out.println("* Data connection to " + address + " failed: " + e);
+            else
+                e.printStackTrace();
+            transferFailed();
         } finally {
-            FtpUtil.releaseChannelResource(file);
+            cancelWatchdog();
+            FtpUtil.releaseChannelResource(source);
+            // the wrappers flush into the target, so they go first
+            FtpUtil.releaseChannelResource(inflating);
+            FtpUtil.releaseChannelResource(decoding);
+            FtpUtil.releaseChannelResource(target);
+            FtpUtil.releaseChannelResource(listing);
             stop();
+            if (tls != null)
+                tls.release();
+            finished.countDown();
+            // a check running meanwhile may have scheduled another one
+            cancelWatchdog();
+        }
+    }
+
+    /**
+     * Runs the TLS handshake on the data connection, which the client may
+     * abbreviate by offering the control connection's session
+     */
+    private ByteChannel secure() throws IOException {
+        tls = TlsChannel.open(channel, TlsContext.getInstance());
+        if (requireReuse && !resumesControlSession()) {
+            abortReason = "data connection didn't resume the control connection's TLS session";
+            throw new IOException(abortReason);
         }
+        return tls;
+    }
+
+    /**
+     * JSSE gives a resumed session a new id with TLS 1.3 and with session
+     * tickets, so a resumption of the control connection's session is told by
+     * what it keeps of it: the creation time, protocol and cipher suite. Only
+     * a client that has the secret of a session can resume it
+     */
+    private boolean resumesControlSession() {
+        SSLSession session = tls.getSession();
+        if (!tls.isResumed())
+            return false;
+        return Arrays.equals(session.getId(), controlSession.getId()) ||
+                session.getCreationTime() == controlSession.getCreationTime() &&
+                        session.getProtocol().equals(controlSession.getProtocol()) &&
+                        session.getCipherSuite().equals(controlSession.getCipherSuite());
+    }
+
+    private String getTlsStatistics() {
+        long elapsed = Math.max(1L, System.currentTimeMillis() - started);
+        return "TLS " + getDescription() + ": handshake " + tls.getHandshakeNanos() / 1000 + " us" +
+                (tls.isResumed() ? " (resumed)" : " (full)") + ", " + transferred + " bytes in " + elapsed +
+                " ms, " + transferred * 1000 / elapsed / 1024 + " KB/s";
+    }
+
+    private boolean isCompressed() {
+        return compressionLevel >= 0;
+    }
+
+    /**
+     * Returns the channel outgoing data is written to, which deflates it in MODE Z
+     *
+     * @param compressible false when the data is known not to compress, in which case
+     *                     MODE Z sends it as stored deflate blocks
+     */
+    private WritableByteChannel openOutbound(boolean compressible) {
+        if (!isCompressed())
+            return metered;
+        return new DeflateChannel(metered, compressible ? compressionLevel : 0, compressible);
+    }
+
+    private void closeOutbound(WritableByteChannel out) throws IOException {
+        if (out == metered)
+            return;
+        out.close();
+        System.out.println("* " + ((DeflateChannel) out).getStatistics());
     }
 
     public void stop() {
         FtpUtil.releaseChannelResource(channel);
 
-        if (thread != null) {
-            thread.interrupt();
-            thread = null;
+        // an interrupt would close the control connection if it came while the
+        // transfer thread writes its reply, a finished transfer may still do so
+        synchronized (lock) {
+            stopped = true;
+            lock.notify();
+        }
+        thread = null;
+    }
+
+    /**
+     * Fails a transfer that was aborted while it was running, which may have
+     * ended like a complete one
+     */
+    private void checkAborted() throws IOException {
+        if (abortReason != null)
+            throw new IOException(abortReason);
+    }
+
+    /**
+     * Closes the connection under a running transfer, which then fails with a 426
+     */
+    void abort(String reason) {
+        abortReason = reason;
+        SocketChannel socket = channel;
+        if (socket != null) {
+            try {
+                // a sendfile blocked on the socket only wakes up on a shutdown, not on close
+                socket.shutdownOutput();
+                socket.shutdownInput();
+            } catch (IOException | NotYetConnectedException e) {
+                // not connected yet or already closed
+            }
+        }
+        // no interrupt, the transfer thread still has to reply on the control connection
+        FtpUtil.releaseChannelResource(socket);
+    }
+
+    /**
+     * Waits for the transfer thread to reply and release the transfer
+     *
+     * @return false if it is still running after timeout ms
+     */
+    boolean awaitCompletion(long timeout) {
+        try {
+            return finished.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the bytes that went through the data socket so far
+     */
+    long getTransferred() {
+        return transferred;
+    }
+
+    /**
+     * @return the file sent or received, null for listings
+     */
+    Path getFile() {
+        if (fileSend != null)
+            return fileSend;
+        if (fileReceive != null)
+            return fileReceive;
+        return fileDelta != null ? fileDelta.toPath() : null;
+    }
+
+    boolean isIncoming() {
+        return fileReceive != null || fileDelta != null;
+    }
+
+    boolean isBinary() {
+        return isBinary;
+    }
+
+    /**
+     * @return when the transfer started, 0 if it didn't yet
+     */
+    long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return the bytes the transfer will put on the data socket, -1 if unknown.
+     *         Only binary stream mode sends files as they are
+     */
+    long getExpectedSize() {
+        return isBinary && !isCompressed() ? expectedSize : -1L;
+    }
+
+    void setExpectedSize(long size) {
+        this.expectedSize = size;
+    }
+
+    /**
+     * @return what the connection is used for, for STAT
+     */
+    String getDescription() {
+        if (fileSend != null)
+            return "RETR " + fileSend.getFileName();
+        if (fileReceive != null)
+            return "STOR " + fileReceive.getFileName();
+        if (fileDelta != null)
+            return "SITE DELTA " + fileDelta.getName();
+        return "LIST";
+    }
+
+    private void progress(long len) {
+        if (firstByteAt == 0L && len > 0)
+            firstByteAt = System.currentTimeMillis();
+        if (len <= 0)
+            return;
+        transferred += len;
+        shard.transferred(len);
+        lastActivity = System.currentTimeMillis();
+        if (lastActivity - progressPublished >= progressInterval) {
+            progressPublished = lastActivity;
+            publish(EventBus.Type.TRANSFER_PROGRESS, getDescription(), transferred);
+        }
+    }
+
+    private void publish(EventBus.Type type, String detail, long bytes) {
+        EventBus.getInstance().publish(type, session, remote, user, detail, bytes);
+    }
+
+    private void startWatchdog() {
+        lastActivity = System.currentTimeMillis();
+        windowStart = lastActivity;
+        windowBytes = 0L;
+        long delay = nextCheck(lastActivity);
+        if (delay > 0)
+            watchdog = TimerWheel.getInstance().schedule(delay, this::checkProgress);
+    }
+
+    private void cancelWatchdog() {
+        TimerWheel.Timeout timeout = watchdog;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * Runs on the timer thread, aborts a stalled or too slow transfer and otherwise
+     * schedules itself for the next deadline, until the transfer has finished
+     */
+    private void checkProgress() {
+        if (finished.getCount() == 0)
+            return;
+        long now = System.currentTimeMillis();
+        if (transferTimeout > 0 && now - lastActivity >= transferTimeout) {
+            abort("no data for " + (now - lastActivity) / 1000 + " seconds");
+            return;
+        }
+        if (minRate > 0 && now - windowStart >= minRateWindow) {
+            long rate = (transferred - windowBytes) * 1000 / (now - windowStart);
+            if (rate < minRate) {
+                abort(rate + " bytes/s is below the minimum of " + minRate);
+                return;
+            }
+            windowStart = now;
+            windowBytes = transferred;
         }
+        TimerWheel.Timeout timeout = TimerWheel.getInstance().schedule(nextCheck(now), this::checkProgress);
+        watchdog = timeout;
+        if (finished.getCount() == 0)
+            timeout.cancel();
+    }
+
+    private long nextCheck(long now) {
+        long delay = Long.MAX_VALUE;
+        if (transferTimeout > 0)
+            delay = lastActivity + transferTimeout - now;
+        if (minRate > 0)
+            delay = Math.min(delay, windowStart + minRateWindow - now);
+        return delay == Long.MAX_VALUE ? 0L : Math.max(1L, delay);
+    }
+
+    /**
+     * @param controlSession the control connection's TLS session to protect the
+     *                       data with, null to send it in the clear
+     */
+    void setProtection(SSLSession controlSession) {
+        this.controlSession = controlSession;
     }
 
     void setFileOffset(long offset) {
         this.offset = offset;
     }
 
+    /**
+     * Sets the deflate level used for MODE Z, or a negative value for stream mode
+     */
+    void setCompressionLevel(int level) {
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Selects between TYPE I, sent as is, and TYPE A, which converts line endings
+     */
+    void setBinary(boolean isBinary) {
+        this.isBinary = isBinary;
+    }
+
+    /**
+     * Limits the transfer to a number of bytes per second, 0 for no limit
+     */
+    void setRate(long rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Sets whose transfer this is, for the events
+     */
+    void setSession(long session, InetAddress remote, String user) {
+        this.session = session;
+        this.remote = remote;
+        this.user = user;
+    }
+
     void addDataConnectionListener(DataConnectionListener l) {
         if (!listeners.contains(l))
             listeners.add(l);
     }
 
+    int getPort() {
+        return address.getPort();
+    }
+
     String getAddressAsString() {
         int port = address.getPort();
         String[] ips = address.getAddress().getHostAddress().split("\\.");
@@ -124,31 +554,162 @@ public abstract class DataConnection implements Runnable {
                 "," + (port / 256) + "," + (port % 256);
     }
 
-    void send(String msg, boolean isUTF8) throws IOException {
-        this.toWrite = ByteBuffer.wrap(msg.getBytes(
-                isUTF8 ? "UTF-8" : System.getProperty("client.file.encoding")));
+    /**
+     * Sleeps while the transfer is ahead of its rate limit
+     */
+    private void throttle() throws IOException {
+        if (rate <= 0)
+            return;
+        long wait = started + transferred * 1000 / rate - System.currentTimeMillis();
+        if (wait <= 0)
+            return;
+        long until = System.currentTimeMillis() + wait;
+        try {
+            synchronized (lock) {
+                while (!stopped && wait > 0) {
+                    lock.wait(wait);
+                    wait = until - System.currentTimeMillis();
+                }
+                if (stopped)
+                    throw new InterruptedIOException("Transfer stopped while throttled");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Transfer interrupted while throttled");
+        }
+    }
+
+    /**
+     * Counts the bytes going through the data socket and holds them to the rate limit
+     */
+    private class MeteredChannel implements ByteChannel {
+        private final ByteChannel socket;
+
+        MeteredChannel(ByteChannel socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int len = socket.read(dst);
+            if (len > 0) {
+                progress(len);
+                throttle();
+            }
+            return len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int len = socket.write(src);
+            progress(len);
+            throttle();
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socket.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Wakes the transfer thread for the command. If the data connection already
+     * failed, the listeners hear it now, otherwise from the transfer thread
+     */
+    private void requested() {
+        boolean failedAlready;
         synchronized (lock) {
+            requestedAt = System.currentTimeMillis();
+            notified = true;
             lock.notify();
+            failedAlready = failed;
         }
-        this.notified = true;
-        // System.out.println( "DEBUG: lock.notify()" );
+        if (failedAlready)
+            reportFailure(false);
     }
 
-    void sendFile(File f) {
-        this.toWrite = null;
-        this.fileSend = f;
+    /**
+     * Runs on the timer thread, wakes the transfer thread to give up on the command
+     */
+    private void commandExpired() {
         synchronized (lock) {
+            if (notified)
+                return;
+            expired = true;
             lock.notify();
         }
-        this.notified = true;
     }
 
-    void storeFile(File f) {
-        this.toWrite = null;
-        this.fileReceive = f;
+    /**
+     * A connection that failed before any command is only reported once a command comes
+     */
+    private void transferFailed() {
+        if (isNegotiable) {
+            reportFailure(true);
+            return;
+        }
+        boolean pending;
         synchronized (lock) {
-            lock.notify();
+            failed = true;
+            pending = notified;
         }
-        this.notified = true;
+        if (pending)
+            reportFailure(false);
+    }
+
+    private void reportFailure(boolean isNegotiable) {
+        FtpUtil.setTransferComplete(isNegotiable, listeners);
+        publish(isNegotiable ? EventBus.Type.TRANSFER_ABORT : EventBus.Type.DATA_CONNECTION_FAILED,
+                abortReason != null ? abortReason : isNegotiable ? "connection closed" : "no data connection",
+                transferred);
+    }
+
+    void send(String msg, boolean isUTF8) throws IOException {
+        this.toWrite = ByteBuffer.wrap(msg.getBytes(
+                isUTF8 ? StandardCharsets.UTF_8 : Config.get().getClientCharset()));
+        requested();
+        // System.out.println( "DEBUG: lock.notify()" );
+    }
+
+    /**
+     * Sends a listing produced while it is sent, the listing is closed afterwards
+     */
+    void sendListing(ReadableByteChannel listing) {
+        this.toWrite = null;
+        this.listing = listing;
+        requested();
+    }
+
+    void sendFile(Storage storage, Path path) {
+        this.toWrite = null;
+        this.storage = storage;
+        this.fileSend = path;
+        requested();
+    }
+
+    /**
+     * @param quota usage the upload is counted against, null for none
+     */
+    void storeFile(Storage storage, Path path, Quota quota) {
+        this.toWrite = null;
+        this.storage = storage;
+        this.fileReceive = path;
+        this.quota = quota;
+        requested();
+    }
+
+    /**
+     * @param quota usage the rebuilt file is counted against, null for none
+     */
+    void storeDelta(File f, Quota quota) {
+        this.toWrite = null;
+        this.fileDelta = f;
+        this.quota = quota;
+        requested();
     }
 }
@@ -6,4 +6,10 @@ public interface DataConnectionListener {
     void transferStarted();
 
     void transferCompleted(boolean hasError);
+
+    /**
+     * The transfer was stopped for a reason the client is told with the reply
+     */
+    default void transferRefused(String reply) {
+    }
 }
@@ -0,0 +1,218 @@
+package ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Local storage that keeps every distinct upload only once. Uploads are hashed
+ * while they are received and then handed to a BlobStore, which links the user's
+ * path to the shared copy. Files are never modified in place: a restarted upload
+ * copies the part already stored into a new file first.
+ *
+ * The blob store is the directory ftp.dedup.store, which has to be set: it
+ * must be on the file system of the user roots, for the hard links, and
+ * outside all of them, or users could read and change the blobs of others
+ */
+class DedupStorage extends LocalStorage {
+
+    private final BlobStore store;
+
+    DedupStorage(File root) throws IOException {
+        super(root);
+        this.store = BlobStore.forDirectory(storeDirectory());
+    }
+
+    /**
+     * Checked on startup as well, so the server doesn't start with a store users can get at
+     *
+     * @throws IOException when ftp.dedup.store isn't set or is inside a user root
+     */
+    static Path storeDirectory() throws IOException {
+        String dir = Config.get().get("ftp.dedup.store", "").trim();
+        if (dir.isEmpty())
+            throw new IOException("ftp.dedup.store has to be set for dedup storage");
+        Path path = Paths.get(dir).toAbsolutePath().normalize();
+        if (Config.get().isInsideRoot(path))
+            throw new IOException("ftp.dedup.store " + path + " is inside a user root");
+        return path;
+    }
+
+    BlobStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the SHA-256 of a stored file, or null if it isn't in the blob store
+     */
+    String hashOf(Path path) {
+        return store.hashOf(path);
+    }
+
+    /**
+     * Stores content the blob store already has under a new path without any transfer
+     *
+     * @return the size of the content, or -1 if the hash is unknown
+     */
+    long link(String hash, Path path) throws IOException {
+        long size = store.link(hash.toLowerCase(), path);
+        if (size >= 0)
+            updateIndex(path);
+        return size;
+    }
+
+    @Override
+    public WritableByteChannel openWrite(Path path, long offset) throws IOException {
+        Path temp = store.createTempFile();
+        FileChannel file = null;
+        boolean opened = false;
+        try {
+            file = FileChannel.open(temp, StandardOpenOption.WRITE);
+            HashingChannel channel = new HashingChannel(file, temp, path);
+            if (offset > 0)
+                channel.copyPrefix(path, offset);
+            opened = true;
+            return channel;
+        } finally {
+            if (!opened) {
+                if (file != null)
+                    file.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(Path path) throws IOException {
+        Object key = BlobStore.fileKey(path);
+        boolean deleted = super.delete(path);
+        if (deleted)
+            store.release(key);
+        return deleted;
+    }
+
+    @Override
+    public void rename(Path from, Path to) throws IOException {
+        Object replaced = BlobStore.fileKey(to);
+        super.rename(from, to);
+        store.release(replaced);
+    }
+
+    /**
+     * @return the SHA-256 of everything left in the channel
+     */
+    static String sha256(ReadableByteChannel in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buf = BufferPool.DEFAULT.acquire();
+        try {
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        } finally {
+            BufferPool.DEFAULT.release(buf);
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Writes an upload to a temporary file, hashing it on the way
+     */
+    private class HashingChannel implements WritableByteChannel {
+        private final FileChannel file;
+        private final Path temp;
+        private final Path target;
+        private final MessageDigest digest;
+        private long size = 0L;
+
+        HashingChannel(FileChannel file, Path temp, Path target) throws IOException {
+            this.file = file;
+            this.temp = temp;
+            this.target = target;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                file.close();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Starts the new file with the first offset bytes of the current one, zero
+         * filled if it is shorter, as REST expects
+         */
+        void copyPrefix(Path path, long offset) throws IOException {
+            ByteBuffer buf = BufferPool.DEFAULT.acquire();
+            try (FileChannel current = Files.exists(path) ? FileChannel.open(path, StandardOpenOption.READ) : null) {
+                while (size < offset) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), offset - size));
+                    if (current == null || current.read(buf, size) < 0) {
+                        while (buf.hasRemaining())
+                            buf.put((byte) 0);
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining())
+                        write(buf);
+                }
+            } finally {
+                BufferPool.DEFAULT.release(buf);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer hashed = src.duplicate();
+            int len = file.write(src);
+            hashed.limit(hashed.position() + len);
+            digest.update(hashed);
+            size += len;
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!file.isOpen())
+                return;
+
+            boolean done = false;
+            try {
+                file.close();
+                store.commit(temp, toHex(digest.digest()), size, target);
+                done = true;
+            } finally {
+                if (!done)
+                    Files.deleteIfExists(temp);
+                updateIndex(target);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ftp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Channel used for MODE Z transfers. Everything written to it is deflated and
+ * written to the underlying channel. Closing it finishes the deflate stream but
+ * leaves the underlying channel open
+ */
+class DeflateChannel implements WritableByteChannel {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /** Above this output/input ratio the first chunk is treated as incompressible */
+    private static final double MAX_PROBE_RATIO = 0.9;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final WritableByteChannel target;
+    private final Deflater deflater;
+    private final int level;
+    private ByteBuffer out;
+    private boolean probe;
+    private boolean open = true;
+    private long cpuTime = 0L;
+    private long bytesIn = 0L;
+    private long bytesOut = 0L;
+
+    /**
+     * @param target the channel the compressed stream is written to
+     * @param level  deflate level, 0 to 9
+     * @param probe  whether the first chunk should be test-compressed to decide
+     *               if compressing the rest is worth the CPU
+     */
+    DeflateChannel(WritableByteChannel target, int level, boolean probe) {
+        this.target = target;
+        this.level = level;
+        this.deflater = new Deflater(level);
+        this.probe = probe && level != Deflater.NO_COMPRESSION;
+        this.out = BufferPool.DEFAULT.acquire();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open)
+            throw new IOException("Deflate channel is closed");
+
+        int len = src.remaining();
+        long start = cpuTime();
+        if (probe) {
+            probe = false;
+            if (!isCompressible(src))
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+        }
+
+        deflater.setInput(src);
+        while (!deflater.needsInput())
+            drain(Deflater.NO_FLUSH);
+        // the deflater must not keep a reference to a buffer the caller will reuse
+        deflater.setInput(EMPTY);
+        cpuTime += cpuTime() - start;
+        return len;
+    }
+
+    /**
+     * Compresses a copy of the chunk with a scratch deflater and compares the sizes.
+     * The position of the chunk is left untouched
+     */
+    private boolean isCompressible(ByteBuffer chunk) {
+        int len = chunk.remaining();
+        if (len == 0)
+            return true;
+
+        Deflater scratch = new Deflater(level);
+        ByteBuffer sink = BufferPool.DEFAULT.acquire();
+        long written = 0L;
+        try {
+            scratch.setInput(chunk.duplicate());
+            scratch.finish();
+            while (!scratch.finished()) {
+                sink.clear();
+                written += scratch.deflate(sink);
+            }
+        } finally {
+            scratch.end();
+            BufferPool.DEFAULT.release(sink);
+        }
+        return written < len * MAX_PROBE_RATIO;
+    }
+
+    private void drain(int flush) throws IOException {
+        out.clear();
+        deflater.deflate(out, flush);
+        out.flip();
+        while (out.hasRemaining())
+            target.write(out);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Finishes the deflate stream and releases the deflater and buffer
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+
+        long start = cpuTime();
+        try {
+            deflater.finish();
+            while (!deflater.finished())
+                drain(Deflater.NO_FLUSH);
+        } finally {
+            cpuTime += cpuTime() - start;
+            bytesIn = deflater.getBytesRead();
+            bytesOut = deflater.getBytesWritten();
+            deflater.end();
+            BufferPool.DEFAULT.release(out);
+            out = null;
+        }
+    }
+
+    long getBytesIn() {
+        return open ? deflater.getBytesRead() : bytesIn;
+    }
+
+    long getBytesOut() {
+        return open ? deflater.getBytesWritten() : bytesOut;
+    }
+
+    /**
+     * Reports how much bandwidth the compression saved and the CPU time it cost
+     */
+    String getStatistics() {
+        long in = getBytesIn();
+        long out = getBytesOut();
+        long saved = in == 0 ? 0 : (in - out) * 100 / in;
+        return "MODE Z level " + level + ": " + in + " -> " + out + " bytes (" + saved +
+                "% saved), cpu " + (cpuTime / 1000000) + " ms";
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
@@ -0,0 +1,240 @@
+package ftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Benchmark of MODE Z compression through DeflateChannel. Text made of words
+ * and lines, and data that is compressed already (the deflated output of more
+ * such text, as a .gz or .zip file would be), -size bytes of each, are fed in
+ * slices of a pool buffer, as a download is:
+ *
+ * java -cp out ftp.DeflateLoad [-size 16777216] [-levels 0,1,6,9] [-rounds 3]
+ *
+ * For every input and level it prints the compressed size as a share of the
+ * input and the CPU time per MB, without and with the probe of the first
+ * chunk, which drops to level 0 for incompressible data. Every stream is
+ * inflated again through InflateChannel and compared with the input. It exits
+ * with 1 when one doesn't come back the same or when the probe doesn't save
+ * CPU time on the compressed input
+ */
+class DeflateLoad {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final int rounds;
+
+    private DeflateLoad(int rounds) {
+        this.rounds = rounds;
+    }
+
+    /**
+     * Counts the bytes written to it, keeping them when asked to
+     */
+    private static class Sink implements WritableByteChannel {
+        private final ByteArrayOutputStream kept;
+        private final CRC32 crc = new CRC32();
+        private long total = 0L;
+
+        Sink(boolean keep) {
+            this.kept = keep ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int len = src.remaining();
+            if (kept != null) {
+                byte[] bytes = new byte[len];
+                src.get(bytes);
+                kept.write(bytes, 0, len);
+                crc.update(bytes);
+            }
+            src.position(src.limit());
+            total += len;
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void feed(ByteBuffer data, WritableByteChannel channel) throws IOException {
+        ByteBuffer slice = data.duplicate();
+        int size = data.limit();
+        for (int start = 0; start < size; start += BufferPool.BUFFER_SIZE) {
+            slice.limit(Math.min(size, start + BufferPool.BUFFER_SIZE)).position(start);
+            channel.write(slice);
+        }
+        channel.close();
+    }
+
+    /**
+     * Compresses the input once and inflates it again
+     *
+     * @return the size of the compressed stream
+     */
+    private static long check(ByteBuffer input, int level, boolean probe) throws IOException {
+        Sink compressed = new Sink(true);
+        feed(input, new DeflateChannel(compressed, level, probe));
+
+        Sink restored = new Sink(true);
+        feed(ByteBuffer.wrap(compressed.kept.toByteArray()), new InflateChannel(restored));
+        CRC32 crc = new CRC32();
+        crc.update(input.duplicate());
+        if (restored.total != input.limit() || restored.crc.getValue() != crc.getValue())
+            throw new IOException("Level " + level + " gave back " + restored.total + " of " + input.limit() +
+                    " bytes" + (restored.crc.getValue() != crc.getValue() ? ", wrong checksum" : ""));
+        return compressed.total;
+    }
+
+    /**
+     * @return the least CPU time of the rounds in ns, after one to warm up
+     */
+    private long cpu(ByteBuffer input, int level, boolean probe) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= rounds; i++) {
+            long began = threads.getCurrentThreadCpuTime();
+            feed(input, new DeflateChannel(new Sink(false), level, probe));
+            long nanos = threads.getCurrentThreadCpuTime() - began;
+            if (i > 0)
+                best = Math.min(best, nanos);
+        }
+        return best;
+    }
+
+    /**
+     * @return the CPU time in ns without and with the probe, the same for level 0
+     */
+    private long[] level(String name, ByteBuffer input, int level) throws IOException {
+        double mb = input.limit() / 1048576.0;
+        long size = check(input, level, false);
+        long plain = cpu(input, level, false);
+        String line = String.format("* %s, level %d: %.1f%% of the input, %.1f ms CPU per MB", name, level,
+                size * 100.0 / input.limit(), plain / 1e6 / mb);
+        if (level == Deflater.NO_COMPRESSION) {
+            System.out.println(line);
+            return new long[]{plain, plain};
+        }
+        long probedSize = check(input, level, true);
+        long probed = cpu(input, level, true);
+        System.out.println(line + String.format("; with the probe %.1f%%, %.1f ms CPU per MB",
+                probedSize * 100.0 / input.limit(), probed / 1e6 / mb));
+        return new long[]{plain, probed};
+    }
+
+    /**
+     * Words of a small vocabulary, the common ones more often, on lines of
+     * varying length
+     */
+    private static byte[] text(int size, long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[500];
+        for (int i = 0; i < words.length; i++) {
+            char[] word = new char[2 + random.nextInt(9)];
+            for (int j = 0; j < word.length; j++)
+                word[j] = (char) ('a' + random.nextInt(26));
+            words[i] = new String(word);
+        }
+        byte[] text = new byte[size];
+        int i = 0;
+        int column = 0;
+        while (i < size) {
+            double r = random.nextDouble();
+            byte[] word = words[(int) (r * r * words.length)].getBytes();
+            for (int j = 0; j < word.length && i < size; j++)
+                text[i++] = word[j];
+            column += word.length + 1;
+            if (i < size)
+                text[i++] = (byte) (column > 60 + random.nextInt(20) ? '\n' : ' ');
+            if (column > 60)
+                column = 0;
+        }
+        return text;
+    }
+
+    /**
+     * More text deflated at the highest level, until there are size bytes of it
+     */
+    private static byte[] compressed(int size) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        byte[] out = new byte[size];
+        int written = 0;
+        for (long seed = 2; written < size; seed++) {
+            deflater.setInput(text(1048576, seed));
+            while (!deflater.needsInput() && written < size)
+                written += deflater.deflate(out, written, size - written);
+        }
+        deflater.end();
+        return out;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    public static void main(String[] args) {
+        int size = 16 * 1048576;
+        int[] levels = {0, 1, 6, 9};
+        int rounds = 3;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-size":
+                    size = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-levels":
+                    levels = Arrays.stream(args[i + 1].split(","))
+                            .mapToInt(s -> Math.max(0, Math.min(9, Integer.parseInt(s.trim())))).toArray();
+                    break;
+                case "-rounds":
+                    rounds = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.DeflateLoad [-size 16777216] [-levels 0,1,6,9] " +
+                            "[-rounds 3]");
+                    return;
+            }
+        }
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            System.out.println("* Thread CPU time can't be measured here");
+            System.exit(1);
+        }
+
+        int status = 0;
+        try {
+            System.out.printf("* %d KB of each input, fed in slices of %d bytes%n", size / 1024,
+                    BufferPool.BUFFER_SIZE);
+            DeflateLoad load = new DeflateLoad(rounds);
+            ByteBuffer text = direct(text(size, 1));
+            ByteBuffer compressed = direct(compressed(size));
+            for (int level : levels)
+                load.level("Text", text, level);
+            for (int level : levels) {
+                long[] cpu = load.level("Compressed", compressed, level);
+                if (level != Deflater.NO_COMPRESSION && cpu[1] >= cpu[0]) {
+                    System.out.println("* The probe doesn't save CPU time on compressed input at level " + level);
+                    status = 1;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            status = 1;
+        }
+        System.exit(status);
+    }
+}
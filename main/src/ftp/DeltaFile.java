@@ -0,0 +1,175 @@
+package ftp;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Rebuilds a file from a delta uploaded with SITE DELTA. The delta stream is
+ *
+ * <pre>
+ *   "FDLT" int blockSize
+ *   then any number of records:
+ *     0x01 int length, length bytes   literal data
+ *     0x02 int index                  block index of the current file
+ *   0x00                              end of delta
+ * </pre>
+ *
+ * all integers big endian. The new file is assembled in a temporary file next to
+ * the target, copying referenced blocks positionally out of the current file, and
+ * then renamed over the target so readers never see a half written file. With
+ * a quota, the rebuilt file is counted as it grows past the size of the target
+ */
+class DeltaFile {
+
+    private static final int MAGIC = ('F' << 24) | ('D' << 16) | ('L' << 8) | 'T';
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_LITERAL = 1;
+    private static final byte RECORD_BLOCK = 2;
+
+    private final ReadableByteChannel in;
+    private final ByteBuffer buf;
+
+    private DeltaFile(ReadableByteChannel in, ByteBuffer buf) {
+        this.in = in;
+        this.buf = buf;
+        this.buf.flip();
+    }
+
+    /**
+     * Reads a delta from the channel and applies it to the target file
+     *
+     * @param quota   usage the rebuilt file is counted against, null for none
+     * @param aborted checked before the rebuilt file replaces the target, which
+     *                is left alone when it returns true
+     * @return the number of literal bytes received
+     * @throws Quota.ExceededException if the rebuilt file would cross the hard limit
+     */
+    static long apply(ReadableByteChannel in, File target, Quota quota, BooleanSupplier aborted)
+            throws IOException {
+        ByteBuffer buf = BufferPool.DEFAULT.acquire();
+        File temp = File.createTempFile(".delta", ".tmp", target.getAbsoluteFile().getParentFile());
+        long before = target.exists() ? target.length() : -1L;
+        long written = 0L;
+        boolean done = false;
+        try {
+            long literal;
+            try (FileChannel basis = before >= 0 ?
+                    FileChannel.open(target.toPath(), StandardOpenOption.READ) : null;
+                 FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                WritableByteChannel counted = quota != null ?
+                        quota.countRebuild(target.toPath(), out, Math.max(before, 0L)) : out;
+                try {
+                    literal = new DeltaFile(in, buf).rebuild(basis, counted);
+                    out.force(false);
+                } finally {
+                    written = out.size();
+                }
+            }
+
+            if (aborted.getAsBoolean())
+                throw new IOException("Delta upload of " + target.getName() + " aborted");
+
+            if (target.exists()) {
+                try {
+                    Files.setPosixFilePermissions(temp.toPath(), Files.getPosixFilePermissions(target.toPath()));
+                } catch (UnsupportedOperationException e) {
+                    // not a POSIX file system, keep the defaults
+                }
+            }
+
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+            return literal;
+        } finally {
+            BufferPool.DEFAULT.release(buf);
+            if (!done)
+                Files.deleteIfExists(temp.toPath());
+            if (quota != null)
+                quota.rebuilt(target.toPath(), before, written, done);
+        }
+    }
+
+    private long rebuild(FileChannel basis, WritableByteChannel out) throws IOException {
+        require(8);
+        if (buf.getInt() != MAGIC)
+            throw new IOException("Not a delta stream");
+        int blockSize = buf.getInt();
+        if (blockSize <= 0)
+            throw new IOException("Invalid delta block size " + blockSize);
+
+        long basisSize = basis == null ? 0L : basis.size();
+        long literal = 0L;
+        while (true) {
+            require(1);
+            byte record = buf.get();
+            if (record == RECORD_END)
+                return literal;
+
+            require(4);
+            int value = buf.getInt();
+            if (record == RECORD_LITERAL) {
+                copyLiteral(value, out);
+                literal += value;
+            } else if (record == RECORD_BLOCK) {
+                long position = (long) value * blockSize;
+                if (value < 0 || position >= basisSize)
+                    throw new IOException("Delta references missing block " + value);
+                long len = Math.min(blockSize, basisSize - position);
+                while (len > 0) {
+                    long n = basis.transferTo(position, len, out);
+                    if (n <= 0)
+                        throw new IOException("Basis file shrank while copying block " + value);
+                    position += n;
+                    len -= n;
+                }
+            } else {
+                throw new IOException("Unknown delta record " + record);
+            }
+        }
+    }
+
+    private void copyLiteral(int len, WritableByteChannel out) throws IOException {
+        if (len < 0)
+            throw new IOException("Invalid literal length " + len);
+
+        while (len > 0) {
+            require(1);
+            int n = Math.min(len, buf.remaining());
+            int limit = buf.limit();
+            buf.limit(buf.position() + n);
+            while (buf.hasRemaining())
+                out.write(buf);
+            buf.limit(limit);
+            len -= n;
+        }
+    }
+
+    /**
+     * Makes sure at least n bytes are buffered
+     */
+    private void require(int n) throws IOException {
+        while (buf.remaining() < n) {
+            buf.compact();
+            int len = in.read(buf);
+            buf.flip();
+            if (len < 0)
+                throw new EOFException("Delta stream ended unexpectedly");
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package ftp;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Session and transfer events for plugins: metrics, audit, scanning uploads,
+ * webhooks. Events are written into a ring of ftp.events.ring slots allocated
+ * once, and every subscriber reads the ring on a thread of its own, so a slow
+ * plugin never holds up a session or a transfer. Publishing claims a slot with
+ * a compare and set and never waits: when the slowest subscriber is a whole
+ * ring behind, the event is dropped and counted instead.
+ *
+ * Subscribers named by ftp.events.subscribers, a comma separated list of class
+ * names with a public constructor without arguments, are started with the
+ * server. Progress of a transfer is published at most every
+ * ftp.events.progress.interval ms.
+ *
+ * The replies of a session still come from its own DataConnectionListener,
+ * called on the transfer thread, since they have to be sent in order with the
+ * commands. Other listeners can be put on the bus with subscribe(session,
+ * listener), by a subscriber that got the CONNECT of the session for example.
+ * They are all called from one shared subscriber and dropped when their
+ * session disconnects
+ */
+public class EventBus {
+
+    public enum Type {
+        CONNECT, LOGIN, LOGIN_FAILED, COMMAND, DATA_CONNECTION_FAILED, TRANSFER_START, TRANSFER_PROGRESS,
+        TRANSFER_COMPLETE, TRANSFER_ABORT, TRANSFER_REFUSED, DISCONNECT
+    }
+
+    /**
+     * Gets every event published after it subscribed, in order, on its own thread
+     */
+    public interface Subscriber {
+        /**
+         * @param event only valid during the call, the slot is reused afterwards
+         */
+        void onEvent(Event event);
+
+        /**
+         * Called on the delivery thread after the last event, once the bus is closed
+         */
+        default void onClose() {
+        }
+    }
+
+    /**
+     * A slot of the ring. Its fields are written before the sequence, so a
+     * subscriber that sees the sequence it waits for sees the whole event
+     */
+    public static class Event {
+        private volatile long sequence = -1L;
+        private Type type;
+        private long time;
+        private long session;
+        private InetAddress address;
+        private String user;
+        private String detail;
+        private long bytes;
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the number of the control connection, the same for all its events
+         */
+        public long getSession() {
+            return session;
+        }
+
+        /**
+         * @return the address of the client
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the user name, null before USER
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * @return the command line for COMMAND, what is transferred for the transfer
+         * events, the reason for DATA_CONNECTION_FAILED and TRANSFER_ABORT and the
+         * reply for TRANSFER_REFUSED, otherwise null
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * @return the bytes transferred so far, for TRANSFER_START the expected size or -1
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + " " + type + " session " + session + " " +
+                    (address == null ? "-" : address.getHostAddress()) + " " + (user == null ? "-" : user) +
+                    (detail == null ? "" : " " + detail) + (bytes != 0 ? " " + bytes + " bytes" : "");
+        }
+    }
+
+    private static final EventBus instance = new EventBus(
+            Config.get().getInt("ftp.events.ring", 8192), Config.get().get("ftp.events.subscribers", ""));
+    private static final AtomicLong sessions = new AtomicLong();
+
+    private final Event[] ring;
+    private final int mask;
+    /** The next sequence to claim */
+    private final AtomicLong claimed = new AtomicLong();
+    /** Copied on write, publishers read it without locking */
+    private volatile Delivery[] deliveries = new Delivery[0];
+    /** Listeners of each session, the lists are copied on write */
+    private final Map<Long, List<DataConnectionListener>> listeners = new ConcurrentHashMap<>();
+    private boolean dispatching = false;
+    /** The lowest cursor when last looked at, only looked at again when the ring seems full */
+    private volatile long gate = 0L;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private EventBus(int size, String subscribers) {
+        // a power of two, so a sequence finds its slot with a mask
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++)
+            ring[i] = new Event();
+        this.mask = capacity - 1;
+
+        for (String name : subscribers.split(",")) {
+            if (name.trim().isEmpty())
+                continue;
+            try {
+                subscribe((Subscriber) Class.forName(name.trim()).getDeclaredConstructor().newInstance());
+                System.out.println("* Event subscriber " + name.trim() + " started");
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                System.out.println("* Can't start event subscriber " + name.trim());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static EventBus getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the number of a new control connection
+     */
+    static long newSession() {
+        return sessions.incrementAndGet();
+    }
+
+    /**
+     * Starts delivering the events published from now on to a subscriber
+     */
+    public synchronized void subscribe(Subscriber subscriber) {
+        Delivery delivery = new Delivery(subscriber, claimed.get());
+        Delivery[] current = deliveries;
+        Delivery[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = delivery;
+        deliveries = next;
+        delivery.thread.start();
+    }
+
+    /**
+     * Calls a listener from the events of a session that is still connected,
+     * on the delivery thread of the shared Dispatcher, until the session
+     * disconnects or the listener is unsubscribed
+     */
+    public void subscribe(long session, DataConnectionListener listener) {
+        listeners.compute(session, (s, current) -> {
+            List<DataConnectionListener> next = current == null ? new ArrayList<>() : new ArrayList<>(current);
+            next.add(listener);
+            return next;
+        });
+        synchronized (this) {
+            if (!dispatching) {
+                dispatching = true;
+                subscribe(new Dispatcher());
+            }
+        }
+    }
+
+    public void unsubscribe(long session, DataConnectionListener listener) {
+        listeners.computeIfPresent(session, (s, current) -> {
+            List<DataConnectionListener> next = new ArrayList<>(current);
+            next.remove(listener);
+            return next.isEmpty() ? null : next;
+        });
+    }
+
+    /**
+     * Puts an event in the ring, never waits
+     */
+    void publish(Type type, long session, InetAddress address, String user, String detail, long bytes) {
+        Delivery[] current = deliveries;
+        if (current.length == 0)
+            return;
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - gate >= ring.length) {
+                // a subscriber added since current was read starts at the claimed sequence
+                gate = lowestCursor(deliveries);
+                if (sequence - gate >= ring.length) {
+                    dropped.increment();
+                    return;
+                }
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Event event = ring[(int) sequence & mask];
+        event.type = type;
+        event.time = System.currentTimeMillis();
+        event.session = session;
+        event.address = address;
+        event.user = user;
+        event.detail = detail;
+        event.bytes = bytes;
+        event.sequence = sequence;
+        published.increment();
+
+        for (Delivery delivery : current) {
+            if (delivery.parked)
+                LockSupport.unpark(delivery.thread);
+        }
+    }
+
+    private long lowestCursor(Delivery[] current) {
+        long lowest = Long.MAX_VALUE;
+        for (Delivery delivery : current)
+            lowest = Math.min(lowest, delivery.cursor);
+        return lowest;
+    }
+
+    /**
+     * Lets the subscribers take what was published, for a few seconds at most, and stops them.
+     * A subscriber still busy then goes on until it is done, or until the JVM exits
+     */
+    void close() {
+        Delivery[] current = deliveries;
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Delivery delivery : current) {
+            delivery.closing = true;
+            LockSupport.unpark(delivery.thread);
+        }
+        try {
+            for (Delivery delivery : current)
+                delivery.thread.join(Math.max(1L, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    String getStatistics() {
+        Delivery[] current = deliveries;
+        long behind = current.length == 0 ? 0L : claimed.get() - lowestCursor(current);
+        return "Events: " + published.sum() + " published, " + dropped.sum() + " dropped, " +
+                failures.sum() + " subscriber failures, " + current.length + " subscribers, " +
+                behind + " behind, " + listeners.size() + " sessions with listeners";
+    }
+
+    /**
+     * Calls the listeners of the session of each event. A data connection is
+     * negotiated when its command comes, so TRANSFER_START calls both
+     * actionNegotiated(true) and transferStarted()
+     */
+    private class Dispatcher implements Subscriber {
+        @Override
+        public void onEvent(Event event) {
+            List<DataConnectionListener> current = event.getType() == Type.DISCONNECT ?
+                    listeners.remove(event.getSession()) : listeners.get(event.getSession());
+            if (current == null)
+                return;
+            for (DataConnectionListener listener : current) {
+                switch (event.getType()) {
+                    case DATA_CONNECTION_FAILED:
+                        listener.actionNegotiated(false);
+                        break;
+                    case TRANSFER_START:
+                        listener.actionNegotiated(true);
+                        listener.transferStarted();
+                        break;
+                    case TRANSFER_COMPLETE:
+                        listener.transferCompleted(false);
+                        break;
+                    case TRANSFER_ABORT:
+                        listener.transferCompleted(true);
+                        break;
+                    case TRANSFER_REFUSED:
+                        listener.transferRefused(event.getDetail());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the ring for one subscriber. It spins a little before it parks,
+     * events come in bursts around commands and transfers
+     */
+    private class Delivery implements Runnable {
+        private final Subscriber subscriber;
+        private final Thread thread;
+        /** The next sequence to deliver, slots before it may be reused */
+        private volatile long cursor;
+        private volatile boolean parked = false;
+        private volatile boolean closing = false;
+
+        Delivery(Subscriber subscriber, long cursor) {
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+            this.thread = new Thread(this, "ftp-events-" + subscriber.getClass().getSimpleName());
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                long next = cursor;
+                Event event = ring[(int) next & mask];
+                if (event.sequence != next) {
+                    if (closing && claimed.get() == next)
+                        break;
+                    if (++idle < 100) {
+                        Thread.onSpinWait();
+                    } else if (idle < 200) {
+                        Thread.yield();
+                    } else {
+                        parked = true;
+                        // an event published before the flag was set would otherwise wait for the timeout
+                        if (event.sequence != next && !closing)
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                        parked = false;
+                    }
+                    continue;
+                }
+                idle = 0;
+                try {
+                    subscriber.onEvent(event);
+                } catch (RuntimeException e) {
+                    failures.increment();
+                    e.printStackTrace();
+                }
+                cursor = next + 1;
+            }
+            try {
+                subscriber.onClose();
+            } catch (RuntimeException e) {
+                failures.increment();
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ftp;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Metadata of a single entry as returned by a Storage
+ */
+class FileStat {
+
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long modified;
+
+    FileStat(String name, boolean directory, long size, long modified) {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    static FileStat of(String name, BasicFileAttributes attrs) {
+        return new FileStat(name, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isDirectory() {
+        return directory;
+    }
+
+    boolean isFile() {
+        return !directory;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getModified() {
+        return modified;
+    }
+}
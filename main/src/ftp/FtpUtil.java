@@ -2,16 +2,24 @@ package ftp;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.AbstractInterruptibleChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.LongConsumer;
 
 class FtpUtil {
 
     static final String FTP_COMMAND_NOOP = "NOOP";
     static final String FTP_COMMAND_MDTM = "MDTM";
     static final String FTP_COMMAND_EPRT = "EPRT";
+    static final String FTP_COMMAND_EPSV = "EPSV";
     static final String FTP_COMMAND_NLST = "NLST";
     static final String FTP_COMMAND_RMD = "RMD";
     static final String FTP_COMMAND_MKD = "MKD";
@@ -34,6 +42,39 @@ class FtpUtil {
     static final String FTP_COMMAND_CDUP = "CDUP";
     static final String FTP_COMMAND_SYST = "SYST";
     static final String FTP_COMMAND_RETR = "RETR";
+    static final String FTP_COMMAND_MODE = "MODE";
+    static final String FTP_COMMAND_RNFR = "RNFR";
+    static final String FTP_COMMAND_RNTO = "RNTO";
+    static final String FTP_COMMAND_SITE = "SITE";
+    static final String FTP_COMMAND_HASH = "HASH";
+    static final String FTP_COMMAND_ABOR = "ABOR";
+    static final String FTP_COMMAND_STAT = "STAT";
+    static final String FTP_COMMAND_PBSZ = "PBSZ";
+    static final String FTP_COMMAND_PROT = "PROT";
+
+    /**
+     * Extensions of file types that are already compressed, so deflating them
+     * in MODE Z only costs CPU
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "zip", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "war",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "ogg", "flac", "aac",
+            "mp4", "mkv", "avi", "mov", "webm", "docx", "xlsx", "pptx", "pdf"));
+
+    /** Largest single transferTo, so progress is reported while big files are sent */
+    private static final long TRANSFER_CHUNK = 512L * 1024;
+
+    /**
+     * Drops the Telnet IP and Synch sequences (IAC IP IAC DM) that clients send
+     * ahead of an urgent ABOR. The control connection has SO_OOBINLINE set, so
+     * they arrive in line with the command
+     */
+    static String stripTelnet(String line) {
+        int i = 0;
+        while (i < line.length() && (line.charAt(i) >= 0x80 || line.charAt(i) < 0x20))
+            i++;
+        return line.substring(i);
+    }
 
     static String[] split(String line) {
         String command;
@@ -55,7 +96,7 @@ class FtpUtil {
      * @param msg     the message to be written
      * @throws IOException thrown by channel.write() method call
      */
-    static void println(SocketChannel channel, String msg) throws IOException {
+    static void println(WritableByteChannel channel, String msg) throws IOException {
         System.out.println("<= " + msg);
         ByteBuffer buf = ByteBuffer.wrap((msg + "\r\n").getBytes("UTF-8"));
         while (buf.hasRemaining()) {
@@ -64,17 +105,47 @@ class FtpUtil {
         }
     }
 
-    static void readWriteOperation(ByteChannel readableChannel, ByteChannel writableChannel, ByteBuffer buffer)
+    static boolean isCompressedFileType(String name) {
+        int i = name.lastIndexOf('.');
+        return i != -1 && COMPRESSED_EXTENSIONS.contains(name.substring(i + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    static long readWriteOperation(ReadableByteChannel readableChannel, WritableByteChannel writableChannel,
+                                   ByteBuffer buffer)
             throws IOException {
+        long total = 0L;
         while (true) {
             buffer.clear();
             int readlen = readableChannel.read(buffer);
             if (readlen < 1)
                 break;
+            total += readlen;
             buffer.flip();
             while (buffer.hasRemaining())
                 writableChannel.write(buffer);
         }
+        return total;
+    }
+
+    /**
+     * Sends the rest of a file from its current position using FileChannel.transferTo,
+     * which lets the kernel copy straight from the page cache to the socket
+     *
+     * @param progress told the number of bytes after every chunk
+     * @throws IOException also when the file was truncated while it was sent
+     */
+    static void transferOperation(FileChannel file, WritableByteChannel writableChannel, LongConsumer progress)
+            throws IOException {
+        long position = file.position();
+        long size = file.size();
+        while (position < size) {
+            long len = file.transferTo(position, Math.min(size - position, TRANSFER_CHUNK), writableChannel);
+            if (len <= 0)
+                throw new IOException("File was truncated at " + position + " of " + size + " bytes");
+            position += len;
+            progress.accept(len);
+        }
+        file.position(position);
     }
 
     static void setTransferComplete(boolean isNegotiable, List<DataConnectionListener> listeners) {
@@ -87,7 +158,7 @@ class FtpUtil {
         }
     }
 
-    static void releaseChannelResource(AbstractInterruptibleChannel resource) {
+    static void releaseChannelResource(Channel resource) {
         if (resource != null) {
             try {
                 resource.close();
@@ -0,0 +1,345 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of the MetadataIndex over a tree of -entries files, -width to a
+ * directory, every one with a name of its own so interning saves nothing:
+ *
+ * java -cp out ftp.IndexLoad [-entries 200000] [-width 1000] [-lookups 2000000]
+ *      [-commands 20000] [-config main/src/ftp.properties]
+ *
+ * It prints the heap the index takes once every directory is loaded, scaled to
+ * a million entries, next to the estimate of getStatistics(), and the time of a
+ * lookup through the index and through a stat call. Then a client sends SIZE,
+ * MDTM and CWD for random files to the server of the classpath started in this
+ * process with the index, and to one started in a second process without it,
+ * as ftp.index.enabled is read once per process. Both serve the same tree.
+ *
+ * It exits with 1 when a lookup through the index is slower than a stat call
+ */
+class IndexLoad {
+
+    private static final Pattern RATE = Pattern.compile("([0-9.]+) commands/s");
+
+    private final Path tree;
+    private final int entries;
+    private final int width;
+
+    private IndexLoad(Path tree, int entries, int width) {
+        this.tree = tree;
+        this.entries = entries;
+        this.width = width;
+    }
+
+    private String directory(int n) {
+        return String.format("d%05d", n / width);
+    }
+
+    private String file(int n) {
+        return directory(n) + "/file-" + n + ".dat";
+    }
+
+    private void generate() throws IOException {
+        for (int n = 0; n < entries; n++) {
+            if (n % width == 0)
+                Files.createDirectories(tree.resolve(directory(n)));
+            Files.createFile(tree.resolve(file(n)));
+        }
+    }
+
+    /**
+     * @return the heap in use after a few collections
+     */
+    private static long heap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Loads every directory into the index and prints the memory it took
+     */
+    private void memory(MetadataIndex index) throws IOException, InterruptedException {
+        long before = heap();
+        index.addRoot(tree.toFile());
+        long began = System.nanoTime();
+        for (int n = 0; n < entries; n++) {
+            if (index.stat(tree.resolve(file(n)).toFile()) == null)
+                throw new IOException("Index lost " + file(n));
+        }
+        long millis = (System.nanoTime() - began) / 1000000;
+        long bytes = heap() - before;
+        System.out.printf("* Loaded %d entries in %d ms: %s%n", entries, millis, index.getStatistics());
+        System.out.printf("* Heap: %.1f MB, %.1f MB per million entries%n", bytes / 1048576.0,
+                bytes / 1048576.0 * 1000000 / entries);
+    }
+
+    /**
+     * @return ns per lookup of random files, through the index or with a stat call
+     */
+    private double lookups(MetadataIndex index, int count, boolean indexed) throws IOException {
+        Random random = new Random(1);
+        File[] files = new File[4096];
+        for (int i = 0; i < files.length; i++)
+            files[i] = tree.resolve(file(random.nextInt(entries))).toFile();
+
+        long began = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            File f = files[i & (files.length - 1)];
+            FileStat stat = indexed ? index.stat(f) :
+                    FileStat.of(f.getName(), Files.readAttributes(f.toPath(), BasicFileAttributes.class));
+            if (stat == null || stat.isDirectory())
+                throw new IOException("Bad lookup of " + f);
+        }
+        return (System.nanoTime() - began) / (double) count;
+    }
+
+    /**
+     * Sends SIZE, MDTM and CWD for random files, after as many to warm up
+     *
+     * @return commands per second
+     */
+    private double commands(int port, int count) throws IOException {
+        try (Socket control = new Socket("127.0.0.1", port)) {
+            control.setSoTimeout(120000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+            expect(in, "220");
+            send(out, "USER bench");
+            expect(in, "331");
+            send(out, "PASS bench");
+            expect(in, "230");
+
+            Random random = new Random(2);
+            long began = 0L;
+            for (int round = 0; round < 2; round++) {
+                began = System.nanoTime();
+                for (int i = 0; i < count; i += 3) {
+                    int n = random.nextInt(entries);
+                    send(out, "SIZE /" + file(n));
+                    expect(in, "213");
+                    send(out, "MDTM /" + file(n));
+                    expect(in, "213");
+                    send(out, "CWD /" + directory(n));
+                    expect(in, "250");
+                }
+            }
+            send(out, "QUIT");
+            return count * 1e9 / (System.nanoTime() - began);
+        }
+    }
+
+    private static String expect(BufferedReader in, String code) throws IOException {
+        String line = in.readLine();
+        if (line == null)
+            throw new IOException("Connection closed");
+        // a multi-line reply ends with the code and a space
+        String first = line.length() >= 3 ? line.substring(0, 3) : line;
+        while (line.length() > 3 && line.charAt(3) == '-') {
+            line = in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed");
+            if (line.startsWith(first + " "))
+                break;
+        }
+        if (!line.startsWith(code))
+            throw new IOException("Expected " + code + ", got " + line);
+        return line;
+    }
+
+    private static void send(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * Runs this benchmark in another process, sending the commands to a server
+     * without the index
+     *
+     * @return its commands per second
+     */
+    private static double withoutIndex(Path root, String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(IndexLoad.class.getName());
+        command.addAll(Arrays.asList(args));
+        command.addAll(Arrays.asList("-index", "false", "-root", root.toString()));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        double rate = 0.0;
+        List<String> output = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = RATE.matcher(line);
+                if (line.startsWith("* Commands") && m.find())
+                    rate = Double.parseDouble(m.group(1));
+                output.add(line);
+            }
+        }
+        if (process.waitFor() != 0) {
+            output.forEach(System.out::println);
+            throw new IOException("Benchmark without the index failed");
+        }
+        return rate;
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    public static void main(String[] args) {
+        int entries = 200000;
+        int width = 1000;
+        int lookups = 2000000;
+        int commands = 20000;
+        String config = "main/src/ftp.properties";
+        boolean indexed = true;
+        Path given = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-entries":
+                    entries = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-width":
+                    width = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-lookups":
+                    lookups = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-commands":
+                    commands = Math.max(3, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-config":
+                    config = args[i + 1];
+                    break;
+                // for the second process
+                case "-index":
+                    indexed = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                case "-root":
+                    given = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.IndexLoad [-entries 200000] [-width 1000] " +
+                            "[-lookups 2000000] [-commands 20000] [-config main/src/ftp.properties]");
+                    return;
+            }
+        }
+
+        Path root = given;
+        int status = 0;
+        try {
+            if (root == null)
+                root = Files.createTempDirectory("ftp-index-load");
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Map<String, String> overrides = new HashMap<>();
+            overrides.put("ftp.port", Integer.toString(port));
+            overrides.put("ftp.home", root.toString());
+            overrides.put("ftp.storage", "local");
+            overrides.put("ftp.index.enabled", Boolean.toString(indexed));
+            overrides.put("ftp.listen.inherited", "false");
+            overrides.put("ftp.tls.required", "false");
+            overrides.put("ftp.config.watch", "false");
+            overrides.put("ftp.trace.dir", "");
+            overrides.put("ftp.xferlog.dir", "");
+            overrides.put("ftp.events.subscribers", "");
+            overrides.put("ftp.user.bench", "bench");
+            // before any other class of the server reads its settings
+            Config.load(config, overrides);
+
+            IndexLoad load = new IndexLoad(root.resolve("bench"), entries, width);
+            if (given == null) {
+                long began = System.nanoTime();
+                load.generate();
+                System.out.printf("* Made %d files in %d directories in %d ms%n", entries,
+                        (entries + width - 1) / width, (System.nanoTime() - began) / 1000000);
+
+                MetadataIndex index = MetadataIndex.getInstance();
+                load.memory(index);
+                // once to warm up
+                load.lookups(index, lookups, true);
+                load.lookups(index, lookups, false);
+                double fast = load.lookups(index, lookups, true);
+                double slow = load.lookups(index, lookups, false);
+                System.out.printf("* Lookup: %.0f ns through the index, %.0f ns with a stat call, %.1fx%n",
+                        fast, slow, slow / fast);
+                if (fast > slow) {
+                    System.out.println("* The index is slower than the file system");
+                    status = 1;
+                }
+            }
+
+            Server server = new Server(port, root.toString());
+            Thread thread = new Thread(server::start, "ftp-index-server");
+            thread.setDaemon(true);
+            thread.start();
+            for (int i = 0; ; i++) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    break;
+                } catch (IOException e) {
+                    if (i == 50)
+                        throw e;
+                    Thread.sleep(100);
+                }
+            }
+            double rate = load.commands(port, commands);
+            server.stop();
+            System.out.printf("* Commands %s index: %.0f commands/s%n", indexed ? "with" : "without", rate);
+
+            if (given == null) {
+                double without = withoutIndex(root, args);
+                System.out.printf("* Commands without index: %.0f commands/s, %.2fx with the index%n",
+                        without, rate / without);
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            try {
+                if (root != null && given == null)
+                    delete(root);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + root);
+            }
+        }
+        System.exit(status);
+    }
+}
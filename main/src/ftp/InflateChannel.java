@@ -0,0 +1,76 @@
+package ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Channel used to receive MODE Z uploads. The deflate stream written to it is
+ * inflated and written to the underlying channel. Closing it leaves the
+ * underlying channel open
+ */
+class InflateChannel implements WritableByteChannel {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final WritableByteChannel target;
+    private final Inflater inflater = new Inflater();
+    private ByteBuffer out;
+    private boolean open = true;
+
+    InflateChannel(WritableByteChannel target) {
+        this.target = target;
+        this.out = BufferPool.DEFAULT.acquire();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open)
+            throw new IOException("Inflate channel is closed");
+
+        int len = src.remaining();
+        inflater.setInput(src);
+        try {
+            while (!inflater.needsInput() && !inflater.finished()) {
+                out.clear();
+                int n = inflater.inflate(out);
+                out.flip();
+                while (out.hasRemaining())
+                    target.write(out);
+
+                if (n == 0 && inflater.needsDictionary())
+                    throw new IOException("Deflate stream requires a preset dictionary");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid MODE Z data", e);
+        }
+
+        // anything after the end of the deflate stream is discarded
+        if (inflater.finished())
+            src.position(src.limit());
+        inflater.setInput(EMPTY);
+        return len;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+
+        boolean truncated = !inflater.finished();
+        inflater.end();
+        BufferPool.DEFAULT.release(out);
+        out = null;
+
+        if (truncated)
+            throw new IOException("MODE Z stream ended before the end of the deflate data");
+    }
+}
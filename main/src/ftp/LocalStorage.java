@@ -0,0 +1,148 @@
+package ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Storage on the local file system. Lookups go through the MetadataIndex when
+ * it is enabled, and every change made here is reported to it
+ */
+class LocalStorage implements Storage {
+
+    private final MetadataIndex index = MetadataIndex.getInstance();
+
+    LocalStorage(File root) {
+        index.addRoot(root);
+    }
+
+    @Override
+    public FileStat stat(Path path) {
+        return index.stat(path.toFile());
+    }
+
+    @Override
+    public List<FileStat> list(Path dir) throws IOException {
+        if (!Files.isDirectory(dir))
+            return null;
+
+        List<FileStat> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                try {
+                    entries.add(FileStat.of(entry.getFileName().toString(),
+                            Files.readAttributes(entry, BasicFileAttributes.class)));
+                } catch (IOException e) {
+                    // removed while listing or a dangling link
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(FileStat::getName));
+        return entries;
+    }
+
+    @Override
+    public ReadableByteChannel openRead(Path path, long offset) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        file.position(offset);
+        return file;
+    }
+
+    @Override
+    public WritableByteChannel openWrite(Path path, long offset) throws IOException {
+        FileChannel file = offset == 0 ?
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING) :
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        file.position(offset);
+        index.update(path.toFile());
+        return new IndexedChannel(file, path.toFile());
+    }
+
+    @Override
+    public boolean delete(Path path) throws IOException {
+        boolean deleted;
+        try {
+            deleted = Files.deleteIfExists(path);
+        } catch (DirectoryNotEmptyException e) {
+            return false;
+        }
+        index.update(path.toFile());
+        return deleted;
+    }
+
+    @Override
+    public boolean mkdir(Path path) throws IOException {
+        boolean created = path.toFile().mkdir();
+        index.update(path.toFile());
+        return created;
+    }
+
+    @Override
+    public void rename(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // source and target are on different file systems
+            Files.move(from, to);
+        } finally {
+            index.update(from.toFile());
+            index.update(to.toFile());
+        }
+    }
+
+    @Override
+    public boolean hasSymbolicLinks() {
+        return true;
+    }
+
+    void updateIndex(Path path) {
+        index.update(path.toFile());
+    }
+
+    /**
+     * Lets the index pick up the final size of a stored file once it is closed
+     */
+    private class IndexedChannel implements WritableByteChannel {
+        private final FileChannel file;
+        private final File f;
+
+        IndexedChannel(FileChannel file, File f) {
+            this.file = file;
+            this.f = f;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return file.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                file.close();
+            } finally {
+                index.update(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Load test of the login throttle, against the server of the classpath started
+ * in this process. Members log in and out over and over, first alone and then
+ * while attackers guess the passwords of a few accounts, one of them a member's,
+ * from -sources addresses of 127.0.0.0/8 (which has to route to
+ * loopback, as on Linux). The latency of the members' logins is printed for
+ * both phases, with how many guesses were checked, turned down or banned:
+ *
+ * java -cp out ftp.LoginLoad [-seconds 10] [-members 4] [-attackers 40] [-sources 20]
+ *      [-config main/src/ftp.properties]
+ *
+ * It exits with 1 when the median login of the members took more than twice
+ * as long, and 5 ms more, during the attack. The member whose account is
+ * attacked is counted apart: having logged in before the attack, it skips the
+ * turns of the account by ftp.login.known
+ */
+class LoginLoad {
+
+    private static final String VICTIM = "member0";
+
+    private final int port;
+    private final int members;
+    private final int attackers;
+    private final int sources;
+    private volatile boolean attacking = false;
+
+    /** Login latency in microseconds, of members whose account isn't attacked and of the victim */
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> victim = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong memberFailures = new AtomicLong();
+    private final AtomicLong guesses = new AtomicLong();
+    private final AtomicLong turnedDown = new AtomicLong();
+    private final AtomicLong banned = new AtomicLong();
+
+    private LoginLoad(int port, int members, int attackers, int sources) {
+        this.port = port;
+        this.members = members;
+        this.attackers = attackers;
+        this.sources = sources;
+    }
+
+    /**
+     * Logs in as the member every 50 ms until the deadline
+     */
+    private void member(String user, long deadline) {
+        while (System.nanoTime() < deadline) {
+            long began = System.nanoTime();
+            try (Socket control = new Socket("127.0.0.1", port)) {
+                control.setSoTimeout(120000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(),
+                        StandardCharsets.US_ASCII));
+                Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+                reply(in);
+                send(out, "USER " + user);
+                reply(in);
+                send(out, "PASS member");
+                String reply = reply(in);
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - began);
+                if (!reply.startsWith("230")) {
+                    memberFailures.incrementAndGet();
+                } else {
+                    logins.incrementAndGet();
+                    (user.equals(VICTIM) ? victim : latencies).add(micros);
+                }
+                send(out, "QUIT");
+                reply(in);
+            } catch (IOException e) {
+                memberFailures.incrementAndGet();
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Guesses passwords of the account, over one connection after another, while attacking
+     */
+    private void attacker(int n) {
+        String source = "127.0.0." + (2 + n % sources);
+        String account = n % 3 == 0 ? VICTIM : "admin" + n % 3;
+        int guess = 0;
+        while (attacking) {
+            try (Socket control = new Socket()) {
+                control.bind(new InetSocketAddress(source, 0));
+                control.connect(new InetSocketAddress("127.0.0.1", port), 10000);
+                control.setSoTimeout(120000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(),
+                        StandardCharsets.US_ASCII));
+                Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+                if (!reply(in).startsWith("220")) {
+                    banned.incrementAndGet();
+                    Thread.sleep(200);
+                    continue;
+                }
+                while (attacking) {
+                    send(out, "USER " + account);
+                    if (!reply(in).startsWith("331"))
+                        break;
+                    send(out, "PASS guess" + guess++);
+                    String reply = reply(in);
+                    if (reply.startsWith("421")) {
+                        banned.incrementAndGet();
+                        break;
+                    }
+                    if (reply.startsWith("530 Too many"))
+                        turnedDown.incrementAndGet();
+                    else if (reply.startsWith("530"))
+                        guesses.incrementAndGet();
+                    else
+                        break;
+                }
+            } catch (IOException e) {
+                // the server closed the connection, start another
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the members for the time, with the attackers when attack is set
+     */
+    private void phase(long seconds, boolean attack) throws InterruptedException {
+        latencies.clear();
+        victim.clear();
+        List<Thread> threads = new ArrayList<>();
+        attacking = attack;
+        if (attack) {
+            for (int i = 0; i < attackers; i++) {
+                int n = i;
+                threads.add(new Thread(() -> attacker(n), "ftp-login-attacker-" + i));
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < members; i++) {
+            String user = "member" + i;
+            threads.add(new Thread(() -> member(user, deadline), "ftp-login-member-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            if (thread.getName().startsWith("ftp-login-member"))
+                thread.join();
+        }
+        attacking = false;
+    }
+
+    private static String reply(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null)
+            throw new IOException("Connection closed");
+        // a multi-line reply ends with the code and a space
+        String code = line.length() >= 3 ? line.substring(0, 3) : line;
+        while (line.length() > 3 && line.charAt(3) == '-') {
+            line = in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed");
+            if (line.startsWith(code + " "))
+                break;
+        }
+        return line;
+    }
+
+    private static void send(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * @return the percentile of the latencies in ms, 0 when there are none
+     */
+    private static double percentile(List<Long> latencies, double p) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        if (sorted.isEmpty())
+            return 0.0;
+        sorted.sort(Comparator.naturalOrder());
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p))) / 1000.0;
+    }
+
+    private static String summary(List<Long> latencies) {
+        return String.format("%d logins, median %.1f ms, p95 %.1f ms, p99 %.1f ms", latencies.size(),
+                percentile(latencies, 0.5), percentile(latencies, 0.95), percentile(latencies, 0.99));
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    public static void main(String[] args) {
+        long seconds = 10;
+        int members = 4;
+        int attackers = 40;
+        int sources = 20;
+        String config = "main/src/ftp.properties";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-seconds":
+                    seconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "-members":
+                    members = Math.max(2, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-attackers":
+                    attackers = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-sources":
+                    sources = Math.max(1, Math.min(Integer.parseInt(args[i + 1]), 250));
+                    break;
+                case "-config":
+                    config = args[i + 1];
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.LoginLoad [-seconds 10] [-members 4] [-attackers 40] " +
+                            "[-sources 20] [-config main/src/ftp.properties]");
+                    return;
+            }
+        }
+
+        Path root = null;
+        int status = 0;
+        try {
+            root = Files.createTempDirectory("ftp-login-load");
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Map<String, String> overrides = new HashMap<>();
+            overrides.put("ftp.port", Integer.toString(port));
+            overrides.put("ftp.home", root.toString());
+            overrides.put("ftp.storage", "local");
+            overrides.put("ftp.sessions.max", "1000000");
+            overrides.put("ftp.sessions.max.per.ip", "1000000");
+            overrides.put("ftp.listen.inherited", "false");
+            overrides.put("ftp.tls.required", "false");
+            overrides.put("ftp.config.watch", "false");
+            overrides.put("ftp.trace.dir", "");
+            overrides.put("ftp.xferlog.dir", "");
+            overrides.put("ftp.events.subscribers", "");
+            for (int i = 0; i < members; i++) {
+                overrides.put("ftp.user.member" + i, "member");
+                Files.createDirectories(root.resolve("member" + i));
+            }
+            // before any other class of the server reads its settings
+            Config.load(config, overrides);
+
+            Server server = new Server(port, root.toString());
+            Thread thread = new Thread(server::start, "ftp-login-server");
+            thread.setDaemon(true);
+            thread.start();
+            for (int i = 0; ; i++) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    break;
+                } catch (IOException e) {
+                    if (i == 50)
+                        throw e;
+                    Thread.sleep(100);
+                }
+            }
+
+            LoginLoad load = new LoginLoad(port, members, attackers, sources);
+            load.phase(seconds, false);
+            List<Long> before = new ArrayList<>(load.latencies);
+            System.out.println("* Without attack: " + summary(before));
+            System.out.println("* Victim without attack: " + summary(load.victim));
+
+            load.phase(seconds, true);
+            List<Long> during = new ArrayList<>(load.latencies);
+            System.out.println("* During attack: " + summary(during));
+            System.out.println("* Victim during attack: " + summary(load.victim));
+            System.out.printf("* Attackers: %d guesses checked (%.1f/s), %d turned down, %d times banned%n",
+                    load.guesses.get(), load.guesses.get() / (double) seconds, load.turnedDown.get(),
+                    load.banned.get());
+            System.out.println("* Members: " + load.logins.get() + " logins, " + load.memberFailures.get() +
+                    " failed");
+            server.drain(5000);
+
+            List<Long> all = new ArrayList<>(during);
+            all.addAll(load.victim);
+            if (percentile(all, 0.5) > 2 * percentile(before, 0.5) + 5.0) {
+                System.out.println("* Logins of members slowed down during the attack");
+                status = 1;
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            try {
+                if (root != null)
+                    delete(root);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + root);
+            }
+        }
+        System.exit(status);
+    }
+}
@@ -0,0 +1,361 @@
+package ftp;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Slows down password guessing. Failed logins are counted per client address
+ * and per account in a count-min sketch of 4 rows of ftp.login.sketch.width
+ * counters, so the memory taken is the same however many addresses an attack
+ * comes from. Counts cover a sliding window of ftp.login.window ms: the window
+ * before the current one is weighted by how much of it is still inside.
+ *
+ * After ftp.login.free failures of an address or an account, its passwords are
+ * checked one at a time, ftp.login.delay ms apart and twice as far apart for
+ * each further failure, up to ftp.login.delay.max. A PASS waits for its turn
+ * before the password is checked, and the reply goes out as soon as it is, so
+ * a right and a wrong password take the same time. Turns are kept across
+ * connections, so opening more of them doesn't guess faster, and a PASS with
+ * no turn within ftp.login.delay.max is refused unchecked after waiting that
+ * long. An address that logged in to an account within ftp.login.known ms only
+ * waits for the turns of the address, so users keep logging in while their
+ * account is being guessed at from elsewhere. An address with
+ * ftp.login.ban.failures failures is turned away at accept time for
+ * ftp.login.ban.time ms.
+ *
+ * IPv6 clients are counted by their /64 network, which they get whole
+ */
+class LoginThrottle {
+
+    private static final int ROWS = 4;
+    /** Returned by reserve when a password isn't checked at all */
+    static final long REFUSED = Long.MAX_VALUE;
+
+    private static final LoginThrottle instance = new LoginThrottle();
+
+    /** Parsed again once the configuration is reloaded */
+    private volatile Settings settings = new Settings(Config.get());
+
+    private final int width;
+    /** Chosen at startup, so nobody can pick keys that land on the counters of others */
+    private final long[] seeds = new long[ROWS + 1];
+    private final AtomicReference<Windows> windows;
+    /**
+     * When the next password of a key may be checked, in ms since the epoch,
+     * in the same rows as the counts. A key's time is the lowest of its cells,
+     * other keys only ever move a cell later
+     */
+    private final AtomicLongArray turns;
+    /** When an address last logged in to an account, in the same rows */
+    private final AtomicLongArray known;
+    /** Addresses turned away until the time they map to */
+    private final ConcurrentHashMap<InetAddress, Long> banned = new ConcurrentHashMap<>();
+
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder turnedDown = new LongAdder();
+    private final LongAdder bans = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    private LoginThrottle() {
+        this.width = Integer.highestOneBit(Math.max(Config.get().getInt("ftp.login.sketch.width", 4096), 2) - 1) << 1;
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < seeds.length; i++)
+            seeds[i] = random.nextLong();
+        long now = System.currentTimeMillis();
+        long window = settings.window;
+        this.windows = new AtomicReference<>(new Windows(new Window(now, width), new Window(now - window, width)));
+        this.turns = new AtomicLongArray(ROWS * width);
+        this.known = new AtomicLongArray(ROWS * width);
+    }
+
+    static LoginThrottle getInstance() {
+        return instance;
+    }
+
+    /**
+     * Takes the next turn to check a password of the address and the account,
+     * call before checking it
+     *
+     * @param user the name given with USER
+     * @return how many ms to wait before checking the password, 0 to check it at
+     * once, or REFUSED when there is no turn within ftp.login.delay.max
+     */
+    long reserve(InetAddress address, String user) {
+        Settings settings = settings();
+        long now = System.currentTimeMillis();
+        long bySource = sourceKey(address);
+        long byUser = userKey(user);
+        boolean trusted = lowest(known, pairKey(byUser, address)) >= now - settings.knownTime;
+        Windows current = windows(now);
+        long spacing = settings.delay(Math.max(current.count(bySource), trusted ? 0L : current.count(byUser)));
+        if (spacing == 0)
+            return 0L;
+
+        long at = Math.max(now, Math.max(lowest(turns, bySource), trusted ? 0L : lowest(turns, byUser)));
+        if (at - now > settings.maxDelay) {
+            turnedDown.increment();
+            return REFUSED;
+        }
+        // two sessions reserving at the same moment may share a turn
+        raise(turns, bySource, at + spacing);
+        if (!trusted)
+            raise(turns, byUser, at + spacing);
+        if (at > now)
+            delayed.increment();
+        return at - now;
+    }
+
+    /**
+     * Counts a failed login
+     *
+     * @param user the name given with USER
+     * @return whether the address is banned from now on
+     */
+    boolean failed(InetAddress address, String user) {
+        failures.increment();
+        Windows current = windows(System.currentTimeMillis());
+        long bySource = current.add(sourceKey(address));
+        current.add(userKey(user));
+        int banFailures = settings().banFailures;
+        return banFailures > 0 && bySource >= banFailures && ban(source(address));
+    }
+
+    /**
+     * Remembers a login, so the address skips the turns of the account for ftp.login.known ms
+     */
+    void succeeded(InetAddress address, String user) {
+        if (settings().knownTime > 0)
+            raise(known, pairKey(userKey(user), address), System.currentTimeMillis());
+    }
+
+    long getMaxDelay() {
+        return settings().maxDelay;
+    }
+
+    /**
+     * @return the settings of the configuration in effect
+     */
+    private Settings settings() {
+        Config config = Config.get();
+        Settings current = settings;
+        if (current.config != config) {
+            current = new Settings(config);
+            settings = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return the time of a key in a sketch of times, the lowest of its cells
+     */
+    private long lowest(AtomicLongArray times, long key) {
+        long at = Long.MAX_VALUE;
+        for (int row = 0; row < ROWS; row++)
+            at = Math.min(at, times.get(cell(row, key)));
+        return at;
+    }
+
+    private void raise(AtomicLongArray times, long key, long at) {
+        for (int row = 0; row < ROWS; row++)
+            times.accumulateAndGet(cell(row, key), at, Math::max);
+    }
+
+    private long sourceKey(InetAddress address) {
+        return hash(seeds[ROWS], source(address).getAddress());
+    }
+
+    /**
+     * Seeded differently, an account name can't count for an address
+     */
+    private long userKey(String user) {
+        return hash(~seeds[ROWS], user.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long pairKey(long userKey, InetAddress address) {
+        return hash(userKey, source(address).getAddress());
+    }
+
+    private int cell(int row, long key) {
+        return row * width + (int) (mix(key ^ seeds[row]) & (width - 1));
+    }
+
+    /**
+     * @return whether connections from the address are turned away, counting those that are
+     */
+    boolean isBanned(InetAddress address) {
+        if (banned.isEmpty())
+            return false;
+        InetAddress source = source(address);
+        Long until = banned.get(source);
+        if (until == null)
+            return false;
+        if (until < System.currentTimeMillis()) {
+            banned.remove(source, until);
+            return false;
+        }
+        refused.increment();
+        return true;
+    }
+
+    private boolean ban(InetAddress source) {
+        Settings settings = settings();
+        int maxBans = settings.maxBans;
+        long banTime = settings.banTime;
+        long now = System.currentTimeMillis();
+        if (banned.size() >= maxBans)
+            banned.values().removeIf(until -> until < now);
+        // when still full the address is only slowed down
+        if (banned.size() >= maxBans)
+            return false;
+        if (banned.put(source, now + banTime) == null) {
+            bans.increment();
+            System.out.println("* Banned " + source.getHostAddress() + " for " + banTime / 1000 +
+                    " seconds after repeated failed logins");
+        }
+        return true;
+    }
+
+    String getStatistics() {
+        return "Logins: " + failures.sum() + " failed, " + delayed.sum() + " delayed, " + turnedDown.sum() +
+                " turned down, " + bans.sum() + " bans, " + banned.size() + " banned now, " + refused.sum() +
+                " connections refused";
+    }
+
+    /**
+     * @return the windows for the time, the current one started within the last window
+     */
+    private Windows windows(long now) {
+        long window = settings().window;
+        while (true) {
+            Windows current = windows.get();
+            long age = now - current.current.start;
+            if (age < window)
+                return current;
+            // a whole window without a failure leaves nothing worth keeping
+            Windows next = age < 2 * window ?
+                    new Windows(new Window(current.current.start + window, width), current.current) :
+                    new Windows(new Window(now, width), new Window(now - window, width));
+            if (windows.compareAndSet(current, next))
+                return next;
+        }
+    }
+
+    private static long hash(long h, byte[] key) {
+        for (byte b : key)
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * @return the address counted for a client, the /64 network for IPv6
+     */
+    private static InetAddress source(InetAddress address) {
+        if (!(address instanceof Inet6Address))
+            return address;
+        try {
+            return InetAddress.getByAddress(Arrays.copyOf(Arrays.copyOf(address.getAddress(), 8), 16));
+        } catch (UnknownHostException e) {
+            return address;
+        }
+    }
+
+    private static class Settings {
+        final Config config;
+        final long window;
+        final int free;
+        final long delay;
+        final long maxDelay;
+        final int banFailures;
+        final long banTime;
+        final int maxBans;
+        final long knownTime;
+
+        Settings(Config config) {
+            this.config = config;
+            this.window = Math.max(config.getLong("ftp.login.window", 600000L), 1000L);
+            this.free = config.getInt("ftp.login.free", 3);
+            this.delay = config.getLong("ftp.login.delay", 1000L);
+            this.maxDelay = config.getLong("ftp.login.delay.max", 30000L);
+            this.banFailures = config.getInt("ftp.login.ban.failures", 30);
+            this.banTime = config.getLong("ftp.login.ban.time", 900000L);
+            this.maxBans = config.getInt("ftp.login.ban.max", 10000);
+            this.knownTime = config.getLong("ftp.login.known", 86400000L);
+        }
+
+        /**
+         * @return how far apart the passwords of a key with count failures are checked
+         */
+        long delay(long count) {
+            if (count <= free)
+                return 0L;
+            // doubles from delay, the shift is capped before it could overflow
+            return Math.min(delay << Math.min(count - free - 1, 30), maxDelay);
+        }
+    }
+
+    private static class Window {
+        final long start;
+        final AtomicLongArray counts;
+
+        Window(long start, int width) {
+            this.start = start;
+            this.counts = new AtomicLongArray(ROWS * width);
+        }
+    }
+
+    private class Windows {
+        final Window current;
+        final Window previous;
+
+        Windows(Window current, Window previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+
+        /**
+         * Counts one for the key in every row
+         *
+         * @return the estimated count in the sliding window
+         */
+        long add(long key) {
+            return estimate(key, 1);
+        }
+
+        /**
+         * @return the estimated count of the key in the sliding window
+         */
+        long count(long key) {
+            return estimate(key, 0);
+        }
+
+        private long estimate(long key, int add) {
+            long inCurrent = Long.MAX_VALUE;
+            long inPrevious = Long.MAX_VALUE;
+            for (int row = 0; row < ROWS; row++) {
+                int i = cell(row, key);
+                inCurrent = Math.min(inCurrent, current.counts.addAndGet(i, add));
+                inPrevious = Math.min(inPrevious, previous.counts.get(i));
+            }
+            long window = settings().window;
+            long left = Math.max(0L, window - (System.currentTimeMillis() - current.start));
+            return inCurrent + inPrevious * left / window;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage kept entirely in memory, with file contents in off-heap chunks. Used
+ * for scratch and exchange areas, and to load test the protocol handling without
+ * any disk I/O. Contents are shared by every session using the same root and are
+ * lost when the server stops.
+ *
+ * All memory stores together hold at most ftp.memory.max bytes of chunks, 0 for
+ * no limit. A write that would need more is refused with 552, as is one that
+ * the JVM has no direct memory left for
+ */
+class MemoryStorage implements Storage {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final Map<Path, MemoryStorage> stores = new HashMap<>();
+    /** Bytes of chunks held by all stores */
+    private static final AtomicLong allocated = new AtomicLong();
+
+    private final Path root;
+    private final Node top = new Node(true);
+
+    private MemoryStorage(Path root) {
+        this.root = root;
+    }
+
+    static MemoryStorage forRoot(Path root) {
+        Path key = root.toAbsolutePath().normalize();
+        synchronized (stores) {
+            return stores.computeIfAbsent(key, MemoryStorage::new);
+        }
+    }
+
+    @Override
+    public FileStat stat(Path path) {
+        Node node = find(path);
+        if (node == null)
+            return null;
+        Path name = path.getFileName();
+        return node.stat(name == null ? "/" : name.toString());
+    }
+
+    @Override
+    public List<FileStat> list(Path dir) {
+        Node node = find(dir);
+        if (node == null || !node.directory)
+            return null;
+
+        List<FileStat> entries = new ArrayList<>();
+        for (Map.Entry<String, Node> entry : node.children.entrySet())
+            entries.add(entry.getValue().stat(entry.getKey()));
+        return entries;
+    }
+
+    @Override
+    public SeekableByteChannel openRead(Path path, long offset) throws IOException {
+        Node node = find(path);
+        if (node == null || node.directory)
+            throw new NoSuchFileException(path.toString());
+        return new NodeChannel(node, offset, false);
+    }
+
+    @Override
+    public synchronized WritableByteChannel openWrite(Path path, long offset) throws IOException {
+        Node parent = find(path.getParent());
+        if (parent == null || !parent.directory)
+            throw new NoSuchFileException(path.toString());
+
+        String name = path.getFileName().toString();
+        Node node = parent.children.get(name);
+        if (node == null) {
+            node = new Node(false);
+            parent.children.put(name, node);
+        } else if (node.directory) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+
+        if (offset == 0)
+            node.truncate(0);
+        return new NodeChannel(node, offset, true);
+    }
+
+    @Override
+    public synchronized boolean delete(Path path) throws IOException {
+        Node parent = find(path.getParent());
+        if (parent == null || path.getFileName() == null)
+            return false;
+
+        String name = path.getFileName().toString();
+        Node node = parent.children.get(name);
+        if (node == null)
+            return false;
+        if (node.directory && !node.children.isEmpty())
+            return false;
+
+        parent.children.remove(name);
+        node.release();
+        parent.touch();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean mkdir(Path path) {
+        Node parent = find(path.getParent());
+        if (parent == null || !parent.directory || path.getFileName() == null)
+            return false;
+
+        if (parent.children.putIfAbsent(path.getFileName().toString(), new Node(true)) != null)
+            return false;
+        parent.touch();
+        return true;
+    }
+
+    @Override
+    public synchronized void rename(Path from, Path to) throws IOException {
+        Node fromParent = find(from.getParent());
+        Node toParent = find(to.getParent());
+        if (fromParent == null || from.getFileName() == null || !fromParent.children.containsKey(from.getFileName().toString()))
+            throw new NoSuchFileException(from.toString());
+        if (toParent == null || !toParent.directory || to.getFileName() == null)
+            throw new NoSuchFileException(to.toString());
+        if (to.startsWith(from))
+            throw new IOException("Can't move a directory into itself");
+
+        Node node = fromParent.children.remove(from.getFileName().toString());
+        Node replaced = toParent.children.put(to.getFileName().toString(), node);
+        if (replaced != null)
+            replaced.release();
+        fromParent.touch();
+        toParent.touch();
+    }
+
+    @Override
+    public boolean hasSymbolicLinks() {
+        return false;
+    }
+
+    /**
+     * @return false, reserving nothing, if bytes more would be over ftp.memory.max
+     */
+    private static boolean reserve(long bytes) {
+        long max = Config.get().getLong("ftp.memory.max", 256L * 1024 * 1024);
+        while (true) {
+            long n = allocated.get();
+            if (max > 0 && n + bytes > max)
+                return false;
+            if (allocated.compareAndSet(n, n + bytes))
+                return true;
+        }
+    }
+
+    private static Quota.ExceededException full() {
+        return new Quota.ExceededException("552 Memory store is full, the limit is " +
+                Config.get().getLong("ftp.memory.max", 256L * 1024 * 1024) / 1024 + " KB.");
+    }
+
+    private Node find(Path path) {
+        if (path == null || !path.startsWith(root))
+            return null;
+
+        Node node = top;
+        for (Path segment : root.relativize(path)) {
+            String name = segment.toString();
+            if (name.isEmpty())
+                continue;
+            if (!node.directory)
+                return null;
+            node = node.children.get(name);
+            if (node == null)
+                return null;
+        }
+        return node;
+    }
+
+    private static class Node {
+        final boolean directory;
+        final ConcurrentSkipListMap<String, Node> children;
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        volatile long size = 0L;
+        volatile long modified = System.currentTimeMillis();
+        /** Set once removed, writes still open on it get no more memory */
+        boolean released = false;
+
+        Node(boolean directory) {
+            this.directory = directory;
+            this.children = directory ? new ConcurrentSkipListMap<>() : null;
+        }
+
+        FileStat stat(String name) {
+            return new FileStat(name, directory, directory ? 4096 : size, modified);
+        }
+
+        void touch() {
+            modified = System.currentTimeMillis();
+        }
+
+        synchronized void truncate(long length) {
+            long keep = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            while (chunks.size() > keep) {
+                chunks.remove(chunks.size() - 1);
+                allocated.addAndGet(-CHUNK_SIZE);
+            }
+            if (keep > 0 && keep <= chunks.size() && length < size) {
+                // zero the tail so growing the file again doesn't bring old data back
+                ByteBuffer last = chunks.get((int) keep - 1);
+                for (int i = (int) (length - (keep - 1) * CHUNK_SIZE); i < CHUNK_SIZE; i++)
+                    last.put(i, (byte) 0);
+            }
+            size = Math.min(size, length);
+            touch();
+        }
+
+        synchronized int read(long position, ByteBuffer dst) {
+            if (position >= size)
+                return -1;
+
+            int total = 0;
+            while (dst.hasRemaining() && position < size) {
+                int off = (int) (position % CHUNK_SIZE);
+                int len = (int) Math.min(Math.min(CHUNK_SIZE - off, size - position), dst.remaining());
+                ByteBuffer src = chunks.get((int) (position / CHUNK_SIZE)).duplicate();
+                src.limit(off + len).position(off);
+                dst.put(src);
+                position += len;
+                total += len;
+            }
+            return total;
+        }
+
+        /**
+         * Drops the contents of a node that was removed, with those of its children
+         */
+        synchronized void release() {
+            released = true;
+            allocated.addAndGet(-(long) chunks.size() * CHUNK_SIZE);
+            chunks.clear();
+            if (directory) {
+                for (Node child : children.values())
+                    child.release();
+            }
+        }
+
+        /**
+         * Adds the chunks up to the one holding position, zero filled
+         */
+        private void allocate(long position) throws IOException {
+            long missing = position / CHUNK_SIZE + 1 - chunks.size();
+            if (missing <= 0)
+                return;
+            if (released)
+                throw new IOException("File was removed while it was written");
+            if (position / CHUNK_SIZE >= Integer.MAX_VALUE || !reserve(missing * CHUNK_SIZE))
+                throw full();
+            try {
+                for (; missing > 0; missing--)
+                    chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+            } catch (OutOfMemoryError e) {
+                allocated.addAndGet(-missing * CHUNK_SIZE);
+                throw full();
+            }
+        }
+
+        synchronized int write(long position, ByteBuffer src) throws IOException {
+            int total = src.remaining();
+            if (total > 0)
+                allocate(position + total - 1);
+            while (src.hasRemaining()) {
+                int index = (int) (position / CHUNK_SIZE);
+
+                int off = (int) (position % CHUNK_SIZE);
+                int len = Math.min(CHUNK_SIZE - off, src.remaining());
+                ByteBuffer dst = chunks.get(index).duplicate();
+                dst.position(off);
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + len);
+                dst.put(part);
+                src.position(src.position() + len);
+                position += len;
+            }
+            if (position > size)
+                size = position;
+            touch();
+            return total;
+        }
+    }
+
+    private static class NodeChannel implements SeekableByteChannel {
+        private final Node node;
+        private final boolean writable;
+        private long position;
+        private boolean open = true;
+
+        NodeChannel(Node node, long position, boolean writable) {
+            this.node = node;
+            this.position = position;
+            this.writable = writable;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            int len = node.read(position, dst);
+            if (len > 0)
+                position += len;
+            return len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ensureOpen();
+            if (!writable)
+                throw new NonWritableChannelException();
+            int len = node.write(position, src);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            this.position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return node.size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            if (!writable)
+                throw new NonWritableChannelException();
+            node.truncate(size);
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+        }
+    }
+}
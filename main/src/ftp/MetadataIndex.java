@@ -0,0 +1,602 @@
+package ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory copy of the metadata (type, size, modification time) of the served
+ * trees, so LocalStorage can answer SIZE, MDTM, CWD, RETR and DELE without stat calls.
+ *
+ * A directory is read the first time something below it is looked up and is
+ * then kept current by a WatchService and by the server's own changes, reported
+ * through update(). The directory is listed without holding the index's lock,
+ * so lookups of other sessions don't wait for a cold directory; it is watched
+ * before it is listed, and the changes seen meanwhile are read again when the
+ * listing is put in. A directory that can't be watched, past the inotify limit
+ * most likely, isn't read at all: lookups below it stat the file, and it is
+ * tried again once another watch is given up. Entries are kept in parallel
+ * primitive arrays, with file names interned so each distinct name is only
+ * stored once, and found through an open addressing table keyed by (parent,
+ * name). The entries of a directory are chained, so reading it again only
+ * touches its own entries, and the slots of entries that are gone are reused,
+ * as are those of names no entry has anymore.
+ *
+ * Paths outside the registered roots, and every path when the index is disabled
+ * with ftp.index.enabled, are answered from the file system
+ */
+class MetadataIndex {
+
+    private static final MetadataIndex instance =
+            new MetadataIndex(Config.get().getBoolean("ftp.index.enabled", false));
+
+    private static final int MISSING = -1;
+    /** Returned by find() for paths outside the roots or below a directory that can't be watched */
+    private static final int OUTSIDE = -2;
+    /** Returned by find() when a directory on the way has to be read first */
+    private static final int UNLOADED = -3;
+
+    /** Lookups that keep finding directories to read give up and stat the file */
+    private static final int MAX_LOADS = 16;
+
+    private static final byte FLAG_DIRECTORY = 1;
+    private static final byte FLAG_LOADED = 2;
+    private static final byte FLAG_DELETED = 4;
+    private static final byte FLAG_FREE = 8;
+
+    private final boolean enabled;
+    private final List<Path> rootPaths = new ArrayList<>();
+    private final List<Integer> rootIds = new ArrayList<>();
+
+    /** Ids handed out so far, including the free ones */
+    private int count = 0;
+    private int freeCount = 0;
+    /** First free id, the free ids are chained through nextSibling */
+    private int firstFree = MISSING;
+    private int[] parents = new int[1024];
+    private int[] names = new int[1024];
+    private long[] sizes = new long[1024];
+    private long[] modified = new long[1024];
+    private byte[] flags = new byte[1024];
+    private int[] firstChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+    private int[] prevSibling = new int[1024];
+
+    /** Entry id + 1 per slot, 0 for an empty slot */
+    private int[] slots = new int[2048];
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private String[] nameTable = new String[1024];
+    /** Entries per name, a name is freed with the last one */
+    private int[] nameRefs = new int[1024];
+    private int nameCount = 0;
+    private int[] freeNames = new int[64];
+    private int freeNameCount = 0;
+
+    private WatchService watcher;
+    private final Map<WatchKey, Integer> watchedDirectories = new HashMap<>();
+    private final Map<Integer, WatchKey> watchKeys = new HashMap<>();
+    /** Directories whose watch failed, not read until a watch is given up */
+    private final Set<Integer> unwatchable = new HashSet<>();
+    private boolean watchFailed = false;
+
+    /** Directories being listed outside the lock */
+    private final Map<Integer, Load> loading = new HashMap<>();
+    /** The directory find() last returned UNLOADED for */
+    private int unloaded;
+    private Path unloadedPath;
+
+    private MetadataIndex(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    static MetadataIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts indexing a directory tree. Nothing is read until it is first looked up
+     */
+    synchronized void addRoot(File root) {
+        if (!enabled)
+            return;
+
+        Path path = root.toPath().toAbsolutePath().normalize();
+        for (Path p : rootPaths) {
+            if (path.startsWith(p))
+                return;
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return;
+        }
+
+        int id = add(-1, path.toString());
+        set(id, attrs);
+        rootPaths.add(path);
+        rootIds.add(id);
+    }
+
+    /**
+     * @return the metadata of the file, or null if it doesn't exist
+     */
+    FileStat stat(File f) {
+        for (int loads = 0; enabled && loads < MAX_LOADS; loads++) {
+            int dir;
+            Load load;
+            synchronized (this) {
+                int id = lookup(f);
+                if (id == MISSING)
+                    return null;
+                if (id == OUTSIDE)
+                    break;
+                if (id != UNLOADED)
+                    return new FileStat(nameTable[names[id]], (flags[id] & FLAG_DIRECTORY) != 0, sizes[id], modified[id]);
+                dir = unloaded;
+                load = startLoad(dir, unloadedPath);
+                if (load == null)
+                    break;
+            }
+
+            // the I/O happens outside the lock, then the next round finds it loaded
+            List<FileStat> entries = list(load.path);
+            synchronized (this) {
+                if (entries == null)
+                    break;
+                publish(dir, load, entries);
+            }
+        }
+
+        try {
+            return FileStat.of(f.getName(), Files.readAttributes(f.toPath(), BasicFileAttributes.class));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Re-reads a single path after this server changed it (STOR, DELE, MKD, RMD, rename...)
+     */
+    synchronized void update(File f) {
+        if (!enabled)
+            return;
+
+        Path path = f.toPath().toAbsolutePath().normalize();
+        Path parent = path.getParent();
+        if (parent == null || path.getFileName() == null)
+            return;
+
+        int dir = find(parent, false);
+        if (dir >= 0 && (flags[dir] & FLAG_LOADED) != 0)
+            refresh(dir, parent, path.getFileName().toString());
+    }
+
+    /**
+     * @return the number of entries and an estimate of the memory they use
+     */
+    synchronized String getStatistics() {
+        long bytes = (long) parents.length * (4 + 4 + 8 + 8 + 1 + 4 + 4 + 4) + slots.length * 4L +
+                nameTable.length * 8L;
+        for (String name : nameIds.keySet())
+            bytes += 40 + name.length();
+        return (count - freeCount) + " entries, " + nameIds.size() + " names, ~" + (bytes / 1024) + " KB";
+    }
+
+    private int lookup(File f) {
+        if (!enabled)
+            return OUTSIDE;
+        return find(f.toPath().toAbsolutePath().normalize(), true);
+    }
+
+    /**
+     * Walks down from the root containing the path, reading directories that
+     * haven't been loaded yet if load is set
+     */
+    private int find(Path path, boolean load) {
+        for (int r = 0; r < rootPaths.size(); r++) {
+            Path root = rootPaths.get(r);
+            if (!path.startsWith(root))
+                continue;
+
+            int id = rootIds.get(r);
+            if ((flags[id] & FLAG_DELETED) != 0)
+                return MISSING;
+
+            Path dir = root;
+            for (Path segment : root.relativize(path)) {
+                String name = segment.toString();
+                if (name.isEmpty())
+                    continue;
+                if ((flags[id] & FLAG_DIRECTORY) == 0)
+                    return MISSING;
+                if ((flags[id] & FLAG_LOADED) == 0) {
+                    if (!load)
+                        return MISSING;
+                    if (unwatchable.contains(id))
+                        return OUTSIDE;
+                    unloaded = id;
+                    unloadedPath = dir;
+                    return UNLOADED;
+                }
+
+                Integer nameId = nameIds.get(name);
+                id = nameId == null ? MISSING : child(id, nameId);
+                if (id == MISSING || (flags[id] & FLAG_DELETED) != 0)
+                    return MISSING;
+                dir = dir.resolve(name);
+            }
+            return id;
+        }
+        return OUTSIDE;
+    }
+
+    /**
+     * Watches a directory before it is listed, so changes made while the listing
+     * is read are caught. Sessions that find the directory while it is being
+     * read list it as well, whichever listing comes first is put in
+     *
+     * @return null if the directory can't be watched, and so isn't read
+     */
+    private Load startLoad(int dir, Path path) {
+        Load load = loading.get(dir);
+        if (load != null && load.path.equals(path))
+            return load;
+        if (!watch(dir, path)) {
+            unwatchable.add(dir);
+            return null;
+        }
+        load = new Load(path);
+        loading.put(dir, load);
+        return load;
+    }
+
+    /**
+     * Reads a directory, without holding the lock
+     *
+     * @return the entries, or null if the directory can't be read
+     */
+    private static List<FileStat> list(Path path) {
+        List<FileStat> found = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+            for (Path entry : entries) {
+                try {
+                    found.add(FileStat.of(entry.getFileName().toString(),
+                            Files.readAttributes(entry, BasicFileAttributes.class)));
+                } catch (IOException e) {
+                    // entry disappeared or is a dangling link
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error indexing " + path);
+            e.printStackTrace();
+            return null;
+        }
+        return found;
+    }
+
+    /**
+     * Puts a listing read outside the lock in, unless another one came first or
+     * the directory went away meanwhile, and reads again what changed since
+     */
+    private void publish(int dir, Load load, List<FileStat> entries) {
+        if (loading.get(dir) != load) {
+            // someone else's listing is in, or the directory changed under the listing
+            return;
+        }
+        loading.remove(dir);
+
+        // anything not listed again is gone
+        for (int id = firstChild[dir]; id != MISSING; id = nextSibling[id])
+            flags[id] |= FLAG_DELETED;
+        for (FileStat entry : entries) {
+            int id = child(dir, entry.getName());
+            if (id == MISSING)
+                id = add(dir, entry.getName());
+            set(id, entry);
+        }
+        for (int id = firstChild[dir]; id != MISSING; ) {
+            int next = nextSibling[id];
+            if ((flags[id] & FLAG_DELETED) != 0)
+                remove(id);
+            id = next;
+        }
+
+        flags[dir] |= FLAG_LOADED;
+        for (String name : load.changed)
+            refresh(dir, load.path, name);
+    }
+
+    private void refresh(int dir, Path dirPath, String name) {
+        int id = child(dir, name);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(dirPath.resolve(name), BasicFileAttributes.class);
+            if (id == MISSING)
+                id = add(dir, name);
+            boolean wasDirectory = (flags[id] & FLAG_DIRECTORY) != 0 && (flags[id] & FLAG_DELETED) == 0;
+            if (wasDirectory != attrs.isDirectory())
+                unload(id);
+            set(id, attrs);
+        } catch (IOException e) {
+            if (id != MISSING)
+                remove(id);
+        }
+    }
+
+    private void set(int id, BasicFileAttributes attrs) {
+        set(id, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    private void set(int id, FileStat stat) {
+        set(id, stat.isDirectory(), stat.getSize(), stat.getModified());
+    }
+
+    private void set(int id, boolean directory, long size, long lastModified) {
+        sizes[id] = size;
+        modified[id] = lastModified;
+        byte f = (byte) (flags[id] & FLAG_LOADED);
+        if (directory)
+            f |= FLAG_DIRECTORY;
+        else
+            f &= ~FLAG_LOADED;
+        flags[id] = f;
+    }
+
+    private void unload(int id) {
+        flags[id] &= ~FLAG_LOADED;
+        loading.remove(id);
+        WatchKey key = watchKeys.remove(id);
+        if (key != null) {
+            key.cancel();
+            watchedDirectories.remove(key);
+            // a watch is free again
+            unwatchable.clear();
+        }
+    }
+
+    /**
+     * @return false if the directory can't be watched
+     */
+    private boolean watch(int dir, Path path) {
+        if (watchKeys.containsKey(dir))
+            return true;
+        try {
+            if (watcher == null) {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this::processEvents, "ftp-index-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, dir);
+            watchKeys.put(dir, key);
+            return true;
+        } catch (IOException e) {
+            if (!watchFailed)
+                System.out.println("* Metadata index can't watch " + path + ", looking up files below it " +
+                        "directly: " + e);
+            watchFailed = true;
+            return false;
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                synchronized (this) {
+                    Integer dir = watchedDirectories.get(key);
+                    if (dir != null) {
+                        Path dirPath = (Path) key.watchable();
+                        Load load = loading.get(dir);
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                flags[dir] &= ~FLAG_LOADED;
+                                // the listing being read may have missed it as well
+                                loading.remove(dir);
+                                load = null;
+                            } else if ((flags[dir] & FLAG_LOADED) != 0) {
+                                refresh(dir, dirPath, event.context().toString());
+                            } else if (load != null) {
+                                load.changed.add(event.context().toString());
+                            }
+                        }
+                        if (!key.reset())
+                            unload(dir);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.println("* Metadata index watcher stopped");
+        }
+    }
+
+    /**
+     * A directory being listed outside the lock, and the names of the entries
+     * that changed meanwhile
+     */
+    private static class Load {
+        final Path path;
+        final Set<String> changed = new HashSet<>();
+
+        Load(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Interns the name of a new entry
+     */
+    private int intern(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            if (freeNameCount > 0) {
+                id = freeNames[--freeNameCount];
+            } else {
+                id = nameCount++;
+                if (id == nameTable.length) {
+                    nameTable = Arrays.copyOf(nameTable, id * 2);
+                    nameRefs = Arrays.copyOf(nameRefs, id * 2);
+                }
+            }
+            nameTable[id] = name;
+            nameIds.put(name, id);
+        }
+        nameRefs[id]++;
+        return id;
+    }
+
+    /**
+     * Frees the name of a removed entry if no other entry has it
+     */
+    private void release(int name) {
+        if (--nameRefs[name] > 0)
+            return;
+        nameIds.remove(nameTable[name]);
+        nameTable[name] = null;
+        if (freeNameCount == freeNames.length)
+            freeNames = Arrays.copyOf(freeNames, freeNameCount * 2);
+        freeNames[freeNameCount++] = name;
+    }
+
+    private int child(int parent, String name) {
+        Integer nameId = nameIds.get(name);
+        return nameId == null ? MISSING : child(parent, nameId);
+    }
+
+    private int child(int parent, int name) {
+        int mask = slots.length - 1;
+        for (int i = hash(parent, name) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (parents[id] == parent && names[id] == name)
+                return id;
+        }
+        return MISSING;
+    }
+
+    private int add(int parent, String name) {
+        if (firstFree == MISSING && count == parents.length) {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            names = Arrays.copyOf(names, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            modified = Arrays.copyOf(modified, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            prevSibling = Arrays.copyOf(prevSibling, capacity);
+        }
+        if ((count - freeCount + 1) * 2 > slots.length)
+            rehash(slots.length * 2);
+
+        int id;
+        if (firstFree != MISSING) {
+            id = firstFree;
+            firstFree = nextSibling[id];
+            freeCount--;
+        } else {
+            id = count++;
+        }
+        parents[id] = parent;
+        names[id] = intern(name);
+        flags[id] = 0;
+        firstChild[id] = MISSING;
+        prevSibling[id] = MISSING;
+        nextSibling[id] = MISSING;
+        if (parent >= 0) {
+            int first = firstChild[parent];
+            nextSibling[id] = first;
+            if (first != MISSING)
+                prevSibling[first] = id;
+            firstChild[parent] = id;
+        }
+        insert(id);
+        return id;
+    }
+
+    /**
+     * Drops an entry that is gone and everything below it, and frees their ids
+     */
+    private void remove(int id) {
+        while (firstChild[id] != MISSING)
+            remove(firstChild[id]);
+        unload(id);
+
+        int parent = parents[id];
+        if (prevSibling[id] != MISSING)
+            nextSibling[prevSibling[id]] = nextSibling[id];
+        else if (parent >= 0)
+            firstChild[parent] = nextSibling[id];
+        if (nextSibling[id] != MISSING)
+            prevSibling[nextSibling[id]] = prevSibling[id];
+        delete(id);
+        release(names[id]);
+        unwatchable.remove(id);
+
+        flags[id] = FLAG_FREE;
+        nextSibling[id] = firstFree;
+        firstFree = id;
+        freeCount++;
+    }
+
+    /**
+     * Takes an id out of the table, moving the ids after it in its run back so
+     * lookups don't stop at the hole
+     */
+    private void delete(int id) {
+        int mask = slots.length - 1;
+        int hole = hash(parents[id], names[id]) & mask;
+        while (slots[hole] != id + 1)
+            hole = (hole + 1) & mask;
+        for (int i = (hole + 1) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int other = slots[i] - 1;
+            int home = hash(parents[other], names[other]) & mask;
+            // other may fill the hole when the hole is between its home and i
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                slots[hole] = slots[i];
+                hole = i;
+            }
+        }
+        slots[hole] = 0;
+    }
+
+    private void insert(int id) {
+        int mask = slots.length - 1;
+        int i = hash(parents[id], names[id]) & mask;
+        while (slots[i] != 0)
+            i = (i + 1) & mask;
+        slots[i] = id + 1;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int id = 0; id < count; id++) {
+            if ((flags[id] & FLAG_FREE) == 0)
+                insert(id);
+        }
+    }
+
+    private static int hash(int parent, int name) {
+        int h = parent * 0x9E3779B9 + name;
+        return h ^ (h >>> 16);
+    }
+}
@@ -10,20 +10,29 @@ public class PassiveConnection extends DataConnection {
 
     private ServerSocketChannel socket;
 
-    PassiveConnection() throws IOException {
-        InetAddress local = getCurrentIp();
+    /**
+     * Listens on a port of the shard's passive range
+     *
+     * @param local the address to listen on, null for the one PASV announces
+     */
+    PassiveConnection(InetAddress local, Shard shard) throws IOException {
+        if (local == null)
+            local = getCurrentIp();
         if (local == null)
             throw new IOException("Can't get local ip address");
 
-        int port = findFreePort();
-
-        this.address = new InetSocketAddress(local, port);
-        System.out.println(address.getPort());
-
         socket = ServerSocketChannel.open();
         socket.configureBlocking(true);
         socket.socket().setSoTimeout(1000 * 10);
-        socket.socket().bind(this.address);
+        try {
+            shard.bindPassive(socket, new InetSocketAddress(local, 0));
+        } catch (IOException e) {
+            FtpUtil.releaseChannelResource(socket);
+            throw e;
+        }
+
+        this.address = new InetSocketAddress(local, socket.socket().getLocalPort());
+        System.out.println(address.getPort());
     }
 
     private InetAddress getCurrentIp() {
@@ -50,25 +59,6 @@ public class PassiveConnection extends DataConnection {
         return null;
     }
 
-    private static int findFreePort() {
-        ServerSocket socket = null;
-        try {
-            socket = new ServerSocket(0);
-            socket.setReuseAddress(true);
-            int port = socket.getLocalPort();
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // Ignore IOException on close()
-            }
-            return port;
-        } catch (IOException e) {
-            System.out.println("Couldn't find free port");
-            e.printStackTrace();
-        }
-        return -1;
-    }
-
     protected void doNegotiate() throws IOException {
         super.channel = socket.accept();
     }
@@ -0,0 +1,237 @@
+package ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the virtual paths a client sends ("/docs/a.txt", "../b") onto the user's
+ * root directory. "." and ".." are resolved on the path text, clamped at the
+ * user root, so they can never leave it. Symbolic links that point out of the
+ * root are caught by isConfined(), which keeps resolved directories in a cache
+ * shared by all sessions. A cached entry is only trusted while the directory
+ * still has the file key it had when it was resolved, so a directory replaced
+ * by a link, by this server or by anyone else, is resolved again
+ */
+class PathResolver {
+
+    private static final int CACHE_SIZE = Config.get().getInt("ftp.path.cache.size", 4096);
+
+    /** Directory to real path, cached because resolving it costs a syscall per component */
+    private static final Map<Path, RealDirectory> realDirectories =
+            new LinkedHashMap<Path, RealDirectory>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, RealDirectory> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final Path root;
+    private final Path realRoot;
+    private final boolean checkLinks;
+    private String current = "/";
+    private Path currentPath;
+
+    /**
+     * @param checkLinks false for storages without symbolic links, where resolving
+     *                   the path text is enough to stay inside the root
+     */
+    PathResolver(File root, boolean checkLinks) throws IOException {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.realRoot = checkLinks ? this.root.toRealPath() : this.root;
+        this.checkLinks = checkLinks;
+        this.currentPath = this.root;
+    }
+
+    /**
+     * Forgets cached symbolic link resolutions, called after this server removed
+     * or renamed an entry. Changes made by others are caught by the file key check
+     */
+    static void invalidate() {
+        synchronized (realDirectories) {
+            realDirectories.clear();
+        }
+    }
+
+    /**
+     * @return the current directory as shown to the client
+     */
+    String getCurrent() {
+        return current;
+    }
+
+    Path getCurrentPath() {
+        return currentPath;
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Resolves a client supplied path against the current directory, without
+     * touching the file system
+     *
+     * @return the normalised virtual path, always starting with "/"
+     */
+    String toVirtual(String parameter) {
+        List<String> segments = new ArrayList<>();
+        if (parameter.isEmpty() || parameter.charAt(0) != '/')
+            split(current, segments);
+        split(parameter, segments);
+
+        if (segments.isEmpty())
+            return "/";
+        StringBuilder sb = new StringBuilder();
+        for (String segment : segments)
+            sb.append('/').append(segment);
+        return sb.toString();
+    }
+
+    private static void split(String path, List<String> segments) {
+        int start = 0;
+        int len = path.length();
+        while (start <= len) {
+            int end = start;
+            while (end < len && path.charAt(end) != '/' && path.charAt(end) != '\\')
+                end++;
+
+            String segment = path.substring(start, end);
+            if (segment.equals("..")) {
+                if (!segments.isEmpty())
+                    segments.remove(segments.size() - 1);
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.add(segment);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @return the real location of a virtual path
+     */
+    Path toPath(String virtual) {
+        return virtual.length() == 1 ? root : root.resolve(virtual.substring(1));
+    }
+
+    /**
+     * Resolves a client supplied path and checks it stays inside the user root
+     *
+     * @return the real location, or null if a symbolic link leads out of the root
+     */
+    Path resolve(String parameter) {
+        Path path = toPath(toVirtual(parameter));
+        return isConfined(path) ? path : null;
+    }
+
+    /**
+     * Changes the current directory. The caller checks that the target is a directory
+     *
+     * @return false if the directory is outside the user root
+     */
+    boolean changeDirectory(String parameter) {
+        String virtual = toVirtual(parameter);
+        Path path = toPath(virtual);
+        if (checkLinks) {
+            Path real = realDirectory(path);
+            if (real == null || !real.startsWith(realRoot))
+                return false;
+        }
+
+        current = virtual;
+        currentPath = path;
+        return true;
+    }
+
+    /**
+     * Checks the parent directory through the cache and the entry itself only when
+     * it is a symbolic link, which is a single lstat for the common case
+     */
+    boolean isConfined(Path path) {
+        if (!checkLinks || path.equals(root))
+            return true;
+
+        Path parent = path.getParent();
+        Path realParent = null;
+        while (realParent == null && parent != null && parent.startsWith(root)) {
+            realParent = realDirectory(parent);
+            if (realParent == null)
+                parent = parent.getParent(); // doesn't exist yet, check what does
+        }
+        if (realParent == null || !realParent.startsWith(realRoot))
+            return false;
+
+        if (!Files.isSymbolicLink(path))
+            return true;
+        try {
+            return path.toRealPath().startsWith(realRoot);
+        } catch (IOException e) {
+            return false; // dangling link
+        }
+    }
+
+    /**
+     * @return the real path of a directory, or null if it doesn't exist
+     */
+    private static Path realDirectory(Path dir) {
+        RealDirectory cached;
+        synchronized (realDirectories) {
+            cached = realDirectories.get(dir);
+        }
+
+        Object key;
+        try {
+            // one lstat, which also sees a directory that became a link
+            BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            key = attrs.isSymbolicLink() ? null : attrs.fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (cached != null && key != null && key.equals(cached.key))
+            return cached.real;
+
+        Path real;
+        try {
+            real = dir.toRealPath();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        synchronized (realDirectories) {
+            // without a file key there is nothing to check the entry against later
+            if (key != null)
+                realDirectories.put(dir, new RealDirectory(real, key));
+            else
+                realDirectories.remove(dir);
+        }
+        return real;
+    }
+
+    /**
+     * A resolved directory and the file key it had at the time
+     */
+    private static class RealDirectory {
+        final Path real;
+        final Object key;
+
+        RealDirectory(Path real, Object key) {
+            this.real = real;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package ftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Benchmark of the TransferPipeline of the classpath against the sequential
+ * readWriteOperation loop it replaces, which is what a depth of 1 runs. A file
+ * of -size bytes is read through a simulated slow disk of -disk MB/s and sent
+ * over loopback through a link of -network MB/s, both charging every read or
+ * write the time its bytes take. With -ascii the sink is wrapped in the TYPE A
+ * conversion, as for an ASCII download:
+ *
+ * java -cp out ftp.PipelineLoad [-size 33554432] [-disk 40] [-network 40] [-depth 4]
+ *      [-rounds 3] [-ascii false]
+ *
+ * The best of the rounds is printed for each, the receiver checks that every
+ * byte arrived. The sequential loop waits for the disk and the link in turn, the
+ * pipeline for the slower of them. It exits with 1 when the pipeline isn't 10%
+ * faster than the sequential loop or a copy came out wrong
+ */
+class PipelineLoad {
+
+    private final Path file;
+    private final long size;
+    private final long crc;
+    private final double diskRate;
+    private final double networkRate;
+    private final boolean ascii;
+    private final BufferPool pool = new BufferPool(BufferPool.BUFFER_SIZE, 64);
+    private final ExecutorService receivers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ftp-pipeline-receiver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private PipelineLoad(Path file, long size, long crc, double diskRate, double networkRate, boolean ascii) {
+        this.file = file;
+        this.size = size;
+        this.crc = crc;
+        this.diskRate = diskRate;
+        this.networkRate = networkRate;
+        this.ascii = ascii;
+    }
+
+    /**
+     * Time charged for the bytes going through a channel, at a rate in bytes per
+     * second. Sleeps are taken once a millisecond is owed, and oversleeping is
+     * credited, so the rate holds on average
+     */
+    private static class Pace {
+        private final double nanosPerByte;
+        private long owed = 0L;
+
+        Pace(double rate) {
+            this.nanosPerByte = 1e9 / rate;
+        }
+
+        void charge(int bytes) {
+            owed += (long) (bytes * nanosPerByte);
+            if (owed < 1000000)
+                return;
+            long began = System.nanoTime();
+            LockSupport.parkNanos(owed);
+            owed -= System.nanoTime() - began;
+        }
+    }
+
+    private static class SlowDisk implements ReadableByteChannel {
+        private final FileChannel file;
+        private final Pace pace;
+
+        SlowDisk(FileChannel file, double rate) {
+            this.file = file;
+            this.pace = new Pace(rate);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int len = file.read(dst);
+            if (len > 0)
+                pace.charge(len);
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private static class SlowLink implements WritableByteChannel {
+        private final SocketChannel socket;
+        private final Pace pace;
+
+        SlowLink(SocketChannel socket, double rate) {
+            this.socket = socket;
+            this.pace = new Pace(rate);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int len = socket.write(src);
+            pace.charge(len);
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socket.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes received and their CRC32
+     */
+    private static long[] receive(SocketChannel socket) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        CRC32 crc = new CRC32();
+        long total = 0L;
+        try (SocketChannel s = socket) {
+            int len;
+            while ((len = s.read(buf)) >= 0) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+                total += len;
+            }
+        }
+        return new long[]{total, crc.getValue()};
+    }
+
+    /**
+     * Copies the file once
+     *
+     * @return how long it took in ms
+     */
+    private long copy(int depth) throws IOException, InterruptedException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel socket = SocketChannel.open(listener.getLocalAddress());
+                 FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                SocketChannel accepted = listener.accept();
+                Future<long[]> received = receivers.submit(() -> receive(accepted));
+
+                long began = System.nanoTime();
+                WritableByteChannel link = new SlowLink(socket, networkRate);
+                WritableByteChannel sink = ascii ? AsciiChannel.encoding(link) : link;
+                new TransferPipeline(new SlowDisk(channel, diskRate), sink, pool, depth).copy();
+                if (ascii)
+                    sink.close();
+                long millis = (System.nanoTime() - began) / 1000000;
+                socket.shutdownOutput();
+
+                long[] result = received.get();
+                if (result[0] != size || result[1] != crc)
+                    throw new IOException("Received " + result[0] + " of " + size + " bytes" +
+                            (result[1] != crc ? ", wrong checksum" : ""));
+                return millis;
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return the best time of the rounds in ms
+     */
+    private long best(int depth, int rounds) throws IOException, InterruptedException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++)
+            best = Math.min(best, copy(depth));
+        return best;
+    }
+
+    private String summary(String name, long millis) {
+        return String.format("* %s: %d ms, %.1f MB/s", name, millis, size / 1048576.0 * 1000 / Math.max(millis, 1));
+    }
+
+    public static void main(String[] args) {
+        long size = 32 * 1048576L;
+        double disk = 40;
+        double network = 40;
+        int depth = 4;
+        int rounds = 3;
+        boolean ascii = false;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-size":
+                    size = Math.max(1, Long.parseLong(args[i + 1]));
+                    break;
+                case "-disk":
+                    disk = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-network":
+                    network = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-depth":
+                    depth = Math.max(2, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-rounds":
+                    rounds = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-ascii":
+                    ascii = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.PipelineLoad [-size 33554432] [-disk 40] [-network 40] " +
+                            "[-depth 4] [-rounds 3] [-ascii false]");
+                    return;
+            }
+        }
+
+        Path file = null;
+        int status = 0;
+        try {
+            file = Files.createTempFile("ftp-pipeline-load", ".dat");
+            // letters only, so the TYPE A conversion leaves the bytes as they are
+            Random random = new Random(1);
+            CRC32 crc = new CRC32();
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.allocate(65536);
+                for (long written = 0; written < size; written += buf.limit()) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), size - written));
+                    while (buf.hasRemaining())
+                        buf.put((byte) ('a' + random.nextInt(26)));
+                    buf.flip();
+                    crc.update(buf.duplicate());
+                    while (buf.hasRemaining())
+                        out.write(buf);
+                }
+            }
+
+            System.out.printf("* Copying %d KB, disk %.0f MB/s, network %.0f MB/s%s%n", size / 1024, disk, network,
+                    ascii ? ", TYPE A" : "");
+            PipelineLoad load = new PipelineLoad(file, size, crc.getValue(), disk * 1048576, network * 1048576,
+                    ascii);
+            long sequential = load.best(1, rounds);
+            System.out.println(load.summary("Sequential loop", sequential));
+            long pipelined = load.best(depth, rounds);
+            System.out.println(load.summary("Pipeline, depth " + depth, pipelined) +
+                    String.format(", %.2fx", sequential / (double) Math.max(pipelined, 1)));
+            if (pipelined * 1.1 > sequential) {
+                System.out.println("* The pipeline isn't faster than the sequential loop");
+                status = 1;
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            try {
+                if (file != null)
+                    Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + file);
+            }
+        }
+        System.exit(status);
+    }
+}
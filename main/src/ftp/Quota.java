@@ -0,0 +1,723 @@
+package ftp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes and entries (files and directories) stored under a user root, checked
+ * against the quota of the account. A root is counted once, walked in parallel
+ * on the common fork/join pool when its first user logs in, unless its totals
+ * were saved to ftp.quota.store (.ftp-quota in the working directory by
+ * default, never inside a user root) by an earlier run. After that the server counts
+ * its own changes as it makes them, uploads write by write, so an upload is
+ * refused with 552 as soon as it would cross the hard limit.
+ *
+ * Totals are kept per directory. A WatchService notices changes made by others:
+ * a directory with events is listed again ftp.quota.reconcile.delay ms later and
+ * its total replaced by what is on disk, which also settles the server's own
+ * counts without adding them twice. Saved totals are trusted for directories
+ * whose modification time is unchanged, so a file that grew in place while the
+ * server was down is missed until its directory changes; ftp.quota.rescan makes
+ * every start count again. The soft limits only bring a warning.
+ *
+ * A root in memory (MemoryStorage) is counted through its Storage instead. Only
+ * the server changes it, so it is neither watched nor saved
+ */
+class Quota {
+
+    private static final Map<Path, Quota> roots = new HashMap<>();
+    private static final Map<WatchKey, Quota> watched = new ConcurrentHashMap<>();
+    private static WatchService watcher;
+    private static boolean watchFailed = false;
+
+    private final Path root;
+    /** The storage of a root that isn't on the file system, null for one that is */
+    private final Storage storage;
+    private final Path saved;
+    private boolean loaded = false;
+    private boolean changed = false;
+
+    /** Usage directly in each directory of the tree */
+    private final Map<Path, Usage> directories = new HashMap<>();
+    /** Directories with watch events not listed again yet */
+    private final Set<Path> pending = new LinkedHashSet<>();
+
+    private volatile long bytes = 0L;
+    private volatile long entries = 0L;
+
+    private volatile long softBytes;
+    private volatile long hardBytes;
+    private volatile long softFiles;
+    private volatile long hardFiles;
+
+    private Quota(Path root, Storage storage) {
+        this.root = root;
+        this.storage = storage;
+        Path store = storage == null ? store() : null;
+        this.saved = store == null ? null : store.resolve(root.getFileName() + "-" +
+                Integer.toHexString(root.toString().hashCode()) + ".quota");
+    }
+
+    /**
+     * @return the directory of the saved totals, or null when it is inside a user
+     *         root, where users could read or change them
+     */
+    private static Path store() {
+        String store = Config.get().get("ftp.quota.store", "").trim();
+        Path path = Paths.get(store.isEmpty() ? ".ftp-quota" : store).toAbsolutePath().normalize();
+        if (!Config.get().isInsideRoot(path))
+            return path;
+        System.out.println("* Quota totals not saved, ftp.quota.store " + path + " is inside a user root");
+        return null;
+    }
+
+    /**
+     * @return the usage of the root, counted or loaded on first use, or null if
+     *         the account has no limits
+     */
+    static Quota forUser(File root, Storage storage, UserDirectory.User account) {
+        if (account.getQuota() == 0 && account.getSoftQuota() == 0 &&
+                account.getFileQuota() == 0 && account.getSoftFileQuota() == 0)
+            return null;
+
+        Path path = root.toPath().toAbsolutePath().normalize();
+        Quota quota;
+        synchronized (Quota.class) {
+            quota = roots.computeIfAbsent(path, p -> new Quota(p, storage instanceof MemoryStorage ? storage : null));
+        }
+        quota.softBytes = account.getSoftQuota();
+        quota.hardBytes = account.getQuota();
+        quota.softFiles = account.getSoftFileQuota();
+        quota.hardFiles = account.getFileQuota();
+        quota.load();
+        return quota;
+    }
+
+    /**
+     * Writes the totals of every root that changed since the last save
+     */
+    static void saveAll() {
+        List<Quota> all;
+        synchronized (Quota.class) {
+            all = new ArrayList<>(roots.values());
+        }
+        for (Quota quota : all)
+            quota.save();
+    }
+
+    private synchronized void load() {
+        if (loaded)
+            return;
+        long start = System.currentTimeMillis();
+        boolean restored = !Config.get().getBoolean("ftp.quota.rescan", false) && read();
+        if (!restored) {
+            Map<Path, Usage> found = new ConcurrentHashMap<>();
+            ForkJoinPool.commonPool().invoke(new Scan(this, root, found));
+            directories.putAll(found);
+            changed = true;
+        }
+
+        List<Path> stale = new ArrayList<>();
+        for (Map.Entry<Path, Usage> e : directories.entrySet()) {
+            Usage usage = e.getValue();
+            bytes += usage.bytes;
+            entries += usage.entries;
+            watch(e.getKey(), usage);
+            if (restored && modified(e.getKey()) != usage.modified)
+                stale.add(e.getKey());
+        }
+        // changed while the server was down
+        for (Path dir : stale)
+            reconcile(dir);
+        loaded = true;
+
+        System.out.println("* Quota of " + root + ": " + bytes / 1024 + " KB in " + entries + " files, " +
+                (restored ? "loaded (" + stale.size() + " directories listed again)" : "counted") + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @return the 552 reply if an upload can't start, null if it can
+     */
+    String checkUpload(boolean newFile) {
+        if (hardBytes > 0 && bytes >= hardBytes)
+            return "552 Quota exceeded: " + describe(bytes / 1024, hardBytes / 1024, " KB") + " stored.";
+        return newFile ? checkCreate() : null;
+    }
+
+    /**
+     * @return the 552 reply if no file or directory can be added, null if one can
+     */
+    String checkCreate() {
+        if (hardFiles > 0 && entries >= hardFiles)
+            return "552 Quota exceeded: " + describe(entries, hardFiles, " files") + ".";
+        return null;
+    }
+
+    /**
+     * @return the 552 reply if a copy of the file or tree doesn't fit, null if it does
+     */
+    String checkCopy(Path source) {
+        Map<Path, Usage> found = new ConcurrentHashMap<>();
+        long size = 0L;
+        long count = 1L;
+        if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+            ForkJoinPool.commonPool().invoke(new Scan(this, source, found));
+            for (Usage usage : found.values()) {
+                size += usage.bytes;
+                count += usage.entries;
+            }
+        } else {
+            size = source.toFile().length();
+        }
+
+        if (hardBytes > 0 && bytes + size > hardBytes)
+            return "552 Quota exceeded: " + size / 1024 + " KB more would be over the limit of " +
+                    hardBytes / 1024 + " KB.";
+        if (hardFiles > 0 && entries + count > hardFiles)
+            return "552 Quota exceeded: " + count + " files more would be over the limit of " + hardFiles + ".";
+        return null;
+    }
+
+    /**
+     * @return a warning for users over a soft limit, null for the others
+     */
+    String getWarning() {
+        long b = bytes;
+        long n = entries;
+        if (softBytes > 0 && b > softBytes)
+            return "Over the soft quota: " + describe(b / 1024, softBytes / 1024, " KB") + " stored.";
+        if (softFiles > 0 && n > softFiles)
+            return "Over the soft quota: " + describe(n, softFiles, " files") + ".";
+        return null;
+    }
+
+    String getDescription() {
+        return "Quota: " + describe(bytes / 1024, hardBytes / 1024, " KB") + ", " +
+                describe(entries, hardFiles, " files");
+    }
+
+    private static String describe(long used, long limit, String unit) {
+        return used + (limit > 0 ? " of " + limit : "") + unit;
+    }
+
+    /**
+     * Opens a file for an upload, counting what is written to it
+     *
+     * @throws ExceededException if the file would be one too many
+     */
+    WritableByteChannel openWrite(Storage storage, Path file, long offset) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        FileStat before = storage.stat(file);
+        String refused = checkUpload(before == null);
+        if (refused != null)
+            throw new ExceededException(refused);
+
+        WritableByteChannel target = storage.openWrite(file, offset);
+        long size = before == null ? 0L : before.getSize();
+        if (before == null) {
+            added(path, false, 0L);
+        } else if (offset == 0 && size > 0) {
+            // truncated
+            grow(path.getParent(), -size);
+            size = 0L;
+        }
+        return new CountingChannel(target, path.getParent(), size, offset);
+    }
+
+    /**
+     * Counts the temporary file a delta upload rebuilds a file in. Only what
+     * grows past the current size of the file is counted, which is what the
+     * rebuilt file adds once it replaces it
+     *
+     * @param size the size of the file the delta is applied to, 0 for a new one
+     */
+    WritableByteChannel countRebuild(Path file, WritableByteChannel temp, long size) {
+        Path path = file.toAbsolutePath().normalize();
+        return new CountingChannel(temp, path.getParent(), size, 0L);
+    }
+
+    /**
+     * Settles the counts of a delta upload once the rebuilt file replaced the
+     * file, or was thrown away if replaced is false
+     *
+     * @param before  the size of the file before, -1 if it didn't exist
+     * @param written the size of the rebuilt file
+     */
+    void rebuilt(Path file, long before, long written, boolean replaced) {
+        Path path = file.toAbsolutePath().normalize();
+        long counted = Math.max(written - Math.max(before, 0L), 0L);
+        if (!replaced)
+            grow(path.getParent(), -counted);
+        else if (before < 0)
+            added(path, false, 0L);
+        else if (written < before)
+            grow(path.getParent(), written - before);
+    }
+
+    /**
+     * Counts a file or directory the server created, a whole tree for a directory
+     */
+    synchronized void added(Path path, boolean directory, long size) {
+        path = path.toAbsolutePath().normalize();
+        Usage parent = directories.get(path.getParent());
+        if (parent == null)
+            return;
+        parent.entries++;
+        entries++;
+        if (directory) {
+            parent.subdirectories.add(path.getFileName().toString());
+            addTree(path);
+        } else {
+            parent.bytes += size;
+            bytes += size;
+        }
+        changed = true;
+    }
+
+    /**
+     * Stops counting a file or directory the server removed or moved away
+     */
+    synchronized void removed(Path path, boolean directory, long size) {
+        path = path.toAbsolutePath().normalize();
+        Usage parent = directories.get(path.getParent());
+        if (parent == null)
+            return;
+        if (directory) {
+            // unless a watch event got there first
+            if (parent.subdirectories.remove(path.getFileName().toString())) {
+                parent.entries--;
+                entries--;
+            }
+            removeTree(path);
+        } else {
+            parent.entries--;
+            parent.bytes -= size;
+            entries--;
+            bytes -= size;
+        }
+        changed = true;
+    }
+
+    /**
+     * @return false, counting nothing, if growing by delta would cross the hard limit
+     */
+    private synchronized boolean grow(Path dir, long delta) {
+        if (delta > 0 && hardBytes > 0 && bytes + delta > hardBytes)
+            return false;
+        Usage usage = directories.get(dir);
+        if (usage != null) {
+            usage.bytes += delta;
+            bytes += delta;
+            changed = true;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the usage of a directory by what it holds now, counting
+     * subdirectories that appeared and dropping those that are gone
+     */
+    private void reconcile(Path dir) {
+        Usage old = directories.get(dir);
+        if (old == null)
+            return;
+        Usage now = list(dir);
+        if (now == null) {
+            removeTree(dir);
+            return;
+        }
+
+        for (String name : now.subdirectories) {
+            if (!directories.containsKey(dir.resolve(name)))
+                addTree(dir.resolve(name));
+        }
+        for (String name : old.subdirectories) {
+            if (!now.subdirectories.contains(name))
+                removeTree(dir.resolve(name));
+        }
+        now.key = old.key;
+        directories.put(dir, now);
+        bytes += now.bytes - old.bytes;
+        entries += now.entries - old.entries;
+        changed = true;
+    }
+
+    private void addTree(Path dir) {
+        Map<Path, Usage> found = new ConcurrentHashMap<>();
+        ForkJoinPool.commonPool().invoke(new Scan(this, dir, found));
+        for (Map.Entry<Path, Usage> e : found.entrySet()) {
+            Usage usage = e.getValue();
+            Usage old = directories.put(e.getKey(), usage);
+            if (old != null) {
+                bytes -= old.bytes;
+                entries -= old.entries;
+                usage.key = old.key;
+            }
+            bytes += usage.bytes;
+            entries += usage.entries;
+            if (usage.key == null)
+                watch(e.getKey(), usage);
+        }
+    }
+
+    private void removeTree(Path dir) {
+        Usage usage = directories.remove(dir);
+        if (usage == null)
+            return;
+        if (usage.key != null) {
+            usage.key.cancel();
+            watched.remove(usage.key);
+        }
+        bytes -= usage.bytes;
+        entries -= usage.entries;
+        for (String name : usage.subdirectories)
+            removeTree(dir.resolve(name));
+    }
+
+    /**
+     * @return what is directly in the directory, null if it isn't one (anymore)
+     */
+    private Usage list(Path dir) {
+        if (storage != null)
+            return listStorage(dir);
+        Usage usage = new Usage();
+        try {
+            usage.modified = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue; // deleted meanwhile
+                    }
+                    usage.entries++;
+                    if (attrs.isDirectory())
+                        usage.subdirectories.add(entry.getFileName().toString());
+                    else
+                        usage.bytes += attrs.size();
+                }
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        } catch (IOException e) {
+            // unreadable, counted as far as it could be listed
+            System.out.println("* Quota can't list " + dir + ": " + e);
+        }
+        return usage;
+    }
+
+    private Usage listStorage(Path dir) {
+        Usage usage = new Usage();
+        try {
+            FileStat stat = storage.stat(dir);
+            List<FileStat> found = storage.list(dir);
+            if (stat == null || found == null)
+                return null;
+            usage.modified = stat.getModified();
+            for (FileStat entry : found) {
+                usage.entries++;
+                if (entry.isDirectory())
+                    usage.subdirectories.add(entry.getName());
+                else
+                    usage.bytes += entry.getSize();
+            }
+        } catch (IOException e) {
+            System.out.println("* Quota can't list " + dir + ": " + e);
+        }
+        return usage;
+    }
+
+    private static long modified(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    private void watch(Path dir, Usage usage) {
+        if (storage != null)
+            return;
+        try {
+            synchronized (Quota.class) {
+                if (watcher == null) {
+                    watcher = FileSystems.getDefault().newWatchService();
+                    Thread thread = new Thread(Quota::processEvents, "ftp-quota-watcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+            usage.key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(usage.key, this);
+        } catch (IOException e) {
+            // out of inotify watches most likely, only the server's own changes are counted there
+            synchronized (Quota.class) {
+                if (!watchFailed)
+                    System.out.println("* Quota can't watch " + dir + ": " + e);
+                watchFailed = true;
+            }
+        }
+    }
+
+    private synchronized void changed(Path dir) {
+        pending.add(dir);
+    }
+
+    private synchronized void reconcilePending() {
+        for (Path dir : pending)
+            reconcile(dir);
+        pending.clear();
+    }
+
+    private static long getSaveInterval() {
+        return Config.get().getLong("ftp.quota.save.interval", 60000L);
+    }
+
+    /**
+     * Collects watch events, lists the directories they came from at most every
+     * ftp.quota.reconcile.delay ms (an upload brings one per write) and saves
+     * changed totals every ftp.quota.save.interval ms
+     */
+    private static void processEvents() {
+        Set<Quota> waiting = new HashSet<>();
+        long nextReconcile = 0L;
+        long nextSave = System.currentTimeMillis() + getSaveInterval();
+        try {
+            while (true) {
+                long wake = waiting.isEmpty() ? nextSave : Math.min(nextSave, nextReconcile);
+                WatchKey key = watcher.poll(Math.max(1L, wake - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                    Quota quota = watched.get(key);
+                    if (quota != null) {
+                        if (waiting.isEmpty())
+                            nextReconcile = System.currentTimeMillis() +
+                                    Config.get().getLong("ftp.quota.reconcile.delay", 1000L);
+                        quota.changed((Path) key.watchable());
+                        waiting.add(quota);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (!waiting.isEmpty() && now >= nextReconcile) {
+                    for (Quota quota : waiting)
+                        quota.reconcilePending();
+                    waiting.clear();
+                }
+                if (now >= nextSave) {
+                    saveAll();
+                    nextSave = now + getSaveInterval();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.println("* Quota watcher stopped");
+        }
+    }
+
+    /**
+     * Writes the root followed by one line per directory: bytes, entries,
+     * modification time and the path relative to the root
+     */
+    private synchronized void save() {
+        if (!loaded || !changed || saved == null)
+            return;
+        Path temp = saved.resolveSibling(saved.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(saved.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write(root.toString());
+                out.newLine();
+                for (Map.Entry<Path, Usage> e : directories.entrySet()) {
+                    String relative = root.relativize(e.getKey()).toString();
+                    if (relative.indexOf('\n') >= 0 || relative.indexOf('\r') >= 0)
+                        throw new IOException("can't save the name " + e.getKey());
+                    Usage usage = e.getValue();
+                    out.write(usage.bytes + "\t" + usage.entries + "\t" + usage.modified + "\t" + relative);
+                    out.newLine();
+                }
+            }
+            Files.move(temp, saved, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changed = false;
+        } catch (IOException e) {
+            // the root is counted again on the next start
+            System.out.println("* Quota of " + root + " not saved: " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(saved);
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return whether usable totals were read from the last save
+     */
+    private boolean read() {
+        if (saved == null)
+            return false;
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(saved, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            System.out.println("* Can't read " + saved + ", counting " + root + " again");
+            return false;
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(root.toString()))
+            return false;
+
+        Map<Path, Usage> found = new HashMap<>();
+        try {
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4)
+                    return false;
+                Usage usage = new Usage();
+                usage.bytes = Long.parseLong(fields[0]);
+                usage.entries = Long.parseLong(fields[1]);
+                usage.modified = Long.parseLong(fields[2]);
+                found.put(fields[3].isEmpty() ? root : root.resolve(fields[3]), usage);
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (!found.containsKey(root))
+            return false;
+
+        for (Path dir : found.keySet()) {
+            Usage parent = dir.equals(root) ? null : found.get(dir.getParent());
+            if (parent != null)
+                parent.subdirectories.add(dir.getFileName().toString());
+        }
+        directories.putAll(found);
+        return true;
+    }
+
+    /**
+     * Usage directly in one directory, not counting its subdirectories' content
+     */
+    private static class Usage {
+        long bytes;
+        long entries;
+        long modified;
+        final Set<String> subdirectories = new HashSet<>();
+        WatchKey key;
+    }
+
+    /**
+     * Lists a directory and forks a task for each subdirectory
+     */
+    private static class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Quota quota;
+        private final Path dir;
+        private final Map<Path, Usage> found;
+
+        Scan(Quota quota, Path dir, Map<Path, Usage> found) {
+            this.quota = quota;
+            this.dir = dir;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            Usage usage = quota.list(dir);
+            if (usage == null)
+                return;
+            found.put(dir, usage);
+            List<Scan> tasks = new ArrayList<>();
+            for (String name : usage.subdirectories)
+                tasks.add(new Scan(quota, dir.resolve(name), found));
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Thrown by an upload that would cross the hard limit, or that a storage has
+     * no room for, the message is the reply
+     */
+    static class ExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExceededException(String reply) {
+            super(reply);
+        }
+    }
+
+    /**
+     * Counts the bytes written past the end of the file
+     */
+    private class CountingChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final Path dir;
+        private long size;
+        private long position;
+
+        CountingChannel(WritableByteChannel target, Path dir, long size, long position) {
+            this.target = target;
+            this.dir = dir;
+            this.size = size;
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            long end = position + src.remaining();
+            if (end > size) {
+                if (!grow(dir, end - size))
+                    throw new ExceededException("552 Quota exceeded: upload stopped at " + position / 1024 +
+                            " KB, the limit is " + hardBytes / 1024 + " KB.");
+                size = end;
+            }
+            int written = target.write(src);
+            position += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+}
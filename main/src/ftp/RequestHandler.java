@@ -2,28 +2,75 @@ package ftp;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLSession;
 
 public class RequestHandler implements DataConnectionListener {
 
+    /** Checks the passwords the login throttle held back, once the timer gives them their turn */
+    private static final ExecutorService logins = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "ftp-login");
+                t.setDaemon(true);
+                return t;
+            });
+
     private final SocketChannel socket;
+    private final long session = EventBus.newSession();
+    /** The PASS held back by the login throttle, done once it has been replied to */
+    private volatile CompletableFuture<Void> pendingLogin = null;
+    private volatile TimerWheel.Timeout loginTurn = null;
+    /** Where replies go, the socket itself or TLS over it after AUTH TLS */
+    private volatile ByteChannel control;
+    private boolean protectData = false;
+    private boolean epsvAll = false;
+    private boolean bufferSizeSet = false;
     private final String directory;
     private String userName;
+    private UserDirectory.User account;
+    /** Logged in as anonymous, account may still hold an earlier login */
+    private volatile boolean anonymous = false;
+    /** Usage of the user root when the account has a quota, otherwise null */
+    private Quota quota = null;
+    private volatile boolean uploading = false;
     private Map<String, Consumer<String>> processFunctions = new HashMap<>();
+    private Map<String, Consumer<String>> siteFunctions = new HashMap<>();
     private boolean isBinary;
     private DataConnection data;
     private long restart;
-    private File userCurrent = null;
-    private File userRoot = null;
-    private boolean isAuth;
+    private PathResolver paths = null;
+    private Path renameFrom = null;
+    private volatile File pendingUpdate = null;
+    private final MetadataIndex index = MetadataIndex.getInstance();
+    private final Shard shard;
+    private Storage storage = null;
+    private volatile boolean isAuth;
+    private volatile boolean transferring = false;
 
     private boolean isUTF8Enable = true;
+    private boolean isCompressed = false;
+    private int compressionLevel = Config.get().getModeZLevel();
 
     private SimpleDateFormat fmtDate = new SimpleDateFormat("MMM dd HH:mm", Locale.ENGLISH);
     private SimpleDateFormat fmtPast = new SimpleDateFormat("MMM dd  yyyy", Locale.ENGLISH);
@@ -34,12 +81,15 @@ public class RequestHandler implements DataConnectionListener {
             FtpUtil.FTP_COMMAND_PORT, FtpUtil.FTP_COMMAND_MKD,
             FtpUtil.FTP_COMMAND_CDUP, FtpUtil.FTP_COMMAND_SYST,
             FtpUtil.FTP_COMMAND_RMD, FtpUtil.FTP_COMMAND_SIZE,
-            FtpUtil.FTP_COMMAND_MDTM
+            FtpUtil.FTP_COMMAND_MDTM, FtpUtil.FTP_COMMAND_EPRT,
+            FtpUtil.FTP_COMMAND_EPSV, "MODE Z", "HASH SHA-256*"
     };
 
-    RequestHandler(SocketChannel socket, String directory) {
+    RequestHandler(SocketChannel socket, String directory, Shard shard) {
         this.socket = socket;
+        this.control = socket;
         this.directory = directory;
+        this.shard = shard;
         processFunctions.put(FtpUtil.FTP_COMMAND_USER, this::processUser);
         processFunctions.put(FtpUtil.FTP_COMMAND_PASS, this::processPassword);
         processFunctions.put(FtpUtil.FTP_COMMAND_AUTH, this::processSecurityExtension);
@@ -63,133 +113,531 @@ public class RequestHandler implements DataConnectionListener {
         processFunctions.put(FtpUtil.FTP_COMMAND_RMD, this::processDirectoryRemove);
         processFunctions.put(FtpUtil.FTP_COMMAND_NLST, this::processNameList);
         processFunctions.put(FtpUtil.FTP_COMMAND_EPRT, this::processPortExtensionCommand);
+        processFunctions.put(FtpUtil.FTP_COMMAND_EPSV, this::processExtendedPassive);
         processFunctions.put(FtpUtil.FTP_COMMAND_MDTM, this::processModifiedTime);
         processFunctions.put(FtpUtil.FTP_COMMAND_NOOP, this::processNOOP);
+        processFunctions.put(FtpUtil.FTP_COMMAND_MODE, this::processMode);
+        processFunctions.put(FtpUtil.FTP_COMMAND_RNFR, this::processRenameFrom);
+        processFunctions.put(FtpUtil.FTP_COMMAND_RNTO, this::processRenameTo);
+        processFunctions.put(FtpUtil.FTP_COMMAND_SITE, this::processSite);
+        processFunctions.put(FtpUtil.FTP_COMMAND_HASH, this::processHash);
+        processFunctions.put(FtpUtil.FTP_COMMAND_ABOR, this::processAbort);
+        processFunctions.put(FtpUtil.FTP_COMMAND_STAT, this::processStatus);
+        processFunctions.put(FtpUtil.FTP_COMMAND_PBSZ, this::processProtectionBufferSize);
+        processFunctions.put(FtpUtil.FTP_COMMAND_PROT, this::processProtectionLevel);
+
+        siteFunctions.put("COPY", this::processSiteCopy);
+        siteFunctions.put("SIGN", this::processSiteSignatures);
+        siteFunctions.put("DELTA", this::processSiteDelta);
+        siteFunctions.put("LINK", this::processSiteLink);
+        siteFunctions.put("DEDUP", this::processSiteDedup);
+        siteFunctions.put("TREE", this::processSiteTree);
     }
 
     void processCommand(String command, String parameter) throws IOException {
+        CompletableFuture<Void> login = pendingLogin;
+        if (login != null) {
+            // sent before the reply to a held back PASS, which goes out first
+            login.join();
+        }
         command = command.toUpperCase();
+        publish(EventBus.Type.COMMAND, FtpUtil.FTP_COMMAND_PASS.equals(command) ? command + " ****" :
+                parameter.isEmpty() ? command : command + " " + parameter);
         try {
             processFunctions.get(command).accept(parameter);
         } catch (NullPointerException e) {
-            FtpUtil.println(socket, "502 " + command + " not implemented");
+            FtpUtil.println(control, "502 " + command + " not implemented");
             e.printStackTrace();
+        } catch (InvalidPathException e) {
+            // a name the file system can't take, with a NUL for example
+            FtpUtil.println(control, "501 Invalid path: " + e.getReason() + ".");
         }
     }
 
-    private void processNOOP(String parameter) {
+    long getSession() {
+        return session;
+    }
+
+    void publish(EventBus.Type type, String detail) {
+        EventBus.getInstance().publish(type, session, socket.socket().getInetAddress(), userName, detail, 0L);
+    }
+
+    /**
+     * @return the path a client path refers to, or null if it is outside the user root
+     */
+    private Path toPath(String parameter) {
+        return paths.resolve(parameter);
+    }
+
+    /**
+     * SITE COPY, SIGN and DELTA work on the file system directly. COPY and DELTA
+     * write files, which for DedupStorage would bypass the blob store
+     */
+    private boolean checkLocalStorage(String command, boolean writes) throws IOException {
+        if (storage instanceof LocalStorage && !(writes && storage instanceof DedupStorage))
+            return true;
+        FtpUtil.println(control, "504 SITE " + command + " not supported by this storage.");
+        return false;
+    }
+
+    /**
+     * SITE LINK and DEDUP need the deduplicating storage
+     *
+     * @return the storage, or null after telling the client
+     */
+    private DedupStorage dedupStorage(String command) throws IOException {
+        if (storage instanceof DedupStorage)
+            return (DedupStorage) storage;
+        FtpUtil.println(control, "504 SITE " + command + " not supported by this storage.");
+        return null;
+    }
+
+    private void denyAccess(String parameter) {
         try {
-            FtpUtil.println(socket, "200 NOOP command successful.");
+            FtpUtil.println(control, "553 " + parameter + ": Permission denied.");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void processModifiedTime(String parameter) {
-        checkAuth();
-        File f = new File(userCurrent, parameter);
+    private void processRenameFrom(String parameter) {
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
+
+        try {
+            if (storage.stat(f) == null) {
+                renameFrom = null;
+                FtpUtil.println(control, "550 " + parameter + ": No such file or directory");
+                return;
+            }
+
+            renameFrom = f;
+            FtpUtil.println(control, "350 File exists, ready for destination name.");
+        } catch (IOException e) {
+            System.out.println("Error processing RNFR command");
+            e.printStackTrace();
+        }
+    }
+
+    private void processRenameTo(String parameter) {
+        if (!checkAuth())
+            return;
+        Path from = renameFrom;
+        renameFrom = null;
+
         try {
-            if (f.exists()) {
-                FtpUtil.println(socket, "213 " + fmtStamp.format(f.lastModified()));
+            if (from == null) {
+                FtpUtil.println(control, "503 Bad sequence of commands. Send RNFR first.");
+                return;
+            }
+
+            Path to = toPath(parameter);
+            if (to == null) {
+                denyAccess(parameter);
+                return;
+            }
+
+            if (storage.stat(to) != null) {
+                FtpUtil.println(control, "553 " + parameter + ": File exists.");
+                return;
+            }
+
+            FileStat moved = storage.stat(from);
+            storage.rename(from, to);
+            PathResolver.invalidate();
+            if (quota != null && moved != null) {
+                quota.removed(from, moved.isDirectory(), moved.getSize());
+                quota.added(to, moved.isDirectory(), moved.getSize());
+            }
+            FtpUtil.println(control, "250 Rename successful.");
+        } catch (IOException e) {
+            System.out.println("Error processing RNTO command");
+            e.printStackTrace();
+            try {
+                FtpUtil.println(control, "553 Rename failed.");
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+        }
+    }
+
+    private void processSite(String parameter) {
+        if (!checkAuth())
+            return;
+        String[] requestLine = FtpUtil.split(parameter);
+        String command = requestLine[0].toUpperCase();
+        Consumer<String> function = siteFunctions.get(command);
+
+        try {
+            if (function == null) {
+                FtpUtil.println(control, "504 SITE " + command + " not implemented");
+                return;
+            }
+            function.accept(requestLine[1]);
+        } catch (IOException e) {
+            System.out.println("Error processing SITE command");
+            e.printStackTrace();
+        }
+    }
+
+    private void processSiteCopy(String parameter) {
+        String[] params = parameter.split("\\s+");
+
+        try {
+            if (!checkLocalStorage("COPY", true))
+                return;
+            if (params.length != 2) {
+                FtpUtil.println(control, "501 Usage: SITE COPY source destination");
+                return;
+            }
+
+            Path from = paths.resolve(params[0]);
+            Path to = paths.resolve(params[1]);
+            if (from == null || to == null) {
+                denyAccess(from == null ? params[0] : params[1]);
+                return;
+            }
+            if (!Files.exists(from)) {
+                FtpUtil.println(control, "550 " + params[0] + ": No such file or directory");
+                return;
+            }
+            if (Files.exists(to)) {
+                FtpUtil.println(control, "553 " + params[1] + ": File exists.");
+                return;
+            }
+            if (to.startsWith(from)) {
+                FtpUtil.println(control, "553 Can't copy a directory into itself.");
+                return;
+            }
+
+            String refused = quota != null ? quota.checkCopy(from) : null;
+            if (refused != null) {
+                FtpUtil.println(control, refused);
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                TreeCopy.copy(from, to);
+            } finally {
+                index.update(to.toFile());
+                if (quota != null)
+                    quota.added(to, Files.isDirectory(to, LinkOption.NOFOLLOW_LINKS), to.toFile().length());
+            }
+            FtpUtil.println(control, "250 SITE COPY successful (" +
+                    (System.currentTimeMillis() - start) + " ms).");
+        } catch (IOException e) {
+            System.out.println("Error processing SITE COPY command");
+            e.printStackTrace();
+            try {
+                FtpUtil.println(control, "553 Copy failed.");
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Manifest of a whole tree, one line of MLSD style facts per entry with its
+     * path relative to the top: SITE TREE [path]
+     */
+    private void processSiteTree(String parameter) {
+        SimpleDateFormat stamp = new SimpleDateFormat("yyyyMMddHHmmss");
+        stamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String name = parameter.isEmpty() ? "" : parameter.substring(parameter.lastIndexOf('/') + 1);
+        TreeListing.Format facts = (path, entries, first) -> {
+            StringBuilder sb = new StringBuilder();
+            for (FileStat f : entries) {
+                sb.append("type=").append(f.isDirectory() ? "dir" : "file").append(";size=").append(f.getSize())
+                        .append(";modify=").append(stamp.format(new Date(f.getModified()))).append("; ")
+                        .append(path.isEmpty() ? "" : path + "/").append(f.getName()).append("\r\n");
+            }
+            return sb.toString();
+        };
+        sendListing(new String[]{"R", parameter}, "150 Opening ASCII mode data connection for tree manifest",
+                facts, stat -> facts.directory("", Collections.singletonList(new FileStat(name, false,
+                        stat.getSize(), stat.getModified())), true));
+    }
+
+    private void processSiteSignatures(String parameter) {
+        String[] params = parameter.split("\\s+");
+
+        try {
+            if (!checkLocalStorage("SIGN", false))
+                return;
+            if (params[0].isEmpty() || params.length > 2 || (params.length == 2 && !params[1].matches("[0-9]{1,9}"))) {
+                FtpUtil.println(control, "501 Usage: SITE SIGN file [blocksize]");
+                return;
+            }
+
+            Path path = toPath(params[0]);
+            if (path == null) {
+                denyAccess(params[0]);
+                return;
+            }
+            File f = path.toFile();
+
+            int blockSize = params.length == 2 ? Integer.parseInt(params[1]) :
+                    Config.get().getInt("ftp.delta.block.size", 64 * 1024);
+            // every task signing a range of the file holds a block in memory
+            int maxBlockSize = Config.get().getInt("ftp.delta.block.max", 16 * 1024 * 1024);
+            if (blockSize > maxBlockSize) {
+                FtpUtil.println(control, "501 Block size is limited to " + maxBlockSize + " bytes");
+                return;
+            }
+            if (!f.isFile() || blockSize < 512) {
+                FtpUtil.println(control, "550 " + params[0] + ": No such file or invalid block size");
+                return;
+            }
+
+            if (data != null) {
+                String listing = BlockSignatures.of(f, blockSize).toListing();
+                FtpUtil.println(control, "150 Opening ASCII mode data connection for block signatures");
+                data.send(listing, isUTF8Enable);
             } else {
-                FtpUtil.println(socket, "550 " + parameter + ": No such file or directory");
+                FtpUtil.println(control, "552 Requested file action aborted.");
             }
         } catch (IOException e) {
-            System.out.println("Error processing MDTM");
+            System.out.println("Error processing SITE SIGN command");
             e.printStackTrace();
         }
     }
 
-    private void processPortExtensionCommand(String parameter) {
-        checkAuth();
-        String[] params = parameter.split("\\|");
-        if (data != null) {
-            data.stop();
-            data = null;
+    private void processSiteDelta(String parameter) {
+        Path path = toPath(parameter);
+        if (path == null) {
+            denyAccess(parameter);
+            return;
         }
+        File f = path.toFile();
 
-        this.restart = 0L;
-        InetAddress addr = null;
-        int port = 0;
         try {
-            if (params[1].equals("1")) // IPv4
-                addr = InetAddress.getAllByName(params[2])[0];
-            if (params[1].equals("2")) // IPv6
-                addr = InetAddress.getAllByName(params[2])[0];
-            port = Integer.parseInt(params[3]);
-        } catch (UnknownHostException e) {
+            if (!checkLocalStorage("DELTA", true))
+                return;
+            if (parameter.isEmpty() || f.isDirectory()) {
+                FtpUtil.println(control, "501 Usage: SITE DELTA file");
+                return;
+            }
+
+            String refused = quota != null ? quota.checkUpload(!f.exists()) : null;
+            if (refused != null) {
+                FtpUtil.println(control, refused);
+            } else if (data != null) {
+                FtpUtil.println(control, "150 Opening BINARY mode data connection for delta of " + parameter);
+                pendingUpdate = f;
+                uploading = true;
+                data.storeDelta(f, quota);
+            } else {
+                FtpUtil.println(control, "552 Requested file action aborted.");
+            }
+        } catch (IOException e) {
+            System.out.println("Error processing SITE DELTA command");
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Stores a file from content the server already has, so a client that knows
+     * the hash of what it is about to upload can skip the transfer:
+     * SITE LINK sha-256 path
+     */
+    private void processSiteLink(String parameter) {
+        String[] params = parameter.split("\\s+");
 
-        InetSocketAddress sock = null;
         try {
-            sock = new InetSocketAddress(addr, port);
-            FtpUtil.println(socket, "200 EPRT command successful.");
+            DedupStorage dedup = dedupStorage("LINK");
+            if (dedup == null)
+                return;
+            if (params.length != 2 || !params[0].matches("[0-9a-fA-F]{64}")) {
+                FtpUtil.println(control, "501 Usage: SITE LINK sha-256 file");
+                return;
+            }
 
-            this.data = DataConnection.createActive(sock);
-            this.data.setFileOffset(restart);
-            this.data.addDataConnectionListener(this);
-            this.data.start();
+            Path path = toPath(params[1]);
+            if (path == null) {
+                denyAccess(params[1]);
+                return;
+            }
+            FileStat stat = storage.stat(path);
+            if (stat != null && stat.isDirectory()) {
+                FtpUtil.println(control, "553 " + params[1] + ": Is a directory.");
+                return;
+            }
+
+            String refused = quota != null ? quota.checkUpload(stat == null) : null;
+            if (refused != null) {
+                FtpUtil.println(control, refused);
+                return;
+            }
+
+            long size = dedup.link(params[0], path);
+            if (size >= 0 && quota != null) {
+                if (stat != null)
+                    quota.removed(path, false, stat.getSize());
+                quota.added(path, false, size);
+            }
+            if (size < 0) {
+                FtpUtil.println(control, "550 Content not stored yet, upload it with STOR.");
+            } else {
+                FtpUtil.println(control, "250 " + params[1] + " stored from existing content, " +
+                        size + " bytes not transferred.");
+            }
         } catch (IOException e) {
+            System.out.println("Error processing SITE LINK command");
             e.printStackTrace();
             try {
-                FtpUtil.println(socket, "500 Invalid port format.");
+                FtpUtil.println(control, "553 Link failed.");
             } catch (IOException e1) {
                 e1.printStackTrace();
             }
         }
     }
 
-    private void processNameList(String parameter) {
-        checkAuth();
-        File[] files = userCurrent.listFiles();
-        StringBuilder sb = new StringBuilder();
-        if (files != null) {
-            for (File f : files)
-                sb.append(f.getName()).append("\r\n");
+    private void processSiteDedup(String parameter) {
+        try {
+            DedupStorage dedup = dedupStorage("DEDUP");
+            if (dedup != null)
+                FtpUtil.println(control, "200 " + dedup.getStore().getStatistics());
+        } catch (IOException e) {
+            System.out.println("Error processing SITE DEDUP command");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * HASH file, answered with the SHA-256 of the whole file. Free for files in
+     * the deduplicating storage, read through once for the others
+     */
+    private void processHash(String parameter) {
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
         }
 
         try {
-            if (data != null && sb.length() != 0) {
-                FtpUtil.println(socket, "150 Opening ASCII mode data connection for file list");
-                data.send(sb.toString(), isUTF8Enable);
+            FileStat stat = storage.stat(f);
+            if (stat == null || !stat.isFile()) {
+                FtpUtil.println(control, "550 " + parameter + ": No such file");
+                return;
+            }
+
+            String hash = storage instanceof DedupStorage ? ((DedupStorage) storage).hashOf(f) : null;
+            if (hash == null) {
+                try (ReadableByteChannel in = storage.openRead(f, 0)) {
+                    hash = DedupStorage.sha256(in);
+                }
+            }
+            FtpUtil.println(control, "213 SHA-256 0-" + stat.getSize() + " " + hash + " " + parameter);
+        } catch (IOException e) {
+            System.out.println("Error processing HASH command");
+            e.printStackTrace();
+        }
+    }
+
+    private void processNOOP(String parameter) {
+        try {
+            FtpUtil.println(control, "200 NOOP command successful.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processModifiedTime(String parameter) {
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
+        try {
+            FileStat stat = storage.stat(f);
+            if (stat != null) {
+                FtpUtil.println(control, "213 " + fmtStamp.format(stat.getModified()));
             } else {
-                FtpUtil.println(socket, "552 Requested file list action aborted.");
+                FtpUtil.println(control, "550 " + parameter + ": No such file or directory");
             }
         } catch (IOException e) {
-            System.out.println("Error processing NLST command");
+            System.out.println("Error processing MDTM");
             e.printStackTrace();
         }
     }
 
-    private String getUserPath(File f) throws IOException {
-        String root = userRoot.getCanonicalPath();
-        String path = f.getCanonicalPath();
+    /**
+     * EPRT |proto|address|port| (RFC 2428), PORT for IPv6 as well
+     */
+    private void processPortExtensionCommand(String parameter) {
+        if (!checkAuth() || !checkProtection() || !checkActiveAllowed())
+            return;
+
+        InetSocketAddress addr;
+        try {
+            String[] params = parameter.split(Pattern.quote(parameter.isEmpty() ? "|" : parameter.substring(0, 1)));
+            if (!params[1].equals("1") && !params[1].equals("2")) {
+                FtpUtil.println(control, "522 Network protocol not supported, use (1,2)");
+                return;
+            }
+            if (!params[2].matches("[0-9A-Fa-f.:]+"))
+                throw new UnknownHostException(params[2]); // no name lookups
+            InetAddress host = InetAddress.getByName(params[2]);
+            if ((host instanceof Inet4Address) != params[1].equals("1"))
+                throw new UnknownHostException(params[2]);
+            addr = new InetSocketAddress(host, Integer.parseInt(params[3]));
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | UnknownHostException e) {
+            syntaxError();
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        openActive(addr, FtpUtil.FTP_COMMAND_EPRT);
+    }
 
-        path = path.substring(root.length()).replace('\\', '/');
-        if (path.charAt(0) != '/')
-            path = '/' + path;
-        return path;
+    private void processNameList(String parameter) {
+        if (!checkAuth())
+            return;
+        String[] args = listArguments(parameter);
+        String prefix = args[1].isEmpty() || args[1].endsWith("/") ? args[1] : args[1] + "/";
+        sendListing(args, "150 Opening ASCII mode data connection for file list", (path, entries, first) -> {
+            StringBuilder sb = new StringBuilder();
+            String dir = path.isEmpty() ? prefix : prefix + path + "/";
+            for (FileStat f : entries)
+                sb.append(dir).append(f.getName()).append("\r\n");
+            return sb.toString();
+        }, stat -> args[1] + "\r\n");
     }
 
     private void processDirectoryRemove(String parameter) {
-        checkAuth();
-        File f = null;
-        if (parameter.charAt(0) == '/')
-            f = new File(userRoot, parameter);
-        else
-            f = new File(userCurrent, parameter);
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
 
         try {
-            if (!f.exists()) {
-                FtpUtil.println(socket, "521 " + parameter + ": No such directory.");
+            FileStat stat = storage.stat(f);
+            if (stat == null) {
+                FtpUtil.println(control, "521 " + parameter + ": No such directory.");
                 return;
             }
 
-            if (f.isDirectory() && f.delete()) {
-                FtpUtil.println(socket, "250 RMD command successful.");
+            if (stat.isDirectory() && storage.delete(f)) {
+                PathResolver.invalidate();
+                if (quota != null)
+                    quota.removed(f, true, 0L);
+                FtpUtil.println(control, "250 RMD command successful.");
             } else {
-                FtpUtil.println(socket, "521 Removing directory was failed.");
+                FtpUtil.println(control, "521 Removing directory was failed.");
             }
         } catch (IOException e) {
             System.out.println("Problem processing RMD command");
@@ -198,23 +646,31 @@ public class RequestHandler implements DataConnectionListener {
     }
 
     private void processDirectoryMake(String parameter) {
-        checkAuth();
-        File f = null;
-        if (parameter.charAt(0) == '/')
-            f = new File(userRoot, parameter);
-        else
-            f = new File(userCurrent, parameter);
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
 
         try {
-            if (f.exists()) {
-                FtpUtil.println(socket, "521 Directory already exists.");
+            if (storage.stat(f) != null) {
+                FtpUtil.println(control, "521 Directory already exists.");
+                return;
+            }
+            String refused = quota != null ? quota.checkCreate() : null;
+            if (refused != null) {
+                FtpUtil.println(control, refused);
                 return;
             }
 
-            if (f.mkdir()) {
-                FtpUtil.println(socket, "257 \"" + getUserPath(f) + "\" - Directory successfully created.");
+            if (storage.mkdir(f)) {
+                if (quota != null)
+                    quota.added(f, true, 0L);
+                FtpUtil.println(control, "257 \"" + paths.toVirtual(parameter) + "\" - Directory successfully created.");
             } else {
-                FtpUtil.println(socket, "521 Making directory was failed.");
+                FtpUtil.println(control, "521 Making directory was failed.");
             }
         } catch (IOException e) {
             System.out.println("Error processing MKD");
@@ -223,63 +679,221 @@ public class RequestHandler implements DataConnectionListener {
     }
 
     private void processPortCommand(String parameter) {
-        checkAuth();
-        String[] ports = parameter.split(",");
+        if (!checkAuth() || !checkProtection() || !checkActiveAllowed())
+            return;
+
+        InetSocketAddress addr;
+        try {
+            String[] ports = parameter.split(",");
+            byte[] host = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                int octet = Integer.parseInt(ports[i].trim());
+                if (octet < 0 || octet > 255)
+                    throw new NumberFormatException(ports[i]);
+                host[i] = (byte) octet;
+            }
+            addr = new InetSocketAddress(InetAddress.getByAddress(host),
+                    Integer.parseInt(ports[4].trim()) * 256 + Integer.parseInt(ports[5].trim()));
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | UnknownHostException e) {
+            syntaxError();
+            return;
+        }
+        openActive(addr, FtpUtil.FTP_COMMAND_PORT);
+    }
+
+    /**
+     * Sets up the data connection to the client. The connect starts right away
+     * on the transfer thread, so it overlaps with the client sending the
+     * transfer command and with the 150 reply
+     */
+    private void openActive(InetSocketAddress addr, String command) {
         if (data != null) {
             data.stop();
             data = null;
         }
-
         this.restart = 0L;
 
-        InetSocketAddress addr = null;
         try {
-            addr = new InetSocketAddress(
-                    ports[0] + "." + ports[1] + "." + ports[2] + "." + ports[3],
-                    Integer.parseInt(ports[4]) * 256 +
-                            Integer.parseInt(ports[5]));
-
-            FtpUtil.println(socket, "200 PORT command successful.");
+            // PORT and EPRT to addresses other than the client's only with ftp.active.foreign
+            if (!Config.get().getBoolean("ftp.active.foreign", false) &&
+                    !addr.getAddress().equals(socket.socket().getInetAddress())) {
+                // no bouncing connections off this server to other hosts
+                FtpUtil.println(control, "504 Active connections only go to your own address.");
+                return;
+            }
+            FtpUtil.println(control, "200 " + command + " command successful.");
 
-            this.data = DataConnection.createActive(addr);
+            this.data = DataConnection.createActive(addr, socket.socket().getLocalAddress(), shard);
             this.data.setFileOffset(restart);
+            this.data.setCompressionLevel(getCompressionLevel());
+            this.data.setBinary(isBinary);
+            this.data.setProtection(dataProtection());
+            this.data.setSession(session, socket.socket().getInetAddress(), userName);
+            this.data.setRate(getRate());
             this.data.addDataConnectionListener(this);
+            this.data.addDataConnectionListener(new Audit(this.data));
             this.data.start();
+        } catch (IOException e) {
+            System.out.println("Error setting active mode");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * After EPSV ALL the client promised to use EPSV only
+     */
+    private boolean checkActiveAllowed() {
+        if (!epsvAll)
+            return true;
+        try {
+            FtpUtil.println(control, "503 Only EPSV is allowed after EPSV ALL.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private void syntaxError() {
+        try {
+            FtpUtil.println(control, "501 Syntax error in parameters or arguments.");
         } catch (IOException e) {
             e.printStackTrace();
-            try {
-                FtpUtil.println(socket, "500 Invalid port format.");
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
         }
     }
 
     private void processQuit(String parameter) {
         try {
-            FtpUtil.println(socket, "221 Goodbye.");
+            FtpUtil.println(control, "221 Goodbye.");
         } catch (IOException e) {
             System.out.println("Error quiting");
             e.printStackTrace();
         } finally {
-            data.stop();
-            FtpUtil.releaseChannelResource(socket);
+            if (data != null)
+                data.stop();
+            FtpUtil.releaseChannelResource(control);
         }
     }
 
-    private void processFileSize(String parameter) {
-        checkAuth();
-        File f = null;
-        if (parameter.charAt(0) == '/')
-            f = new File(userRoot, parameter);
+    /**
+     * Closes the data connection under a running transfer. The transfer thread
+     * replies 426 for the transfer, then ABOR gets its own 226
+     */
+    private void processAbort(String parameter) {
+        DataConnection transfer = data;
+        try {
+            if (transfer == null || !transferring) {
+                if (transfer != null)
+                    transfer.stop();
+                data = null;
+                FtpUtil.println(control, "225 No transfer to abort.");
+                return;
+            }
+
+            transfer.abort("aborted by client");
+            // how long ABOR waits for the transfer to reply before giving its own reply
+            long timeout = Config.get().getLong("ftp.abort.timeout", 5000L);
+            if (!transfer.awaitCompletion(timeout))
+                System.out.println("* Transfer still running " + timeout + " ms after ABOR");
+            data = null;
+            FtpUtil.println(control, "226 Abort successful.");
+        } catch (IOException e) {
+            System.out.println("Error processing ABOR command");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * STAT alone reports the running transfer, or the session when there is
+     * none. STAT with a path lists it over the control connection
+     */
+    private void processStatus(String parameter) {
+        try {
+            if (!parameter.isEmpty()) {
+                processPathStatus(parameter);
+                return;
+            }
+
+            DataConnection transfer = data;
+            if (transfer != null && transferring) {
+                FtpUtil.println(control, "213-Status of transfer:\r\n " + transfer.getDescription() + "\r\n " +
+                        formatProgress(transfer) + "\r\n213 End of status.");
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder("211-FTP server status:\r\n");
+            sb.append(" Connected from ").append(socket.socket().getInetAddress().getHostAddress()).append("\r\n");
+            sb.append(isAuth ? " Logged in as " + userName : " Not logged in").append("\r\n");
+            sb.append(" TYPE: ").append(isBinary ? "BINARY" : "ASCII");
+            sb.append(", MODE: ").append(isCompressed ? "Z" : "Stream").append("\r\n");
+            sb.append(transfer != null ? " Data connection open" : " No data connection").append("\r\n");
+            if (quota != null)
+                sb.append(" ").append(quota.getDescription()).append("\r\n");
+            sb.append("211 End of status.");
+            FtpUtil.println(control, sb.toString());
+        } catch (IOException e) {
+            System.out.println("Error processing STAT command");
+            e.printStackTrace();
+        }
+    }
+
+    private void processPathStatus(String parameter) throws IOException {
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
+
+        FileStat stat = storage.stat(f);
+        if (stat == null) {
+            FtpUtil.println(control, "550 " + parameter + ": No such file or directory");
+            return;
+        }
+        List<FileStat> files = stat.isDirectory() ? storage.list(f) : Collections.singletonList(stat);
+        FtpUtil.println(control, "213-Status of " + parameter + ":\r\n" +
+                formatList(files == null ? Collections.emptyList() : files) + "213 End of status.");
+    }
+
+    /**
+     * Reads the counters the transfer thread updates, without stopping it
+     */
+    private static String formatProgress(DataConnection transfer) {
+        long started = transfer.getStarted();
+        if (started == 0L)
+            return "Waiting for the data connection";
+
+        long bytes = transfer.getTransferred();
+        long expected = transfer.getExpectedSize();
+        long rate = bytes * 1000 / Math.max(1L, System.currentTimeMillis() - started);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(bytes);
+        if (expected > 0)
+            sb.append(" of ").append(expected).append(" bytes (").append(bytes * 100 / expected).append("%)");
         else
-            f = new File(userCurrent, parameter);
+            sb.append(" bytes");
+        sb.append(", ").append(rate / 1024).append(" KB/s");
+        if (expected > 0 && rate > 0)
+            sb.append(", ETA ").append(Math.max(0L, expected - bytes) / rate).append(" s");
+        return sb.toString();
+    }
+
+    private void processFileSize(String parameter) {
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
 
         try {
-            if (f.exists()) {
-                FtpUtil.println(socket, "213 " + f.length());
+            FileStat stat = storage.stat(f);
+            if (stat != null) {
+                FtpUtil.println(control, "213 " + stat.getSize());
             } else {
-                FtpUtil.println(socket, "550 " + parameter + ": No such file or directory");
+                FtpUtil.println(control, "550 " + parameter + ": No such file or directory");
             }
         } catch (IOException e) {
             System.out.println("Error processing SIZE command");
@@ -288,23 +902,28 @@ public class RequestHandler implements DataConnectionListener {
     }
 
     private void processDelete(String parameter) {
-        checkAuth();
-        File f = null;
-        if (parameter.charAt(0) == '/')
-            f = new File(userRoot, parameter);
-        else
-            f = new File(userCurrent, parameter);
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
 
         try {
-            if (!f.exists()) {
-                FtpUtil.println(socket, "521 " + parameter + ": No such directory.");
+            FileStat stat = storage.stat(f);
+            if (stat == null) {
+                FtpUtil.println(control, "521 " + parameter + ": No such directory.");
                 return;
             }
 
-            if (f.isFile() && f.delete()) {
-                FtpUtil.println(socket, "250 DELE command successful.");
+            if (stat.isFile() && storage.delete(f)) {
+                PathResolver.invalidate();
+                if (quota != null)
+                    quota.removed(f, false, stat.getSize());
+                FtpUtil.println(control, "250 DELE command successful.");
             } else {
-                FtpUtil.println(socket, "521 Removing file was failed.");
+                FtpUtil.println(control, "521 Removing file was failed.");
             }
         } catch (IOException e) {
             System.out.println("Error processing DELE command");
@@ -313,15 +932,24 @@ public class RequestHandler implements DataConnectionListener {
     }
 
     private void processStore(String parameter) {
-        checkAuth();
-        File f = new File(userCurrent, parameter);
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
 
         try {
-            if (data != null) {
-                FtpUtil.println(socket, "150 Opening BINARY mode data connection for " + parameter);
-                data.storeFile(f);
+            String refused = quota != null ? quota.checkUpload(storage.stat(f) == null) : null;
+            if (refused != null) {
+                FtpUtil.println(control, refused);
+            } else if (data != null) {
+                FtpUtil.println(control, "150 Opening " + (isBinary ? "BINARY" : "ASCII") + " mode data connection for " + parameter);
+                uploading = true;
+                data.storeFile(storage, f, quota);
             } else {
-                FtpUtil.println(socket, "552 Requested file action aborted.");
+                FtpUtil.println(control, "552 Requested file action aborted.");
             }
         } catch (IOException e) {
             System.out.println("Error processing STOR command");
@@ -330,7 +958,8 @@ public class RequestHandler implements DataConnectionListener {
     }
 
     private void processFileReset(String parameter) {
-        checkAuth();
+        if (!checkAuth())
+            return;
         long offset = Long.parseLong(parameter);
         this.restart = offset;
         if (data != null) {
@@ -338,7 +967,7 @@ public class RequestHandler implements DataConnectionListener {
         }
 
         try {
-            FtpUtil.println(socket, "350 Restarting at " + offset +
+            FtpUtil.println(control, "350 Restarting at " + offset +
                     ". Send STORE or RETRIEVE to initiate transfer");
         } catch (IOException e) {
             System.out.println("Error processing REST command");
@@ -346,17 +975,71 @@ public class RequestHandler implements DataConnectionListener {
         }
     }
 
+    private void processMode(String parameter) {
+        parameter = parameter.toUpperCase();
+
+        try {
+            switch (parameter) {
+                case "S":
+                    isCompressed = false;
+                    break;
+                case "Z":
+                    isCompressed = true;
+                    break;
+                default:
+                    FtpUtil.println(control, "504 Command not implemented for that parameter.");
+                    return;
+            }
+            if (data != null)
+                data.setCompressionLevel(getCompressionLevel());
+            FtpUtil.println(control, "200 Mode set to " + parameter);
+        } catch (IOException e) {
+            System.out.println("Error processing mode");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return whether logins and data connections have to be protected by TLS
+     */
+    private static boolean isTlsRequired() {
+        return Config.get().getBoolean("ftp.tls.required", false);
+    }
+
+    private int getCompressionLevel() {
+        return isCompressed ? compressionLevel : -1;
+    }
+
+    /**
+     * @return the transfer rate limit of the account, 0 for none
+     */
+    private long getRate() {
+        return account != null && !anonymous ? account.getRate() : 0L;
+    }
+
     private void processOption(String parameter) {
-        checkAuth();
+        if (!checkAuth())
+            return;
         try {
             String[] params = parameter.split(" ");
             if (params.length > 1 && params[0].equalsIgnoreCase("UTF8")) {
                 String flag = params[1].toUpperCase();
                 isUTF8Enable = flag.equals("YES") || flag.equals("TRUE") || flag.equals("ON");
 
-                FtpUtil.println(socket, "200 OPTS UTF8 command successful.");
+                FtpUtil.println(control, "200 OPTS UTF8 command successful.");
+            } else if (params.length > 3 && params[0].equalsIgnoreCase("MODE") &&
+                    params[1].equalsIgnoreCase("Z") && params[2].equalsIgnoreCase("LEVEL")) {
+                if (!params[3].matches("[0-9]")) {
+                    FtpUtil.println(control, "501 Compression level must be between 0 and 9.");
+                    return;
+                }
+                compressionLevel = Integer.parseInt(params[3]);
+                if (data != null)
+                    data.setCompressionLevel(getCompressionLevel());
+
+                FtpUtil.println(control, "200 OPTS MODE Z command successful.");
             } else {
-                FtpUtil.println(socket, "501 Syntax error in parameters or arguments.");
+                FtpUtil.println(control, "501 Syntax error in parameters or arguments.");
             }
         } catch (IOException e) {
             System.out.println("Error processing options");
@@ -368,13 +1051,19 @@ public class RequestHandler implements DataConnectionListener {
         StringBuilder sb = new StringBuilder();
         sb.append("211-Extensions supported:\r\n");
         for (String extension : extensions) {
+            if (extension.equals(FtpUtil.FTP_COMMAND_AUTH)) {
+                // RFC 4217 features, only offered when there is a key to offer them with
+                if (TlsContext.getInstance() != null)
+                    sb.append(" AUTH TLS\r\n PBSZ\r\n PROT\r\n");
+                continue;
+            }
             String toAppend = " " + extension + "\r\n";
             sb.append(toAppend);
         }
         sb.append("211 End\r\n");
         System.out.println(sb.toString());
         try {
-            FtpUtil.println(socket, sb.toString());
+            FtpUtil.println(control, sb.toString());
         } catch (IOException e) {
             System.out.println("Error sending feature list");
             e.printStackTrace();
@@ -383,39 +1072,41 @@ public class RequestHandler implements DataConnectionListener {
 
     private void processSystem(String parameter) {
         try {
-            FtpUtil.println(socket, "215 UNIX Type: L8");
+            FtpUtil.println(control, "215 UNIX Type: L8");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private void processChangeDirectoryUp(String parameter) {
-        checkAuth();
         processChangeWorkingDirectory("..");
     }
 
     private void processRetrieve(String parameter) {
-        checkAuth();
-        File f = null;
-        if (parameter.charAt(0) == '/')
-            f = new File(userRoot, parameter);
-        else
-            f = new File(userCurrent, parameter);
+        if (!checkAuth())
+            return;
+        Path f = toPath(parameter);
+        if (f == null) {
+            denyAccess(parameter);
+            return;
+        }
 
         try {
-            if (!f.exists()) {
-                FtpUtil.println(socket, "550 " + parameter + ": No such file or directory");
+            FileStat stat = storage.stat(f);
+            if (stat == null || stat.isDirectory()) {
+                FtpUtil.println(control, "550 " + parameter + ": No such file or directory");
                 if (data != null)
                     data.stop();
                 return;
             }
 
             if (data != null) {
-                FtpUtil.println(socket, "150 Opening BINARY mode data connection for " +
-                        parameter + " (" + f.length() + " bytes)");
-                data.sendFile(f);
+                FtpUtil.println(control, "150 Opening " + (isBinary ? "BINARY" : "ASCII") + " mode data connection for " +
+                        parameter + " (" + stat.getSize() + " bytes)");
+                data.setExpectedSize(Math.max(0L, stat.getSize() - restart));
+                data.sendFile(storage, f);
             } else {
-                FtpUtil.println(socket, "552 Requested file action aborted.");
+                FtpUtil.println(control, "552 Requested file action aborted.");
             }
         } catch (IOException e) {
             System.out.println("Error processing RETR command");
@@ -424,109 +1115,211 @@ public class RequestHandler implements DataConnectionListener {
     }
 
     private void processChangeWorkingDirectory(String parameter) {
-        checkAuth();
-        File toChange = null;
-        if (parameter.length() > 0 && parameter.charAt(0) == '/') {
-            toChange = new File(userRoot, parameter.substring(1));
-        } else {
-            toChange = new File(userCurrent, parameter);
-        }
+        if (!checkAuth())
+            return;
+        // confinement first, and the same reply either way, so a link out of the
+        // root doesn't tell the client what exists behind it
+        Path toChange = paths.resolve(parameter);
 
         try {
-            if (!toChange.exists() || !toChange.isDirectory()) {
-                FtpUtil.println(socket, "550 " + parameter + ": No such file or directory");
+            FileStat stat = toChange == null ? null : storage.stat(toChange);
+            if (stat == null || !stat.isDirectory() || !paths.changeDirectory(parameter)) {
+                FtpUtil.println(control, "550 " + parameter + ": No such file or directory");
                 return;
             }
 
-            String root = userRoot.getAbsolutePath();
-            String willChange = toChange.getCanonicalPath();
-            if (!willChange.startsWith(root)) {
-                FtpUtil.println(socket, "553 Requested action not taken.");
+            FtpUtil.println(control, "250 CWD command successful");
+        } catch (IOException e) {
+            System.out.println("Problem processing CWD");
+            e.printStackTrace();
+        }
+    }
+
+    private void processList(String parameter) {
+        if (!checkAuth())
+            return;
+        String[] args = listArguments(parameter);
+        boolean recursive = args[0].indexOf('R') >= 0;
+        String top = args[1].isEmpty() ? "." : args[1];
+        sendListing(args, "150 Opening ASCII mode data connection for file list.\r\n", (path, entries, first) -> {
+            if (!recursive)
+                return formatList(entries);
+            return (first ? "" : "\r\n") + (path.isEmpty() ? top : top + "/" + path) + ":\r\n" + formatList(entries);
+        }, stat -> formatList(Collections.singletonList(stat)));
+    }
+
+    /**
+     * Streams the listing of a directory, or of its whole tree with the R option,
+     * for LIST, NLST and SITE TREE
+     *
+     * @param args   options and path from listArguments()
+     * @param single the listing of a path that is a file
+     */
+    private void sendListing(String[] args, String opening, TreeListing.Format format,
+                             Function<FileStat, String> single) {
+        try {
+            Path dir = args[1].isEmpty() ? paths.getCurrentPath() : toPath(args[1]);
+            if (dir == null) {
+                denyAccess(args[1]);
+                return;
+            }
+            FileStat stat = storage.stat(dir);
+            if (stat == null) {
+                FtpUtil.println(control, "550 " + args[1] + ": No such file or directory");
+                return;
+            }
+            if (data == null) {
+                FtpUtil.println(control, "552 Requested file list action aborted.");
                 return;
             }
 
-            this.userCurrent = new File(willChange);
-            FtpUtil.println(socket, "250 CWD command successful");
+            FtpUtil.println(control, opening);
+            if (stat.isFile()) {
+                data.send(single.apply(stat), isUTF8Enable);
+            } else {
+                Charset charset = isUTF8Enable ? StandardCharsets.UTF_8 : Config.get().getClientCharset();
+                data.sendListing(new TreeListing(storage, dir, format, charset, args[0].indexOf('R') >= 0));
+            }
         } catch (IOException e) {
-            System.out.println("Problem processing CWD");
+            System.out.println("Error processing listing");
             e.printStackTrace();
         }
     }
 
-    private void processList(String parameter) {
-        checkAuth();
-        File[] files = userCurrent.listFiles();
+    /**
+     * Splits a LIST or NLST argument into ls style options, such as "-la" or
+     * "-R", and the path after them
+     *
+     * @return the option letters and the path, "" if none
+     */
+    private static String[] listArguments(String parameter) {
+        StringBuilder options = new StringBuilder();
+        String rest = parameter.trim();
+        while (rest.startsWith("-")) {
+            int end = rest.indexOf(' ');
+            options.append(end < 0 ? rest.substring(1) : rest.substring(1, end));
+            rest = end < 0 ? "" : rest.substring(end + 1).trim();
+        }
+        return new String[]{options.toString(), rest};
+    }
+
+    /**
+     * @return the files as ls -l lines, each ended by CRLF. Tree listings call
+     *         this from the transfer thread, hence the lock on the date formats
+     */
+    private synchronized String formatList(List<FileStat> files) {
         StringBuilder sb = new StringBuilder();
 
         Calendar cal = Calendar.getInstance();
         int currentYear = cal.get(Calendar.YEAR);
 
-        List<File> list = null;
-        if (files != null) {
-            list = new ArrayList<>(files.length);
-            Collections.addAll(list, files);
-
-            list.sort(Comparator.comparing(File::getName));
-
-            for (File f : list) {
-                if (f.isDirectory()) {
-                    sb.append("drwxr-xr-x");
-                } else if (f.isFile()) {
-                    sb.append("-rw-r--r--");
-                } else continue;
-
-                sb.append(' ');
-                sb.append(String.format("%4d", 1));
-                sb.append(' ');
-                sb.append("user");
-                sb.append(' ');
-                sb.append("group");
-                long len = f.length();
-                if (f.isDirectory())
-                    len = 4096;
-                sb.append(String.format("%13d", len));
-                sb.append(' ');
-
-                cal.setTimeInMillis(f.lastModified());
-                if (cal.get(Calendar.YEAR) == currentYear) {
-                    sb.append(fmtDate.format(cal.getTime()));
-                } else {
-                    sb.append(fmtPast.format(cal.getTime()));
-                }
-                sb.append(' ');
-                sb.append(f.getName());
-                sb.append("\r\n");
+        for (FileStat f : files) {
+            if (f.isDirectory()) {
+                sb.append("drwxr-xr-x");
+            } else {
+                sb.append("-rw-r--r--");
             }
-            System.out.println(sb.toString());
 
-            try {
-                if (data != null) {
-                    FtpUtil.println(socket, "150 Opening ASCII mode data connection for file list.\r\n");
-                    data.send(sb.toString(), isUTF8Enable);
-                } else {
-                    FtpUtil.println(socket, "552 Requested file list action aborted.");
-                }
-            } catch (IOException e) {
-                System.out.println("Error processing LIST command");
-                e.printStackTrace();
+            sb.append(' ');
+            sb.append(String.format("%4d", 1));
+            sb.append(' ');
+            sb.append("user");
+            sb.append(' ');
+            sb.append("group");
+            long len = f.getSize();
+            if (f.isDirectory())
+                len = 4096;
+            sb.append(String.format("%13d", len));
+            sb.append(' ');
+
+            cal.setTimeInMillis(f.getModified());
+            if (cal.get(Calendar.YEAR) == currentYear) {
+                sb.append(fmtDate.format(cal.getTime()));
+            } else {
+                sb.append(fmtPast.format(cal.getTime()));
             }
+            sb.append(' ');
+            sb.append(f.getName());
+            sb.append("\r\n");
         }
+        return sb.toString();
     }
 
     private void processPassive(String parameter) {
-        checkAuth();
+        if (!checkAuth() || !checkProtection() || !checkActiveAllowed())
+            return;
+        if (openPassive(null))
+            sendPassiveReply("227 Entering Passive Mode (" + data.getAddressAsString() + ")");
+    }
+
+    /**
+     * EPSV (RFC 2428) only tells the port, the client connects to the address
+     * it reached the control connection on, so it works over IPv6 and through NAT
+     */
+    private void processExtendedPassive(String parameter) {
+        if (!checkAuth())
+            return;
+        try {
+            InetAddress local = socket.socket().getLocalAddress();
+            String family = local instanceof Inet4Address ? "1" : "2";
+            if (parameter.equalsIgnoreCase("ALL")) {
+                epsvAll = true;
+                FtpUtil.println(control, "200 EPSV ALL command successful.");
+                return;
+            }
+            if (!parameter.isEmpty() && !parameter.equals(family)) {
+                FtpUtil.println(control, "522 Network protocol not supported, use (" + family + ")");
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!checkProtection())
+            return;
+        if (openPassive(socket.socket().getLocalAddress()))
+            sendPassiveReply("229 Entering Extended Passive Mode (|||" + data.getPort() + "|)");
+    }
+
+    /**
+     * @param local the address to listen on, null for the one PASV announces
+     * @return false if no data connection could be set up
+     */
+    private boolean openPassive(InetAddress local) {
         if (data != null) {
             data.stop();
+            data = null;
         }
 
         this.restart = 0L;
 
         try {
-            data = DataConnection.createPassive();
+            data = DataConnection.createPassive(local, shard);
             data.setFileOffset(restart);
+            data.setCompressionLevel(getCompressionLevel());
+            data.setBinary(isBinary);
+            data.setProtection(dataProtection());
+            data.setSession(session, socket.socket().getInetAddress(), userName);
+            data.setRate(getRate());
             data.addDataConnectionListener(this);
+            data.addDataConnectionListener(new Audit(data));
             data.start();
-            FtpUtil.println(socket, "227 Entering Passive Mode (" + data.getAddressAsString() + ")");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error setting passive mode");
+            e.printStackTrace();
+            try {
+                FtpUtil.println(control, "425 Can't open data connection.");
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    private void sendPassiveReply(String reply) {
+        try {
+            FtpUtil.println(control, reply);
         } catch (IOException e) {
             System.out.println("Error setting passive mode");
             e.printStackTrace();
@@ -545,10 +1338,12 @@ public class RequestHandler implements DataConnectionListener {
                     isBinary = false;
                     break;
                 default:
-                    FtpUtil.println(socket, "504 Command not implemented for that parameter.");
+                    FtpUtil.println(control, "504 Command not implemented for that parameter.");
                     return;
             }
-            FtpUtil.println(socket, "200 Type set to " + parameter);
+            if (data != null)
+                data.setBinary(isBinary);
+            FtpUtil.println(control, "200 Type set to " + parameter);
         } catch (IOException e) {
             System.out.println("Error processing type");
             e.printStackTrace();
@@ -556,64 +1351,207 @@ public class RequestHandler implements DataConnectionListener {
     }
 
     private void processPrintWorkingDirectory(String parameter) {
-        checkAuth();
+        if (!checkAuth())
+            return;
         try {
-            String root = userRoot.getAbsolutePath();
-            String curr = userCurrent.getAbsolutePath();
-
-            curr = curr.substring(root.length());
-
-            if (curr.length() == 0)
-                curr = "/";
-
-            curr = curr.replace('\\', '/');
-
-            FtpUtil.println(socket, "257 " + curr);
+            FtpUtil.println(control, "257 \"" + paths.getCurrent() + "\"");
         } catch (IOException e) {
             System.out.println("Error occured with processing working directory");
             e.printStackTrace();
         }
     }
 
+    /**
+     * AUTH TLS (or SSL, its old name) replies 234 in the clear, then the
+     * control connection continues over TLS
+     */
     private void processSecurityExtension(String parameter) {
+        String mechanism = parameter.toUpperCase();
+        TlsContext tls = TlsContext.getInstance();
         try {
-            if (parameter.equals("TLS")) {
-                FtpUtil.println(socket, "502 " + parameter + " not implemented");
+            if (!mechanism.equals("TLS") && !mechanism.equals("TLS-C") && !mechanism.equals("SSL")) {
+                FtpUtil.println(control, "504 Unknown security mechanism " + parameter);
+                return;
+            }
+            if (tls == null) {
+                FtpUtil.println(control, "431 TLS is not available.");
+                return;
+            }
+            if (control != socket) {
+                FtpUtil.println(control, "503 TLS is already in use.");
+                return;
             }
 
-            if (parameter.equals("SSL")) {
-                FtpUtil.println(socket, "502 " + parameter + " not implemented");
+            FtpUtil.println(control, "234 AUTH " + mechanism + " successful.");
+            TlsChannel channel = TlsChannel.open(socket, tls);
+            control = channel;
+            System.out.println("* Control connection secured, " + channel.getSession().getProtocol() + " " +
+                    channel.getSession().getCipherSuite() + ", handshake " + channel.getHandshakeNanos() / 1000 + " us");
+        } catch (IOException e) {
+            System.out.println("* TLS handshake failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Data goes in TLS records, there is no other buffering to size
+     */
+    private void processProtectionBufferSize(String parameter) {
+        try {
+            if (control == socket) {
+                FtpUtil.println(control, "503 PBSZ requires AUTH TLS first.");
+                return;
             }
+            bufferSizeSet = true;
+            FtpUtil.println(control, "200 PBSZ=0");
+        } catch (IOException e) {
+            System.out.println("Error processing PBSZ command");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * PROT P encrypts the data connections opened from now on, PROT C doesn't
+     */
+    private void processProtectionLevel(String parameter) {
+        String level = parameter.toUpperCase();
+        try {
+            if (!bufferSizeSet) {
+                FtpUtil.println(control, "503 PROT requires PBSZ first.");
+                return;
+            }
+            if (level.equals("C") && isTlsRequired()) {
+                FtpUtil.println(control, "534 Data connections must be protected.");
+            } else if (level.equals("C") || level.equals("P")) {
+                protectData = level.equals("P");
+                FtpUtil.println(control, "200 Protection level set to " + level + ".");
+            } else if (level.equals("S") || level.equals("E")) {
+                FtpUtil.println(control, "536 Protection level " + level + " not supported.");
+            } else {
+                FtpUtil.println(control, "504 Unknown protection level " + parameter);
+            }
+        } catch (IOException e) {
+            System.out.println("Error processing PROT command");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the control connection's TLS session for the data connection to
+     *         offer, null for a data connection in the clear
+     */
+    private SSLSession dataProtection() {
+        ByteChannel channel = control;
+        return protectData && channel instanceof TlsChannel ? ((TlsChannel) channel).getSession() : null;
+    }
+
+    /**
+     * With ftp.tls.required set, no data connection in the clear is opened
+     */
+    private boolean checkProtection() {
+        if (!isTlsRequired() || protectData)
+            return true;
+        try {
+            FtpUtil.println(control, "521 Data connections must be protected, use PROT P.");
         } catch (IOException e) {
-            System.out.println("Error processing security extension");
             e.printStackTrace();
         }
+        return false;
+    }
+
+    /**
+     * Gives back the TLS buffers of the control connection. Called by the
+     * control thread once it stopped reading
+     */
+    void releaseControl() {
+        ByteChannel channel = control;
+        if (channel instanceof TlsChannel)
+            ((TlsChannel) channel).release();
+    }
+
+    ByteChannel getControl() {
+        return control;
     }
 
     private void processPassword(String parameter) {
         try {
             if (this.userName == null) {
-                FtpUtil.println(socket, "503 Bad sequence of commands. Send USER first.");
+                FtpUtil.println(control, "503 Bad sequence of commands. Send USER first.");
                 return;
             }
 
-            this.isAuth = new Authentication().isValidUser(this.userName, parameter);
-            if (!isAuth) {
-                FtpUtil.println(socket, "530 Login incorrect.");
+            InetAddress remote = socket.socket().getInetAddress();
+            LoginThrottle throttle = LoginThrottle.getInstance();
+            if (throttle.isBanned(remote)) {
+                refuseBanned();
+                return;
+            }
+            // waits before the password is checked, a right one takes as long as a wrong one
+            long wait = throttle.reserve(remote, userName);
+            if (wait == LoginThrottle.REFUSED) {
+                // held as long as the longest turn, so refusals don't come faster than answers
+                defer(throttle.getMaxDelay(), () -> {
+                    publish(EventBus.Type.LOGIN_FAILED, "throttled");
+                    FtpUtil.println(control, "530 Too many failed logins, try again later.");
+                });
+            } else if (wait > 0) {
+                defer(wait, () -> checkPassword(remote, parameter));
             } else {
-                userRoot = new File(System.getProperty("ftp.home"), userName);
-                String privateRoot = System.getProperty("ftp.home." + userName);
-                if (privateRoot != null)
-                    userRoot = new File(privateRoot);
+                checkPassword(remote, parameter);
+            }
+        } catch (IOException e) {
+            System.out.println("Error processing password");
+            e.printStackTrace();
+        }
+    }
 
-                if (!userRoot.exists()) {
-                    System.out.println("Directory doesn't exist");
-                    System.exit(1);
-//                userRoot.mkdirs();
+    /**
+     * Checks the password and replies
+     */
+    private void checkPassword(InetAddress remote, String parameter) {
+        LoginThrottle throttle = LoginThrottle.getInstance();
+        try {
+            this.isAuth = false;
+            this.anonymous = false;
+            this.account = Authentication.getInstance().authenticate(this.userName, parameter);
+            if (account == null) {
+                publish(EventBus.Type.LOGIN_FAILED, null);
+                if (throttle.failed(remote, userName))
+                    refuseBanned();
+                else
+                    FtpUtil.println(control, "530 Login incorrect.");
+            } else {
+                Config config = Config.get();
+                File userRoot = new File(config.getHome(), userName);
+                if (account.getHome() != null)
+                    userRoot = new File(account.getHome());
+
+                // the session only counts as logged in once it has all it needs
+                Storage userStorage;
+                PathResolver userPaths;
+                try {
+                    userStorage = Storage.forRoot(userRoot, config.getStorage(userName));
+                    if (userStorage instanceof LocalStorage && !userRoot.exists())
+                        throw new NoSuchFileException(userRoot.getPath());
+                    userPaths = new PathResolver(userRoot, userStorage.hasSymbolicLinks());
+                } catch (IOException | InvalidPathException e) {
+                    // one account with a missing home mustn't take the server down
+                    System.out.println("* Home directory of " + userName + " not available: " + e);
+                    account = null;
+                    publish(EventBus.Type.LOGIN_FAILED, "home directory not available");
+                    FtpUtil.println(control, "530 Home directory not available.");
+                    return;
                 }
 
-                userCurrent = userRoot;
-                FtpUtil.println(socket, "230 User " + this.userName + " logged in.");
+                storage = userStorage;
+                paths = userPaths;
+                quota = Quota.forUser(userRoot, storage, account);
+                isAuth = true;
+                String warning = quota != null ? quota.getWarning() : null;
+                if (warning != null)
+                    FtpUtil.println(control, "230-" + warning);
+                throttle.succeeded(remote, userName);
+                publish(EventBus.Type.LOGIN, null);
+                FtpUtil.println(control, "230 User " + this.userName + " logged in.");
             }
         } catch (IOException e) {
             System.out.println("Error processing password");
@@ -621,10 +1559,44 @@ public class RequestHandler implements DataConnectionListener {
         }
     }
 
+    /**
+     * Answers the PASS once the turn the login throttle gave comes. Nothing waits
+     * for it meanwhile: the timer hands the reply to the login threads, which
+     * hash the password, and the session thread goes back to reading, for the
+     * next command of a client that doesn't wait for the reply
+     */
+    private void defer(long delay, Reply reply) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        pendingLogin = done;
+        loginTurn = TimerWheel.getInstance().schedule(delay, () -> logins.execute(() -> {
+            try {
+                reply.send();
+            } catch (IOException e) {
+                // client already gone
+            } finally {
+                done.complete(null);
+            }
+        }));
+    }
+
+    private interface Reply {
+        void send() throws IOException;
+    }
+
+    private void refuseBanned() {
+        try {
+            FtpUtil.println(control, "421 Too many failed logins from your address.");
+        } catch (IOException e) {
+            // client already gone
+        } finally {
+            FtpUtil.releaseChannelResource(control);
+        }
+    }
+
     private boolean checkAuth() {
         if (!isAuth) {
             try {
-                FtpUtil.println(socket, "530 Not logged in.");
+                FtpUtil.println(control, "530 Not logged in.");
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -635,47 +1607,167 @@ public class RequestHandler implements DataConnectionListener {
 
     private void processUser(String parameter) {
         try {
+            if (isTlsRequired() && control == socket) {
+                FtpUtil.println(control, "530 TLS required, use AUTH TLS.");
+                return;
+            }
+            if (LoginThrottle.getInstance().isBanned(socket.socket().getInetAddress())) {
+                refuseBanned();
+                return;
+            }
             if (parameter.toLowerCase().equals("anonymous")) {
                 this.userName = parameter;
-                userRoot = new File(this.directory);
+                File userRoot = new File(this.directory);
 
-                if (!userRoot.exists()) {
+                storage = Storage.forRoot(userRoot, Config.get().getStorage(userName));
+                if (storage instanceof LocalStorage && !userRoot.exists()) {
                     System.out.println("Directory doesn't exist");
                     System.exit(1);
 //                userRoot.mkdirs();
                 }
 
-                userCurrent = userRoot;
-                FtpUtil.println(socket, "230 Anonymous user logged in");
+                paths = new PathResolver(userRoot, storage.hasSymbolicLinks());
+                account = null;
+                quota = null;
+                anonymous = true;
+                isAuth = true;
+                publish(EventBus.Type.LOGIN, "anonymous");
+                FtpUtil.println(control, "230 Anonymous user logged in");
                 return;
             }
             this.userName = parameter;
-            FtpUtil.println(socket, "331 Password required for " + parameter);
+            FtpUtil.println(control, "331 Password required for " + parameter);
         } catch (IOException e) {
             System.out.println("Error with processing user");
             e.printStackTrace();
         }
     }
 
+    boolean isLoggedIn() {
+        return isAuth;
+    }
+
+    boolean isTransferring() {
+        return transferring;
+    }
+
+    void abortTransfer(String reason) {
+        DataConnection transfer = data;
+        if (transfer != null)
+            transfer.abort(reason);
+    }
+
+    /**
+     * Releases what the session still holds once the control connection is gone
+     */
+    void close() {
+        TimerWheel.Timeout turn = loginTurn;
+        if (turn != null)
+            turn.cancel();
+        if (data != null) {
+            data.stop();
+            data = null;
+        }
+    }
+
     @Override
     public void actionNegotiated(boolean isOk) {
         System.out.println("* Event: actionNegotiated: " + isOk);
+        if (isOk)
+            return;
+        try {
+            FtpUtil.println(control, "425 Can't open data connection.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void transferStarted() {
         System.out.println("* Event: transferStarted");
+        transferring = true;
     }
 
     @Override
     public void transferCompleted(boolean hasError) {
         System.out.println("* Event: transferCompleted: hasError=" + hasError);
+        transferring = false;
+
+        File stored = pendingUpdate;
+        pendingUpdate = null;
+        if (stored != null)
+            index.update(stored);
+        String warning = uploading && quota != null ? quota.getWarning() : null;
+        uploading = false;
 
         try {
+            if (warning != null)
+                FtpUtil.println(control, "226-" + warning);
             if (!hasError)
-                FtpUtil.println(socket, "226 Transfer complete.\r\n");
+                FtpUtil.println(control, "226 Transfer complete.\r\n");
+            else
+                FtpUtil.println(control, "426 Connection closed; transfer aborted.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void transferRefused(String reply) {
+        System.out.println("* Event: transferRefused");
+        transferring = false;
+        uploading = false;
+
+        File stored = pendingUpdate;
+        pendingUpdate = null;
+        if (stored != null)
+            index.update(stored);
+
+        try {
+            FtpUtil.println(control, reply);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Puts a finished file transfer in the transfer log. It is registered on
+     * each data connection, since a PASV, PORT or close on the control thread
+     * may replace the session's connection before the transfer thread reports
+     */
+    private class Audit implements DataConnectionListener {
+        private final DataConnection transfer;
+
+        Audit(DataConnection transfer) {
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void actionNegotiated(boolean isOk) {
+        }
+
+        @Override
+        public void transferStarted() {
+        }
+
+        @Override
+        public void transferCompleted(boolean hasError) {
+            record(!hasError);
+        }
+
+        @Override
+        public void transferRefused(String reply) {
+            record(false);
+        }
+
+        private void record(boolean complete) {
+            TransferLog log = TransferLog.getInstance();
+            if (log == null || transfer.getFile() == null)
+                return;
+            long started = transfer.getStarted();
+            log.record(socket.socket().getInetAddress(), userName, anonymous, transfer.getFile(),
+                    transfer.getTransferred(), started == 0 ? 0 : System.currentTimeMillis() - started,
+                    transfer.isBinary(), transfer.isIncoming(), complete);
+        }
+    }
 }
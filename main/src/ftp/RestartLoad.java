@@ -0,0 +1,341 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Integration test of a restart without downtime, in this process: clients
+ * log in, download a file and log out over and over, first from an old server,
+ * then from the old one and a new one listening on the same port with
+ * SO_REUSEPORT, and while the old one drains, from the new one alone:
+ *
+ * java -cp out ftp.RestartLoad [-clients 20] [-seconds 3] [-size 1048576]
+ *      [-config main/src/ftp.properties]
+ *
+ * Downloads are read slowly, so some of them are running when the drain
+ * starts and have to finish. A 421 asking to reconnect is how a draining server
+ * hands a client over, the client reconnects and counts it. Anything else, a
+ * refused or reset connection or a short download, is a failure, and the test
+ * exits with 1 when there was one or when no session ran on the new server
+ * alone. With net.ipv4.tcp_migrate_req off, Linux resets the connections still
+ * queued on the old listener when it closes, those are counted apart and don't
+ * fail the test. An inherited listener (ftp.listen.inherited) needs a new
+ * process and isn't covered
+ */
+class RestartLoad {
+
+    private static final Pattern PASV_REPLY = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+
+    private final int port;
+    private final long size;
+    private volatile boolean running = true;
+
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong handedOver = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong lostInQueue = new AtomicLong();
+    private final boolean migrates = Server.migratesQueuedConnections();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    private RestartLoad(int port, long size) {
+        this.port = port;
+        this.size = size;
+    }
+
+    private void client() {
+        while (running) {
+            try {
+                session();
+                sessions.incrementAndGet();
+            } catch (HandOverException e) {
+                handedOver.incrementAndGet();
+            } catch (IOException e) {
+                if (e instanceof GreetingException && !migrates) {
+                    lostInQueue.incrementAndGet();
+                } else {
+                    failures.incrementAndGet();
+                    if (errors.size() < 10)
+                        errors.add(e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs in, downloads the file and checks its size, and quits
+     */
+    private void session() throws IOException {
+        try (Socket control = new Socket()) {
+            control.connect(new InetSocketAddress("127.0.0.1", port), 10000);
+            control.setSoTimeout(60000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+            try {
+                expect(in, "220");
+            } catch (HandOverException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new GreetingException(e);
+            }
+            send(out, "USER load");
+            expect(in, "331");
+            send(out, "PASS load");
+            expect(in, "230");
+            send(out, "TYPE I");
+            expect(in, "200");
+            send(out, "PASV");
+            Matcher m = PASV_REPLY.matcher(expect(in, "227"));
+            if (!m.find())
+                throw new IOException("Bad PASV reply");
+            try (Socket data = new Socket()) {
+                data.connect(new InetSocketAddress(m.group(1) + "." + m.group(2) + "." + m.group(3) + "." +
+                        m.group(4), Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6))), 10000);
+                data.setSoTimeout(60000);
+                send(out, "RETR load.bin");
+                expect(in, "150");
+                long received = read(data.getInputStream());
+                if (received != size)
+                    throw new IOException("Download ended after " + received + " of " + size + " bytes");
+            }
+            expect(in, "226");
+            downloads.incrementAndGet();
+            send(out, "QUIT");
+            expect(in, "221");
+        }
+    }
+
+    /**
+     * Reads 64 KB at a time with a pause after each, so downloads take a while
+     */
+    private static long read(InputStream in) throws IOException {
+        byte[] buffer = new byte[65536];
+        long total = 0L;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            total += n;
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the reply, which starts with the code
+     * @throws HandOverException for a 421, the server asks the client to reconnect
+     */
+    private static String expect(BufferedReader in, String code) throws IOException {
+        String line = in.readLine();
+        // the 226 of a transfer is followed by an empty line
+        while (line != null && line.isEmpty())
+            line = in.readLine();
+        while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+            String first = line.substring(0, 3);
+            do {
+                line = in.readLine();
+            } while (line != null && !line.startsWith(first + " "));
+        }
+        if (line == null)
+            throw new IOException("Connection closed waiting for " + code);
+        if (line.startsWith("421"))
+            throw new HandOverException(line);
+        if (!line.startsWith(code))
+            throw new IOException("Expected " + code + ", got " + line);
+        return line;
+    }
+
+    private static void send(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * Runs a server on a thread of its own and waits until it accepts
+     */
+    private static Server start(int port, String root, String name) throws IOException, InterruptedException {
+        Server server = new Server(port, root);
+        Thread thread = new Thread(server::start, name);
+        thread.setDaemon(true);
+        thread.start();
+        for (int i = 0; ; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return server;
+            } catch (IOException e) {
+                if (i == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private String phase(String name, long before) {
+        return String.format("* %s: %d sessions, %d downloads, %d handed over, %d failures", name,
+                sessions.get() - before, downloads.get(), handedOver.get(), failures.get()) +
+                (lostInQueue.get() > 0 ? ", " + lostInQueue.get() + " reset in the listen queue" : "");
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    public static void main(String[] args) {
+        int clients = 20;
+        long seconds = 3;
+        long size = 1 << 20;
+        String config = "main/src/ftp.properties";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-clients":
+                    clients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-seconds":
+                    seconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "-size":
+                    size = Long.parseLong(args[i + 1]);
+                    break;
+                case "-config":
+                    config = args[i + 1];
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.RestartLoad [-clients 20] [-seconds 3] " +
+                            "[-size 1048576] [-config main/src/ftp.properties]");
+                    return;
+            }
+        }
+
+        Path root = null;
+        int status = 0;
+        try {
+            root = Files.createTempDirectory("ftp-restart-load");
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Map<String, String> overrides = new HashMap<>();
+            overrides.put("ftp.port", Integer.toString(port));
+            overrides.put("ftp.home", root.toString());
+            overrides.put("ftp.storage", "local");
+            overrides.put("ftp.sessions.max", "1000000");
+            overrides.put("ftp.sessions.max.per.ip", "1000000");
+            overrides.put("ftp.listen.inherited", "false");
+            overrides.put("ftp.listen.reuseport", "true");
+            overrides.put("ftp.shards", "1");
+            overrides.put("ftp.tls.required", "false");
+            overrides.put("ftp.config.watch", "false");
+            overrides.put("ftp.trace.dir", "");
+            overrides.put("ftp.xferlog.dir", "");
+            overrides.put("ftp.events.subscribers", "");
+            overrides.put("ftp.user.load", "load");
+            Config.load(config, overrides);
+
+            Path home = Files.createDirectories(root.resolve("load"));
+            byte[] content = new byte[(int) size];
+            new Random(1).nextBytes(content);
+            Files.write(home.resolve("load.bin"), content);
+
+            Server old = start(port, root.toString(), "ftp-restart-old");
+            RestartLoad load = new RestartLoad(port, size);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                Thread thread = new Thread(load::client, "ftp-restart-client-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+
+            Thread.sleep(seconds * 1000);
+            System.out.println(load.phase("Old server", 0L));
+            long before = load.sessions.get();
+            Server next = start(port, root.toString(), "ftp-restart-new");
+            Thread.sleep(seconds * 1000);
+            System.out.println(load.phase("Both servers", before));
+
+            before = load.sessions.get();
+            long drainStarted = System.currentTimeMillis();
+            old.drain(Config.get().getLong("ftp.drain.timeout", 60000L));
+            System.out.println(load.phase("Old server drained in " + (System.currentTimeMillis() - drainStarted) +
+                    " ms", before));
+
+            before = load.sessions.get();
+            Thread.sleep(seconds * 1000);
+            long alone = load.sessions.get() - before;
+            System.out.println(load.phase("New server alone", before));
+
+            load.running = false;
+            for (Thread thread : threads)
+                thread.join(60000);
+            next.drain(5000);
+
+            for (String error : load.errors)
+                System.out.println("* " + error);
+            if (load.failures.get() > 0 || alone == 0) {
+                System.out.println("* Clients failed across the restart");
+                status = 1;
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            try {
+                if (root != null)
+                    delete(root);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + root);
+            }
+        }
+        System.exit(status);
+    }
+
+    /**
+     * A 421 from a server that is going away
+     */
+    private static class HandOverException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HandOverException(String reply) {
+            super(reply);
+        }
+    }
+
+    /**
+     * The connection failed before the greeting, as it does while still in the
+     * listen queue of a listener that closes
+     */
+    private static class GreetingException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        GreetingException(IOException cause) {
+            super(cause);
+        }
+    }
+}
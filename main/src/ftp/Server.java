@@ -2,59 +2,200 @@ package ftp;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channel;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class Server {
     private int port;
-    private boolean running;
+    private volatile boolean running;
     private String directory;
     private ServerSocketChannel socket;
+    private final boolean inherited;
+    private final AdmissionControl admission;
+    private final List<Shard> shards = new ArrayList<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     /**
-     * Constructor for Server class
+     * Constructor for Server class. The listening socket is the one inherited from
+     * the parent process (systemd socket activation, inetd) when ftp.listen.inherited
+     * is set, otherwise a new one, shared with other processes on the same port when
+     * ftp.listen.reuseport is set. With ftp.shards above one, every shard gets its
+     * own listener if SO_REUSEPORT is available
      * @throws IOException if error occurs while opening or binding a socket
      */
     public Server(int port, String directory) throws IOException {
         running = false;
         this.port = port;
         this.directory = directory;
-        this.socket = ServerSocketChannel.open();
-        this.socket.configureBlocking(true);
-        this.socket.socket().bind(new InetSocketAddress(port)); // todo don't hardcode port number
+        this.admission = new AdmissionControl(directory);
+        if (Config.get().usesStorage("dedup"))
+            System.out.println("* Blob store " + DedupStorage.storeDirectory());
+        if (TraceRecorder.getInstance() != null)
+            System.out.println("* Recording session traces to " + Config.get().get("ftp.trace.dir", null));
+
+        int count = Math.max(1, Config.get().getInt("ftp.shards", 1));
+        boolean reusePort = Config.get().getBoolean("ftp.listen.reuseport", false) || count > 1;
+
+        Channel channel = Config.get().getBoolean("ftp.listen.inherited", false) ? System.inheritedChannel() : null;
+        this.inherited = channel instanceof ServerSocketChannel;
+        if (inherited) {
+            this.socket = (ServerSocketChannel) channel;
+            System.out.println("* Listening on inherited socket " + socket.getLocalAddress());
+        } else {
+            this.socket = openListener(reusePort);
+            if (reusePort && !migratesQueuedConnections())
+                System.out.println("* net.ipv4.tcp_migrate_req is off, connections queued on a listener that " +
+                        "closes are reset instead of moving to the one taking over");
+        }
+        boolean ownListeners = !inherited && count > 1 &&
+                socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        boolean ownsSocket = !inherited && (ownListeners || count == 1);
+
+        int[] range = passivePorts();
+        int rangeSize = range == null ? 0 : range[1] - range[0] + 1;
+        if (range != null && rangeSize < count)
+            throw new IOException("ftp.pasv.ports has fewer ports than ftp.shards");
+        int poolSize = Math.max(16, 256 / count);
+
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel listener = ownListeners && i > 0 ? openListener(true) : socket;
+            int firstPort = 0;
+            int lastPort = 0;
+            if (range != null) {
+                firstPort = range[0] + rangeSize * i / count;
+                lastPort = range[0] + rangeSize * (i + 1) / count - 1;
+            }
+            shards.add(new Shard(i, listener, ownsSocket, admission,
+                    new BufferPool(BufferPool.BUFFER_SIZE, poolSize), firstPort, lastPort));
+        }
+        if (count > 1)
+            System.out.println("* " + count + " shards" + (ownListeners ? ", one listener each" : " on one listener"));
+    }
+
+    private ServerSocketChannel openListener(boolean reusePort) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        if (reusePort) {
+            if (listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            else
+                System.out.println("* SO_REUSEPORT is not supported here");
+        }
+        listener.socket().bind(new InetSocketAddress(port),
+                Config.get().getInt("ftp.accept.backlog", 128)); // todo don't hardcode port number
+        return listener;
     }
 
     /**
-     * Runs the server and starts the control channel on a separate thread
+     * @return false when Linux resets the connections queued on a listener of an
+     * SO_REUSEPORT group as it closes, true when it hands them to another listener
+     * of the group or the system is another one
+     */
+    static boolean migratesQueuedConnections() {
+        Path setting = Paths.get("/proc/sys/net/ipv4/tcp_migrate_req");
+        if (!Files.exists(setting))
+            return true;
+        try {
+            return !new String(Files.readAllBytes(setting), StandardCharsets.US_ASCII).trim().equals("0");
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return the first and last port of ftp.pasv.ports, or null to use any free port
+     */
+    private static int[] passivePorts() throws IOException {
+        String ports = Config.get().get("ftp.pasv.ports", null);
+        if (ports == null || ports.trim().isEmpty())
+            return null;
+        String[] parts = ports.trim().split("-");
+        try {
+            int first = Integer.parseInt(parts[0].trim());
+            int last = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : first;
+            if (first < 1 || last > 65535 || last < first)
+                throw new NumberFormatException();
+            return new int[]{first, last};
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad ftp.pasv.ports: " + ports);
+        }
+    }
+
+    /**
+     * Runs the server: shard 0 accepts on this thread, the others on their own
      */
     public void start() {
         if (running) return;
         running = true;
         try {
-            while (running) {
-                SocketChannel socketChannel = socket.accept();
-                new ControlChannel(socketChannel, directory).start();
+            for (int i = 1; i < shards.size(); i++) {
+                Thread thread = new Thread(shards.get(i), "ftp-shard-" + i);
+                thread.start();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            shards.get(0).run();
         } finally {
-            stop();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Shuts down gracefully: stops accepting, then closes every session once its
+     * transfer has finished, aborting transfers still running after timeout ms.
+     * With an inherited or SO_REUSEPORT listener a new server process can take
+     * over the port while this one drains
+     */
+    public void drain(long timeout) {
+        if (!running)
+            return;
+        System.out.println("* Draining: " + admission.getStatistics());
+        try {
+            stopShards(!inherited);
+            stopped.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+        admission.drain(timeout);
+        System.out.println("* Drained: " + admission.getStatistics());
+        for (Shard shard : shards)
+            System.out.println("* " + shard.getStatistics());
+        if (TlsContext.getInstance() != null)
+            System.out.println("* " + TlsContext.getInstance().getStatistics());
+        System.out.println("* " + LoginThrottle.getInstance().getStatistics());
+        Quota.saveAll();
+        EventBus.getInstance().close();
+        System.out.println("* " + EventBus.getInstance().getStatistics());
+        if (TransferLog.getInstance() != null) {
+            TransferLog.getInstance().close();
+            System.out.println("* " + TransferLog.getInstance().getStatistics());
         }
     }
 
     /**
-     * Closes the socket and sets it to null
+     * Stops accepting and closes the socket
      */
     public void stop() {
+        try {
+            stopShards(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stopShards(boolean drain) throws InterruptedException {
+        for (Shard shard : shards)
+            shard.stop(drain);
         if (this.socket != null) {
-            try {
-                this.socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            FtpUtil.releaseChannelResource(this.socket);
             this.socket = null;
-            running = false;
         }
+        running = false;
     }
 
 }
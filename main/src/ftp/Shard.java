@@ -0,0 +1,186 @@
+package ftp;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One accept loop of the server. With ftp.shards set to more than one, every
+ * shard has its own listener on the server port (SO_REUSEPORT lets the kernel
+ * spread new connections over them), its own selector and thread, its own
+ * buffer pool and its own part of the ftp.pasv.ports range. A session stays on
+ * the shard that accepted it, so sessions of different shards don't meet on a
+ * shared pool or port counter.
+ *
+ * Without SO_REUSEPORT the shards share one listener and each registers it
+ * with its own selector
+ */
+class Shard implements Runnable {
+
+    private final int id;
+    private final ServerSocketChannel socket;
+    private final boolean ownsSocket;
+    private final AdmissionControl admission;
+    private final Selector selector;
+    private final BufferPool pool;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /** Passive ports of this shard, from firstPort to lastPort, none if firstPort is 0 */
+    private final int firstPort;
+    private final int lastPort;
+    private final AtomicInteger nextPort = new AtomicInteger();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder transferred = new LongAdder();
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    private volatile boolean running = true;
+    private volatile boolean started = false;
+    private volatile boolean draining = false;
+
+    /**
+     * @param ownsSocket whether the listener is this shard's alone and is closed with it
+     * @param firstPort  first passive port of the shard, 0 for any free port
+     */
+    Shard(int id, ServerSocketChannel socket, boolean ownsSocket, AdmissionControl admission,
+          BufferPool pool, int firstPort, int lastPort) throws IOException {
+        this.id = id;
+        this.socket = socket;
+        this.ownsSocket = ownsSocket;
+        this.admission = admission;
+        this.pool = pool;
+        this.firstPort = firstPort;
+        this.lastPort = lastPort;
+        this.selector = Selector.open();
+        socket.configureBlocking(false);
+        socket.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    BufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Accepts connections until stopped
+     */
+    @Override
+    public void run() {
+        started = true;
+        try {
+            while (running) {
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketChannel socketChannel;
+                try {
+                    // accepted channels are blocking whatever the listener is
+                    while (running && (socketChannel = socket.accept()) != null) {
+                        accepted.increment();
+                        admission.admit(socketChannel, this);
+                    }
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // out of file descriptors or similar, back off instead of giving up
+                    System.out.println("Error accepting connection: " + e.getMessage());
+                    Thread.sleep(100);
+                }
+            }
+
+            if (draining && ownsSocket) {
+                // connections the kernel already queued for this listener would be
+                // reset when it closes, tell them to come back instead
+                SocketChannel socketChannel;
+                while ((socketChannel = socket.accept()) != null)
+                    admission.reject(socketChannel, "421 Service restarting, please reconnect.");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("* Shard " + id + " interrupted");
+        } catch (ClosedChannelException e) {
+            // listener closed by stop()
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stops accepting and waits for the accept loop to end
+     *
+     * @param drain whether connections already queued on the listener get a 421
+     */
+    void stop(boolean drain) throws InterruptedException {
+        draining = drain;
+        running = false;
+        selector.wakeup();
+        if (started)
+            stopped.await();
+        else
+            close();
+    }
+
+    private synchronized void close() {
+        running = false;
+        try {
+            selector.close();
+            if (ownsSocket)
+                socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Binds a passive listener to the next free port of the shard's range, or
+     * to any free port if the shard has none
+     */
+    void bindPassive(ServerSocketChannel passive, InetSocketAddress local) throws IOException {
+        if (firstPort == 0) {
+            passive.socket().bind(new InetSocketAddress(local.getAddress(), 0));
+            return;
+        }
+
+        int count = lastPort - firstPort + 1;
+        for (int i = 0; i < count; i++) {
+            int port = firstPort + Math.floorMod(nextPort.getAndIncrement(), count);
+            try {
+                passive.socket().bind(new InetSocketAddress(local.getAddress(), port));
+                return;
+            } catch (BindException e) {
+                // in use by another session or process, try the next one
+            }
+        }
+        throw new BindException("No free passive port in " + firstPort + "-" + lastPort);
+    }
+
+    void sessionStarted() {
+        sessions.incrementAndGet();
+    }
+
+    void sessionEnded() {
+        sessions.decrementAndGet();
+    }
+
+    void transferred(long bytes) {
+        transferred.add(bytes);
+    }
+
+    String getStatistics() {
+        return "shard " + id + ": " + accepted.sum() + " accepted, " + sessions.get() + " sessions, " +
+                transferred.sum() / 1024 + " KB transferred, " + pool.getPooled() + " buffers pooled" +
+                (firstPort == 0 ? "" : ", passive ports " + firstPort + "-" + lastPort);
+    }
+}
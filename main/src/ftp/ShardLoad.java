@@ -0,0 +1,373 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of the accept loop sharding (ftp.shards). For every shard count of
+ * -shards, the server of the classpath is started in a process of its own, as
+ * settings are read once per process, and -clients threads of that process
+ * first open and close connections as fast as they can, then log in and
+ * download a file of -size bytes over and over, each for -seconds:
+ *
+ * java -cp out ftp.ShardLoad [-shards 1,2,4] [-clients 32] [-seconds 5] [-size 1048576]
+ *      [-config main/src/ftp.properties]
+ *
+ * It prints the connections and the MB per second of every shard count and how
+ * they scale from the first one. It exits with 1 when a connection or a
+ * download failed
+ */
+class ShardLoad {
+
+    private static final Pattern PASV_REPLY = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+    private static final Pattern RESULT = Pattern.compile("([0-9.]+) connections/s, ([0-9.]+) MB/s, (\\d+) failures");
+
+    private final int port;
+    private final long size;
+    private volatile boolean running = true;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    private ShardLoad(int port, long size) {
+        this.port = port;
+        this.size = size;
+    }
+
+    /**
+     * Connects, waits for the greeting and quits, the server closes first
+     */
+    private void connect() throws IOException {
+        try (Socket control = new Socket()) {
+            control.connect(new InetSocketAddress("127.0.0.1", port), 10000);
+            control.setSoTimeout(60000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+            expect(in, "220");
+            send(out, "QUIT");
+            expect(in, "221");
+            while (in.readLine() != null) {
+                // until the server closes
+            }
+        }
+    }
+
+    /**
+     * Logs in once and downloads the file until stopped
+     */
+    private void download() throws IOException {
+        try (Socket control = new Socket()) {
+            control.connect(new InetSocketAddress("127.0.0.1", port), 10000);
+            control.setSoTimeout(60000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+            expect(in, "220");
+            send(out, "USER bench");
+            expect(in, "331");
+            send(out, "PASS bench");
+            expect(in, "230");
+            send(out, "TYPE I");
+            expect(in, "200");
+            byte[] buffer = new byte[65536];
+            while (running) {
+                send(out, "PASV");
+                Matcher m = PASV_REPLY.matcher(expect(in, "227"));
+                if (!m.find())
+                    throw new IOException("Bad PASV reply");
+                long received = 0L;
+                try (Socket data = new Socket()) {
+                    data.connect(new InetSocketAddress(m.group(1) + "." + m.group(2) + "." + m.group(3) + "." +
+                            m.group(4), Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6))), 10000);
+                    data.setSoTimeout(60000);
+                    send(out, "RETR load.bin");
+                    expect(in, "150");
+                    InputStream stream = data.getInputStream();
+                    int n;
+                    while ((n = stream.read(buffer)) >= 0) {
+                        received += n;
+                        if (running)
+                            bytes.addAndGet(n);
+                    }
+                }
+                expect(in, "226");
+                if (received != size)
+                    throw new IOException("Download ended after " + received + " of " + size + " bytes");
+            }
+            send(out, "QUIT");
+            expect(in, "221");
+        }
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs the step on every client thread, over and over until the time is up
+     */
+    private void phase(int clients, long seconds, Step step) throws InterruptedException {
+        running = true;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            threads.add(new Thread(() -> {
+                while (running) {
+                    try {
+                        step.run();
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                        if (errors.size() < 10)
+                            errors.add(e.toString());
+                    }
+                }
+            }, "ftp-shard-client-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    /**
+     * @return the reply, which starts with the code
+     */
+    private static String expect(BufferedReader in, String code) throws IOException {
+        String line = in.readLine();
+        // the 226 of a transfer is followed by an empty line
+        while (line != null && line.isEmpty())
+            line = in.readLine();
+        while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+            String first = line.substring(0, 3);
+            do {
+                line = in.readLine();
+            } while (line != null && !line.startsWith(first + " "));
+        }
+        if (line == null)
+            throw new IOException("Connection closed waiting for " + code);
+        if (!line.startsWith(code))
+            throw new IOException("Expected " + code + ", got " + line);
+        return line;
+    }
+
+    private static void send(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * Runs the server with the shard count and the clients against it
+     *
+     * @return whether nothing failed
+     */
+    private static boolean run(Path root, String config, int shards, int clients, long seconds, long size)
+            throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put("ftp.port", Integer.toString(port));
+        overrides.put("ftp.home", root.toString());
+        overrides.put("ftp.storage", "local");
+        overrides.put("ftp.shards", Integer.toString(shards));
+        overrides.put("ftp.pasv.ports", "");
+        overrides.put("ftp.sessions.max", "1000000");
+        overrides.put("ftp.sessions.max.per.ip", "1000000");
+        overrides.put("ftp.listen.inherited", "false");
+        overrides.put("ftp.tls.required", "false");
+        overrides.put("ftp.config.watch", "false");
+        overrides.put("ftp.trace.dir", "");
+        overrides.put("ftp.xferlog.dir", "");
+        overrides.put("ftp.events.subscribers", "");
+        overrides.put("ftp.user.bench", "bench");
+        // before any other class of the server reads its settings
+        Config.load(config, overrides);
+
+        Server server = new Server(port, root.toString());
+        Thread thread = new Thread(server::start, "ftp-shard-server");
+        thread.setDaemon(true);
+        thread.start();
+        for (int i = 0; ; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                break;
+            } catch (IOException e) {
+                if (i == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+
+        ShardLoad load = new ShardLoad(port, size);
+        load.phase(clients, seconds, () -> {
+            load.connect();
+            if (load.running)
+                load.connections.incrementAndGet();
+        });
+        load.phase(clients, seconds, load::download);
+        server.stop();
+        System.out.printf("* Shards %d: %.0f connections/s, %.1f MB/s, %d failures%n", shards,
+                load.connections.get() / (double) seconds, load.bytes.get() / 1048576.0 / seconds,
+                load.failures.get());
+        load.errors.forEach(e -> System.out.println("*   " + e));
+        return load.failures.get() == 0;
+    }
+
+    /**
+     * Runs this benchmark for one shard count in another process
+     *
+     * @return its connections per second, MB per second and failures
+     */
+    private static double[] child(Path root, String[] args, int shards) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardLoad.class.getName());
+        command.addAll(Arrays.asList(args));
+        command.addAll(Arrays.asList("-run", Integer.toString(shards), "-root", root.toString()));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        double[] result = null;
+        List<String> output = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = RESULT.matcher(line);
+                if (line.startsWith("* Shards") && m.find())
+                    result = new double[]{Double.parseDouble(m.group(1)), Double.parseDouble(m.group(2)),
+                            Double.parseDouble(m.group(3))};
+                output.add(line);
+            }
+        }
+        // a run with failures prints them and exits with 1
+        if (process.waitFor() != 0 || result == null)
+            output.forEach(System.out::println);
+        if (result == null)
+            throw new IOException("Benchmark with " + shards + " shards failed");
+        return result;
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] shards = {1, 2, 4};
+        int clients = 32;
+        long seconds = 5;
+        long size = 1048576L;
+        String config = "main/src/ftp.properties";
+        int only = 0;
+        Path given = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-shards":
+                    shards = Arrays.stream(args[i + 1].split(","))
+                            .mapToInt(s -> Math.max(1, Integer.parseInt(s.trim()))).toArray();
+                    break;
+                case "-clients":
+                    clients = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-seconds":
+                    seconds = Math.max(1, Long.parseLong(args[i + 1]));
+                    break;
+                case "-size":
+                    size = Math.max(0, Long.parseLong(args[i + 1]));
+                    break;
+                case "-config":
+                    config = args[i + 1];
+                    break;
+                // for the processes of the shard counts
+                case "-run":
+                    only = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-root":
+                    given = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.ShardLoad [-shards 1,2,4] [-clients 32] [-seconds 5] " +
+                            "[-size 1048576] [-config main/src/ftp.properties]");
+                    return;
+            }
+        }
+
+        Path root = given;
+        int status = 0;
+        try {
+            if (given != null) {
+                status = run(given, config, only, clients, seconds, size) ? 0 : 1;
+            } else {
+                root = Files.createTempDirectory("ftp-shard-load");
+                Path home = Files.createDirectories(root.resolve("bench"));
+                byte[] block = new byte[65536];
+                Arrays.fill(block, (byte) 'x');
+                try (OutputStream out = Files.newOutputStream(home.resolve("load.bin"))) {
+                    for (long written = 0; written < size; written += block.length)
+                        out.write(block, 0, (int) Math.min(block.length, size - written));
+                }
+
+                System.out.printf("* %d clients, %d s per phase, %d KB downloads, %d cores%n", clients, seconds,
+                        size / 1024, Runtime.getRuntime().availableProcessors());
+                double[] first = null;
+                for (int count : shards) {
+                    double[] result = child(root, args, count);
+                    if (first == null)
+                        first = result;
+                    System.out.printf("* Shards %d: %.0f connections/s (%.2fx), %.1f MB/s (%.2fx)%s%n", count,
+                            result[0], result[0] / Math.max(first[0], 1e-9), result[1],
+                            result[1] / Math.max(first[1], 1e-9),
+                            result[2] > 0 ? String.format(", %.0f failures", result[2]) : "");
+                    if (result[2] > 0)
+                        status = 1;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            try {
+                if (root != null && given == null)
+                    delete(root);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + root);
+            }
+        }
+        System.exit(status);
+    }
+}
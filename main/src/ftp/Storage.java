@@ -0,0 +1,66 @@
+package ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Where the files of a user root are kept. Paths handed to a storage have
+ * already been resolved and confined by PathResolver.
+ *
+ * The storage of a root is picked with ftp.storage.&lt;user&gt; (ftp.storage for
+ * anonymous users), "local" for the file system, "dedup" for the file system
+ * with identical uploads stored once and "memory" for an off-heap store that
+ * lives as long as the server
+ */
+interface Storage {
+
+    static Storage forRoot(File root, String type) throws IOException {
+        if ("memory".equalsIgnoreCase(type))
+            return MemoryStorage.forRoot(root.toPath());
+        if ("dedup".equalsIgnoreCase(type))
+            return new DedupStorage(root);
+        return new LocalStorage(root);
+    }
+
+    /**
+     * @return the metadata of the entry, or null if it doesn't exist
+     */
+    FileStat stat(Path path) throws IOException;
+
+    /**
+     * @return the entries of a directory sorted by name, or null if it isn't a directory
+     */
+    List<FileStat> list(Path dir) throws IOException;
+
+    /**
+     * Opens a file for reading. Local files are returned as a FileChannel so
+     * binary transfers can use transferTo
+     */
+    ReadableByteChannel openRead(Path path, long offset) throws IOException;
+
+    /**
+     * Opens a file for writing, truncating it when offset is 0 and otherwise
+     * writing from offset on
+     */
+    WritableByteChannel openWrite(Path path, long offset) throws IOException;
+
+    /**
+     * Deletes a file or an empty directory
+     *
+     * @return false if nothing was deleted, also when the directory isn't empty
+     */
+    boolean delete(Path path) throws IOException;
+
+    boolean mkdir(Path path) throws IOException;
+
+    void rename(Path from, Path to) throws IOException;
+
+    /**
+     * @return whether paths can be symbolic links that PathResolver has to check
+     */
+    boolean hasSymbolicLinks();
+}
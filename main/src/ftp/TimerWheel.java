@@ -0,0 +1,196 @@
+package ftp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel running the session timeouts. Four wheels of 64 slots
+ * cover 64^4 ticks of ftp.timer.tick ms (19 days at the default 100 ms). A timer
+ * goes into the slot of the wheel matching how far away it is, and when a wheel
+ * turns over, the next slot of the wheel above is spread over the ones below.
+ * Scheduling and cancelling are O(1) and a tick only touches the timers that are
+ * due, however many sessions are waiting.
+ *
+ * Tasks run on the single timer thread and have to be short, closing a socket or
+ * scheduling themselves again
+ */
+class TimerWheel {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = 1L << (BITS * LEVELS);
+
+    private static final TimerWheel instance = new TimerWheel(Config.get().getLong("ftp.timer.tick", 100L));
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+
+    /** Number of ticks processed so far */
+    private long now = 0L;
+    private int pending = 0;
+
+    private TimerWheel(long tickMillis) {
+        this.tickMillis = Math.max(1L, tickMillis);
+        this.startMillis = System.currentTimeMillis();
+        Thread thread = new Thread(this::run, "ftp-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static TimerWheel getInstance() {
+        return instance;
+    }
+
+    /**
+     * Runs the task once, delay ms from now, rounded up to the next tick
+     */
+    Timeout schedule(long delay, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        // from the clock rather than from now, which lags behind while ticks are processed
+        long at = System.currentTimeMillis() - startMillis + Math.max(0L, delay);
+        long deadline = (at + tickMillis - 1) / tickMillis;
+        synchronized (this) {
+            timeout.deadline = Math.max(now + 1, deadline);
+            insert(timeout);
+            pending++;
+        }
+        return timeout;
+    }
+
+    synchronized int getPending() {
+        return pending;
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadline - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+            level++;
+
+        // beyond the top wheel: park it in its last slot and place it again from there
+        long at = delta >= MAX_TICKS ? now + MAX_TICKS - 1 : timeout.deadline;
+        int slot = (int) ((at >>> (BITS * level)) & MASK);
+
+        Timeout head = wheels[level][slot];
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null)
+            head.prev = timeout;
+        wheels[level][slot] = timeout;
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            wheels[timeout.level][timeout.slot] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+
+    /**
+     * Advances the wheels by one tick
+     *
+     * @return the timers that are due
+     */
+    private List<Timeout> tick() {
+        now++;
+        // cascade from the highest wheel that turned over down to wheel 1
+        int top = 0;
+        while (top < LEVELS - 1 && (now & ((1L << (BITS * (top + 1))) - 1)) == 0)
+            top++;
+        for (int level = top; level >= 1; level--) {
+            int slot = (int) ((now >>> (BITS * level)) & MASK);
+            Timeout t = wheels[level][slot];
+            wheels[level][slot] = null;
+            while (t != null) {
+                Timeout next = t.next;
+                insert(t);
+                t = next;
+            }
+        }
+
+        List<Timeout> due = new ArrayList<>();
+        int slot = (int) (now & MASK);
+        Timeout t = wheels[0][slot];
+        wheels[0][slot] = null;
+        while (t != null) {
+            Timeout next = t.next;
+            t.prev = null;
+            t.next = null;
+            if (t.deadline <= now) {
+                t.level = -1;
+                pending--;
+                due.add(t);
+            } else {
+                insert(t);
+            }
+            t = next;
+        }
+        return due;
+    }
+
+    private void run() {
+        while (true) {
+            List<Timeout> due = new ArrayList<>();
+            synchronized (this) {
+                long target = (System.currentTimeMillis() - startMillis) / tickMillis;
+                while (now < target)
+                    due.addAll(tick());
+            }
+
+            for (Timeout timeout : due) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Error running timer task");
+                    e.printStackTrace();
+                }
+            }
+
+            long next = startMillis + (now + 1) * tickMillis;
+            try {
+                Thread.sleep(Math.max(1L, next - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A scheduled task, which can be cancelled until it has run
+     */
+    class Timeout {
+        private final Runnable task;
+        private long deadline;
+        private int level = -1;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * @return false if the task already ran or was cancelled
+         */
+        boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (level < 0)
+                    return false;
+                remove(this);
+                pending--;
+                return true;
+            }
+        }
+    }
+}
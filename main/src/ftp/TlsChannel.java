@@ -0,0 +1,277 @@
+package ftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS over a blocking SocketChannel, driven by an SSLEngine. Records are
+ * encrypted and decrypted in direct buffers taken from the TlsContext pool.
+ *
+ * One thread reads while others may write (the control connection gets
+ * replies from transfer threads), which SSLEngine allows, writes are
+ * serialized here. The buffers go back to the pool in release(), which the
+ * reading thread calls once it is done with the channel
+ */
+class TlsChannel implements ByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final Object writeLock = new Object();
+
+    /** Encrypted bytes read from the socket, not unwrapped yet. Write mode */
+    private ByteBuffer netIn;
+    /** Decrypted bytes not returned by read() yet. Read mode */
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private boolean released = false;
+
+    private long handshakeNanos;
+    private boolean resumed;
+
+    private TlsChannel(SocketChannel socket, SSLEngine engine, BufferPool pool) {
+        this.socket = socket;
+        this.engine = engine;
+        this.pool = pool;
+        this.netIn = pool.acquire();
+        this.appIn = pool.acquire();
+        this.appIn.limit(0);
+        this.netOut = pool.acquire();
+    }
+
+    /**
+     * Runs the server side handshake on the socket
+     *
+     * @throws IOException if the handshake fails, the socket is then closed
+     */
+    static TlsChannel open(SocketChannel socket, TlsContext tls) throws IOException {
+        TlsChannel channel = start(socket, tls.createEngine(), tls.getPool());
+        tls.handshakeDone(channel.handshakeNanos, channel.resumed);
+        return channel;
+    }
+
+    /**
+     * Runs the client side handshake on the socket, for the load tools. The
+     * context of the engine caches the session under the peer host and port the
+     * engine was created with, so a data connection can offer the session of the
+     * control connection, which SSLSocket can't
+     *
+     * @throws IOException if the handshake fails, the socket is then closed
+     */
+    static TlsChannel connect(SocketChannel socket, SSLEngine engine, BufferPool pool) throws IOException {
+        engine.setUseClientMode(true);
+        return start(socket, engine, pool);
+    }
+
+    private static TlsChannel start(SocketChannel socket, SSLEngine engine, BufferPool pool) throws IOException {
+        TlsChannel channel = new TlsChannel(socket, engine, pool);
+        try {
+            // a flight of the handshake goes out one record at a time, Nagle would
+            // hold back the rest until the peer acknowledges the first, which it delays
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.handshake();
+        } catch (IOException | RuntimeException e) {
+            FtpUtil.releaseChannelResource(socket);
+            channel.release();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void handshake() throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        engine.beginHandshake();
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    synchronized (writeLock) {
+                        wrap(EMPTY);
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (unwrap() < 0)
+                        throw new EOFException("Connection closed during TLS handshake");
+                    break;
+                default:
+                    handshakeNanos = System.nanoTime() - start;
+                    // a resumed session keeps the creation time of the one it resumes
+                    resumed = engine.getSession().getCreationTime() < startMillis;
+                    return;
+            }
+        }
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    boolean isResumed() {
+        return resumed;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (released)
+            throw new ClosedChannelException();
+        while (!appIn.hasRemaining()) {
+            if (unwrap() < 0)
+                return -1;
+            // post-handshake messages, TLS 1.3 key updates and the like
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                synchronized (writeLock) {
+                    wrap(EMPTY);
+                }
+            }
+        }
+
+        int len = Math.min(dst.remaining(), appIn.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + len);
+        dst.put(slice);
+        appIn.position(appIn.position() + len);
+        return len;
+    }
+
+    /**
+     * Unwraps the next record, reading from the socket until there is a whole one
+     *
+     * @return the number of bytes decrypted, which may be 0 for handshake records,
+     *         or -1 once the peer closed
+     */
+    private int unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    return result.bytesProduced();
+                case CLOSED:
+                    return -1;
+                case BUFFER_OVERFLOW:
+                    // appIn still holds data, read() returns that first
+                    return 0;
+                case BUFFER_UNDERFLOW:
+                    if (socket.read(netIn) < 0) {
+                        try {
+                            engine.closeInbound();
+                        } catch (SSLException e) {
+                            // closed without close_notify, possible truncation
+                            System.out.println("* TLS peer closed without close_notify");
+                        }
+                        return -1;
+                    }
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            if (released)
+                throw new ClosedChannelException();
+            int written = 0;
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new ClosedChannelException();
+                written += result.bytesConsumed();
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Encrypts what fits in one record and sends it. Called with writeLock held
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(src, netOut);
+        netOut.flip();
+        while (netOut.hasRemaining())
+            socket.write(netOut);
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+            runTasks();
+        return result;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen() && !released;
+    }
+
+    /**
+     * Sends close_notify and closes the socket, without waiting for the peer's
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (writeLock) {
+                if (!released && socket.isOpen()) {
+                    engine.closeOutbound();
+                    while (!engine.isOutboundDone())
+                        wrap(EMPTY);
+                }
+            }
+        } catch (IOException e) {
+            // the peer is gone already
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Gives the buffers back to the pool. Only the reading thread may call this,
+     * once it has stopped reading
+     */
+    void release() {
+        synchronized (writeLock) {
+            if (released)
+                return;
+            released = true;
+            pool.release(netOut);
+            netOut = null;
+        }
+        pool.release(netIn);
+        pool.release(appIn);
+        netIn = null;
+        appIn = null;
+    }
+}
@@ -0,0 +1,116 @@
+package ftp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Server side TLS for AUTH TLS (RFC 4217), set up from the key store in
+ * ftp.tls.keystore. All sessions share one SSLContext, so a data connection
+ * of a client that offers the control connection's session (or ticket) gets
+ * an abbreviated handshake. The server session cache holds
+ * ftp.tls.session.cache sessions for ftp.tls.session.timeout seconds, enough
+ * for every client to keep its session across a long run of transfers.
+ *
+ * To make a key store for testing:
+ * keytool -genkeypair -keyalg EC -alias ftp -keystore ftp.p12 -storetype PKCS12 -dname CN=localhost
+ */
+class TlsContext {
+
+    private static final TlsContext instance = load();
+
+    private final SSLContext context;
+    private final String[] protocols;
+    private final BufferPool pool;
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder fullNanos = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder resumedNanos = new LongAdder();
+
+    private TlsContext(SSLContext context, String[] protocols) {
+        this.context = context;
+        this.protocols = protocols;
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(Config.get().getInt("ftp.tls.session.cache", 10000));
+        sessions.setSessionTimeout(Config.get().getInt("ftp.tls.session.timeout", 3600));
+
+        // a buffer has to hold a whole TLS record, encrypted or not
+        SSLEngine engine = createEngine();
+        int size = Math.max(engine.getSession().getPacketBufferSize(), engine.getSession().getApplicationBufferSize());
+        this.pool = new BufferPool(size, 256);
+    }
+
+    /**
+     * @return null if TLS isn't configured, AUTH TLS is then refused
+     */
+    static TlsContext getInstance() {
+        return instance;
+    }
+
+    private static TlsContext load() {
+        String path = Config.get().get("ftp.tls.keystore", "");
+        if (path.isEmpty())
+            return null;
+
+        char[] password = Config.get().get("ftp.tls.keystore.password", "").toCharArray();
+        try (InputStream in = new FileInputStream(path)) {
+            KeyStore keys = KeyStore.getInstance(Config.get().get("ftp.tls.keystore.type", "PKCS12"));
+            keys.load(in, password);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keys, password);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+
+            String list = Config.get().get("ftp.tls.protocols", "");
+            String[] protocols = list.trim().isEmpty() ? null : list.trim().split("\\s*,\\s*");
+            return new TlsContext(context, protocols);
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("* TLS disabled, can't load " + path);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    SSLEngine createEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        if (protocols != null)
+            engine.setEnabledProtocols(protocols);
+        return engine;
+    }
+
+    /**
+     * Direct buffers of one TLS record, used by every TlsChannel
+     */
+    BufferPool getPool() {
+        return pool;
+    }
+
+    void handshakeDone(long nanos, boolean resumed) {
+        if (resumed) {
+            resumedHandshakes.increment();
+            resumedNanos.add(nanos);
+        } else {
+            fullHandshakes.increment();
+            fullNanos.add(nanos);
+        }
+    }
+
+    String getStatistics() {
+        long full = fullHandshakes.sum();
+        long resumed = resumedHandshakes.sum();
+        return "TLS: " + full + " full handshakes" + (full > 0 ? " (" + fullNanos.sum() / full / 1000 + " us avg)" : "") +
+                ", " + resumed + " resumed" + (resumed > 0 ? " (" + resumedNanos.sum() / resumed / 1000 + " us avg)" : "") +
+                ", " + pool.getPooled() + " buffers pooled";
+    }
+}
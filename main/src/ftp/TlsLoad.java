@@ -0,0 +1,394 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Benchmark of protected data connections (PROT P) against the server of the
+ * classpath started in this process. A client logs in over AUTH TLS and
+ * downloads a file of -size bytes -transfers times in each of three ways: in
+ * the clear for reference, with a full TLS handshake on every data connection,
+ * and resuming the control connection's session on every one, as clients that
+ * keep it do:
+ *
+ * java -cp out ftp.TlsLoad [-transfers 200] [-size 1048576] [-keystore ftp.p12] [-password secret]
+ *      [-config main/src/ftp.properties]
+ *
+ * Without -keystore a throwaway one is made with the keytool of the running
+ * Java. It prints the median handshake time and the MB per second of the
+ * transfers of each way, with the handshakes the server counted. It exits
+ * with 1 when a transfer failed or the resumed handshakes aren't faster than
+ * the full ones
+ */
+class TlsLoad {
+
+    private static final Pattern PASV_REPLY = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+
+    private final int port;
+    private final long size;
+    /** Shares its client session cache between the control and the resumed data connections */
+    private final SSLContext client;
+    private final BufferPool pool;
+    private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+
+    private TlsChannel control;
+    private BufferedReader in;
+    private Writer out;
+
+    private TlsLoad(int port, long size) throws GeneralSecurityException {
+        this.port = port;
+        this.size = size;
+        this.client = clientContext();
+        SSLEngine engine = client.createSSLEngine();
+        engine.setUseClientMode(true);
+        this.pool = new BufferPool(Math.max(engine.getSession().getPacketBufferSize(),
+                engine.getSession().getApplicationBufferSize()), 16);
+    }
+
+    /**
+     * An engine that looks up and caches sessions under the control connection's
+     * host and port, whatever port it connects to
+     */
+    private SSLEngine engine(SSLContext context) {
+        return context.createSSLEngine("127.0.0.1", port);
+    }
+
+    /**
+     * The server's certificate is made for the test, so any is trusted
+     */
+    private static SSLContext clientContext() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{trustAll}, null);
+        return context;
+    }
+
+    /**
+     * Connects and logs in over AUTH TLS
+     */
+    private void login() throws IOException {
+        SocketChannel plain = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        // the server says nothing after the 234 until the handshake, so nothing is read ahead
+        BufferedReader clear = new BufferedReader(new InputStreamReader(Channels.newInputStream(plain),
+                StandardCharsets.US_ASCII));
+        Writer clearOut = new OutputStreamWriter(Channels.newOutputStream(plain), StandardCharsets.US_ASCII);
+        expect(clear, "220");
+        send(clearOut, "AUTH TLS");
+        expect(clear, "234");
+
+        control = TlsChannel.connect(plain, engine(client), pool);
+        in = new BufferedReader(new InputStreamReader(Channels.newInputStream(control), StandardCharsets.US_ASCII));
+        out = new OutputStreamWriter(Channels.newOutputStream(control), StandardCharsets.US_ASCII);
+        send(out, "USER bench");
+        expect(in, "331");
+        send(out, "PASS bench");
+        expect(in, "230");
+        send(out, "TYPE I");
+        expect(in, "200");
+        send(out, "PBSZ 0");
+        expect(in, "200");
+    }
+
+    private enum Way {
+        CLEAR("In the clear"), FULL("Full handshakes"), RESUMED("Resumed handshakes");
+
+        final String title;
+
+        Way(String title) {
+            this.title = title;
+        }
+    }
+
+    /**
+     * Downloads the file once
+     *
+     * @return the handshake time and the transfer time in ns
+     */
+    private long[] transfer(Way way) throws IOException, GeneralSecurityException {
+        send(out, "PASV");
+        Matcher m = PASV_REPLY.matcher(expect(in, "227"));
+        if (!m.find())
+            throw new IOException("Bad PASV reply");
+        long handshake = 0L;
+        long began;
+        long received = 0L;
+        try (SocketChannel data = SocketChannel.open(new InetSocketAddress(m.group(1) + "." + m.group(2) + "." +
+                m.group(3) + "." + m.group(4), Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6))))) {
+            send(out, "RETR load.bin");
+            expect(in, "150");
+
+            began = System.nanoTime();
+            ByteChannel channel = data;
+            TlsChannel tls = null;
+            if (way != Way.CLEAR) {
+                // a context of its own has no session to offer
+                tls = TlsChannel.connect(data, engine(way == Way.RESUMED ? client : clientContext()), pool);
+                handshake = System.nanoTime() - began;
+                channel = tls;
+            }
+            try {
+                int n;
+                while ((n = channel.read(buffer)) >= 0) {
+                    received += n;
+                    buffer.clear();
+                }
+            } finally {
+                if (tls != null) {
+                    tls.close();
+                    tls.release();
+                }
+            }
+        }
+        long nanos = System.nanoTime() - began;
+        expect(in, "226");
+        if (received != size)
+            throw new IOException("Download ended after " + received + " of " + size + " bytes");
+        return new long[]{handshake, nanos};
+    }
+
+    /**
+     * Runs the transfers of one way, after a tenth as many to warm up
+     *
+     * @return the median handshake time in ns
+     */
+    private long run(Way way, int transfers) throws IOException, GeneralSecurityException {
+        send(out, way == Way.CLEAR ? "PROT C" : "PROT P");
+        expect(in, "200");
+        for (int i = 0; i < Math.max(1, transfers / 10); i++)
+            transfer(way);
+
+        long[] handshakes = new long[transfers];
+        long nanos = 0L;
+        for (int i = 0; i < transfers; i++) {
+            long[] result = transfer(way);
+            handshakes[i] = result[0];
+            nanos += result[1];
+        }
+        Arrays.sort(handshakes);
+        long median = handshakes[transfers / 2];
+        System.out.printf("* %s: %d transfers, %.2f ms per transfer, %.1f MB/s%s%n", way.title, transfers,
+                nanos / 1e6 / transfers, size * (double) transfers / 1048576.0 / (nanos / 1e9),
+                way == Way.CLEAR ? "" : String.format(", handshake median %.0f us, p95 %.0f us", median / 1e3,
+                        handshakes[Math.min(transfers - 1, transfers * 95 / 100)] / 1e3));
+        return median;
+    }
+
+    private void quit() throws IOException {
+        send(out, "QUIT");
+        expect(in, "221");
+        control.close();
+        control.release();
+    }
+
+    /**
+     * @return the reply, which starts with the code
+     */
+    private static String expect(BufferedReader in, String code) throws IOException {
+        String line = in.readLine();
+        // the 226 of a transfer is followed by an empty line
+        while (line != null && line.isEmpty())
+            line = in.readLine();
+        while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+            String first = line.substring(0, 3);
+            do {
+                line = in.readLine();
+            } while (line != null && !line.startsWith(first + " "));
+        }
+        if (line == null)
+            throw new IOException("Connection closed waiting for " + code);
+        if (!line.startsWith(code))
+            throw new IOException("Expected " + code + ", got " + line);
+        return line;
+    }
+
+    private static void send(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * Makes a key store with a self-signed EC key, as in the comment of TlsContext
+     */
+    private static void keytool(Path keystore, String password) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-keyalg", "EC", "-alias", "ftp", "-keystore", keystore.toString(),
+                "-storetype", "PKCS12", "-dname", "CN=localhost", "-validity", "2",
+                "-storepass", password, "-keypass", password));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<String> output = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                output.add(line);
+        }
+        if (process.waitFor() != 0) {
+            output.forEach(System.out::println);
+            throw new IOException("keytool failed");
+        }
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    public static void main(String[] args) {
+        int transfers = 200;
+        long size = 1048576L;
+        String keystore = null;
+        String password = "benchmark";
+        String config = "main/src/ftp.properties";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-transfers":
+                    transfers = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "-size":
+                    size = Math.max(0, Long.parseLong(args[i + 1]));
+                    break;
+                case "-keystore":
+                    keystore = args[i + 1];
+                    break;
+                case "-password":
+                    password = args[i + 1];
+                    break;
+                case "-config":
+                    config = args[i + 1];
+                    break;
+                default:
+                    System.out.println("java -cp out ftp.TlsLoad [-transfers 200] [-size 1048576] " +
+                            "[-keystore ftp.p12] [-password secret] [-config main/src/ftp.properties]");
+                    return;
+            }
+        }
+
+        Path root = null;
+        int status = 0;
+        try {
+            root = Files.createTempDirectory("ftp-tls-load");
+            Path home = Files.createDirectories(root.resolve("bench"));
+            byte[] block = new byte[65536];
+            Arrays.fill(block, (byte) 'x');
+            try (OutputStream file = Files.newOutputStream(home.resolve("load.bin"))) {
+                for (long written = 0; written < size; written += block.length)
+                    file.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+            if (keystore == null) {
+                Path made = root.resolve("ftp.p12");
+                keytool(made, password);
+                keystore = made.toString();
+            }
+
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Map<String, String> overrides = new HashMap<>();
+            overrides.put("ftp.port", Integer.toString(port));
+            overrides.put("ftp.home", root.toString());
+            overrides.put("ftp.storage", "local");
+            overrides.put("ftp.listen.inherited", "false");
+            overrides.put("ftp.tls.keystore", keystore);
+            overrides.put("ftp.tls.keystore.password", password);
+            overrides.put("ftp.tls.keystore.type", "PKCS12");
+            overrides.put("ftp.tls.required", "false");
+            overrides.put("ftp.tls.data.reuse.required", "false");
+            overrides.put("ftp.config.watch", "false");
+            overrides.put("ftp.trace.dir", "");
+            overrides.put("ftp.xferlog.dir", "");
+            overrides.put("ftp.events.subscribers", "");
+            overrides.put("ftp.user.bench", "bench");
+            // before any other class of the server reads its settings
+            Config.load(config, overrides);
+            if (TlsContext.getInstance() == null)
+                throw new IOException("TLS isn't available with " + keystore);
+
+            Server server = new Server(port, root.toString());
+            Thread thread = new Thread(server::start, "ftp-tls-server");
+            thread.setDaemon(true);
+            thread.start();
+            for (int i = 0; ; i++) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    break;
+                } catch (IOException e) {
+                    if (i == 50)
+                        throw e;
+                    Thread.sleep(100);
+                }
+            }
+
+            System.out.printf("* %d transfers of %d KB each way%n", transfers, size / 1024);
+            TlsLoad load = new TlsLoad(port, size);
+            load.login();
+            load.run(Way.CLEAR, transfers);
+            long full = load.run(Way.FULL, transfers);
+            long resumed = load.run(Way.RESUMED, transfers);
+            load.quit();
+            System.out.println("* Server " + TlsContext.getInstance().getStatistics());
+            server.stop();
+            if (resumed >= full) {
+                System.out.println("* Resumed handshakes aren't faster than full ones");
+                status = 1;
+            }
+        } catch (IOException | GeneralSecurityException | InterruptedException e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            try {
+                if (root != null)
+                    delete(root);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + root);
+            }
+        }
+        System.exit(status);
+    }
+}
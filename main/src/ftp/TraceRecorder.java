@@ -0,0 +1,378 @@
+package ftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records what sessions do, for TraceReplay: the commands with their time and
+ * the size of every transfer, to trace-&lt;time&gt;.bin files in ftp.trace.dir.
+ * It is a subscriber of the EventBus, so sessions only pay for publishing the
+ * events, and events the bus drops are missing from the trace.
+ *
+ * Traces are sanitised while they are written: user names, passwords and
+ * PORT addresses are left out, and every part of a path becomes a hash keyed
+ * with a secret chosen for the recording, keeping the file extension. The same
+ * name gives the same token throughout a recording, so the shape of the tree
+ * and how often files are used survive, the names don't.
+ *
+ * A file starts with a magic number, the version and the time recording
+ * started, followed by records of a type, the session, the ms since the record
+ * before and the fields of the type. Numbers are written as varints, verbs and
+ * arguments through a table of the strings seen before. A file is closed and
+ * the next one started after ftp.trace.file.size bytes
+ */
+class TraceRecorder implements EventBus.Subscriber {
+
+    private static final int MAGIC = 0x46545243; // "FTRC"
+    private static final int VERSION = 1;
+
+    static final int CONNECT = 1;
+    static final int COMMAND = 2;
+    static final int TRANSFER = 3;
+    static final int DISCONNECT = 4;
+
+    /** Arguments kept as they are, they say nothing about the user */
+    private static final Set<String> LITERAL = new HashSet<>(Arrays.asList(
+            "TYPE", "MODE", "STRU", "REST", "OPTS", "PBSZ", "PROT", "AUTH", "ALLO", "EPSV"));
+    /** Arguments left out */
+    private static final Set<String> DROPPED = new HashSet<>(Arrays.asList(
+            "USER", "PASS", "ACCT", "PORT", "EPRT"));
+    private static final int MAX_STRINGS = 1 << 16;
+
+    private static final TraceRecorder instance = create();
+
+    private final Path dir;
+    private final long fileSize;
+    private final byte[] secret = new byte[16];
+    private final MessageDigest digest;
+
+    /** Touched by the delivery thread only */
+    private DataOutputStream out;
+    private long lastTime;
+    private long lastFlush;
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    private TraceRecorder(Path dir, long fileSize) throws IOException {
+        this.dir = dir;
+        this.fileSize = fileSize;
+        new SecureRandom().nextBytes(secret);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        Files.createDirectories(dir);
+        open();
+    }
+
+    /**
+     * @return null if ftp.trace.dir isn't set
+     */
+    static TraceRecorder getInstance() {
+        return instance;
+    }
+
+    private static TraceRecorder create() {
+        String dir = Config.get().get("ftp.trace.dir", "");
+        if (dir.isEmpty())
+            return null;
+        try {
+            TraceRecorder recorder = new TraceRecorder(Paths.get(dir),
+                    Math.max(Config.get().getLong("ftp.trace.file.size", 64L << 20), 1L << 16));
+            EventBus.getInstance().subscribe(recorder);
+            return recorder;
+        } catch (IOException e) {
+            System.out.println("* Trace recording disabled, can't open " + dir);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public void onEvent(EventBus.Event event) {
+        if (out == null)
+            return;
+        try {
+            switch (event.getType()) {
+                case CONNECT:
+                    header(CONNECT, event);
+                    break;
+                case COMMAND:
+                    String detail = event.getDetail();
+                    int i = detail.indexOf(' ');
+                    String verb = i < 0 ? detail : detail.substring(0, i);
+                    header(COMMAND, event);
+                    writeString(verb);
+                    writeString(sanitise(verb, i < 0 ? "" : detail.substring(i + 1)));
+                    break;
+                case DATA_CONNECTION_FAILED:
+                case TRANSFER_COMPLETE:
+                case TRANSFER_ABORT:
+                case TRANSFER_REFUSED:
+                    header(TRANSFER, event);
+                    writeVarLong(Math.max(event.getBytes(), 0L));
+                    out.writeBoolean(event.getType() == EventBus.Type.TRANSFER_COMPLETE);
+                    break;
+                case DISCONNECT:
+                    header(DISCONNECT, event);
+                    break;
+                default:
+                    return;
+            }
+            // a crash loses at most the last second
+            if (event.getTime() - lastFlush >= 1000) {
+                out.flush();
+                lastFlush = event.getTime();
+            }
+            if (out.size() >= fileSize) {
+                out.close();
+                open();
+            }
+        } catch (IOException e) {
+            System.out.println("* Trace recording stopped");
+            e.printStackTrace();
+            out = null;
+        }
+    }
+
+    /**
+     * Writes what is buffered and closes the file, on the delivery thread once it took the last event
+     */
+    @Override
+    public void onClose() {
+        try {
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    private void open() throws IOException {
+        long now = System.currentTimeMillis();
+        Path file = dir.resolve("trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(now)) + ".bin");
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        strings.clear();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(now);
+        lastTime = now;
+        lastFlush = now;
+    }
+
+    private void header(int type, EventBus.Event event) throws IOException {
+        out.writeByte(type);
+        writeVarLong(event.getSession());
+        // events of different sessions may be a little out of order
+        long delta = event.getTime() - lastTime;
+        writeVarLong((delta << 1) ^ (delta >> 63));
+        lastTime = event.getTime();
+    }
+
+    /**
+     * Writes 0 and the string when the table is full, its number in the table
+     * when it was written before and otherwise the next number and the string
+     */
+    private void writeString(String s) throws IOException {
+        Integer n = strings.get(s);
+        if (n != null) {
+            writeVarLong(n);
+        } else if (strings.size() >= MAX_STRINGS) {
+            writeVarLong(0);
+            out.writeUTF(s);
+        } else {
+            strings.put(s, strings.size() + 1);
+            writeVarLong(strings.size());
+            out.writeUTF(s);
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * @return the argument of a command without what identifies the user
+     */
+    String sanitise(String verb, String argument) {
+        if (argument.isEmpty() || LITERAL.contains(verb))
+            return argument;
+        if (DROPPED.contains(verb))
+            return "";
+        if (verb.equals("SITE")) {
+            // SITE commands take several paths, only the command is kept
+            int i = argument.indexOf(' ');
+            return i < 0 ? argument : argument.substring(0, i);
+        }
+
+        // options of LIST and NLST, like -la
+        StringBuilder sb = new StringBuilder();
+        while (argument.startsWith("-")) {
+            int i = argument.indexOf(' ');
+            sb.append(i < 0 ? argument : argument.substring(0, i + 1));
+            argument = i < 0 ? "" : argument.substring(i + 1).trim();
+        }
+        String[] parts = argument.split("/", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0)
+                sb.append('/');
+            String part = parts[i];
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                sb.append(part);
+                continue;
+            }
+            digest.update(secret);
+            byte[] hash = digest.digest(part.getBytes(StandardCharsets.UTF_8));
+            sb.append('n');
+            for (int j = 0; j < 5; j++)
+                sb.append(String.format("%02x", hash[j]));
+            int dot = part.lastIndexOf('.');
+            if (dot > 0 && part.length() - dot <= 6 && part.substring(dot + 1).matches("[A-Za-z0-9]+"))
+                sb.append(part.substring(dot).toLowerCase());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A recorded session
+     */
+    static class Session {
+        final long id;
+        /** When it connected, in ms since the epoch */
+        final long start;
+        final List<Step> steps = new ArrayList<>();
+
+        Session(long id, long start) {
+            this.id = id;
+            this.start = start;
+        }
+    }
+
+    /**
+     * A recorded command
+     */
+    static class Step {
+        final String verb;
+        final String argument;
+        /** ms after the start of the session */
+        final long at;
+        /** bytes on the data connection for a transfer, otherwise -1 */
+        long bytes = -1L;
+        boolean complete = false;
+
+        Step(String verb, String argument, long at) {
+            this.verb = verb;
+            this.argument = argument;
+            this.at = at;
+        }
+    }
+
+    /**
+     * Reads the sessions of a trace file, in the order they connected. A file cut
+     * short, by a crash for example, gives the sessions up to where it ends
+     */
+    static List<Session> read(Path file) throws IOException {
+        Map<Long, Session> sessions = new LinkedHashMap<>();
+        List<String> table = new ArrayList<>();
+        table.add(null);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file + " is not a session trace");
+            long time = in.readLong();
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    break;
+                long id = readVarLong(in);
+                long delta = readVarLong(in);
+                time += (delta >>> 1) ^ -(delta & 1);
+
+                Session session = sessions.get(id);
+                if (session == null && type != DISCONNECT) {
+                    // sessions that began before the recording start with their first command
+                    session = new Session(id, time);
+                    sessions.put(id, session);
+                }
+                if (type == COMMAND) {
+                    String verb = readString(in, table);
+                    String argument = readString(in, table);
+                    session.steps.add(new Step(verb, argument, time - session.start));
+                } else if (type == TRANSFER) {
+                    long bytes = readVarLong(in);
+                    boolean complete = in.readBoolean();
+                    for (int i = session.steps.size() - 1; i >= 0; i--) {
+                        Step step = session.steps.get(i);
+                        if (isTransfer(step.verb)) {
+                            step.bytes = bytes;
+                            step.complete = complete;
+                            break;
+                        }
+                    }
+                } else if (type != CONNECT && type != DISCONNECT) {
+                    throw new IOException("Unknown record " + type + " in " + file);
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println("* " + file + " ends in the middle of a record");
+        }
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * @return whether a command uses the data connection
+     */
+    static boolean isTransfer(String verb) {
+        return verb.equals("RETR") || verb.equals("STOR") || verb.equals("LIST") || verb.equals("NLST") ||
+                verb.equals("MLSD") || verb.equals("APPE");
+    }
+
+    private static String readString(DataInputStream in, List<String> table) throws IOException {
+        int n = (int) readVarLong(in);
+        if (n == 0)
+            return in.readUTF();
+        if (n < table.size())
+            return table.get(n);
+        String s = in.readUTF();
+        table.add(s);
+        return s;
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0L;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
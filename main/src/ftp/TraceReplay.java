@@ -0,0 +1,590 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Replays traces made with ftp.trace.dir against the server of the classpath,
+ * started in this process over a tree made up from the traces: the files the
+ * sessions read, with the size they had on the wire, and the directories they
+ * went into. Sessions start at the time they were recorded, divided by the
+ * speed, and send every command at its time as well; with speed 0 nothing is
+ * waited for. Each of the copies replays all sessions at once, as its own user
+ * on its own tree.
+ *
+ * The latency of every command, until its last reply, and the throughput are
+ * printed, and can be saved with -report and compared with a report of another
+ * build with -baseline:
+ *
+ * java -cp out ftp.TraceReplay [-speed 1] [-copies 1] [-config main/src/ftp.properties]
+ *      [-report file] [-baseline file] trace...
+ *
+ * Data connections are always passive, PASV is sent right before the transfer
+ * whatever the session used. USER and PASS log in as the copy's user, SITE,
+ * ABOR and the TLS commands are skipped
+ */
+class TraceReplay {
+
+    private static final Set<String> SKIPPED = new HashSet<>(Arrays.asList(
+            "USER", "PASS", "ACCT", "AUTH", "PBSZ", "PROT", "CCC", "ABOR", "SITE"));
+    private static final Set<String> PASSIVE = new HashSet<>(Arrays.asList(
+            "PASV", "EPSV", "PORT", "EPRT", "LPRT", "LPSV"));
+    private static final Pattern PASV_REPLY = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+
+    private final double speed;
+    private final int copies;
+    private final int port;
+    private final List<TraceRecorder.Session> sessions;
+
+    /** Latency in microseconds per verb */
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    /** How late commands were sent, in microseconds */
+    private final List<Long> lateness = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private TraceReplay(double speed, int copies, int port, List<TraceRecorder.Session> sessions) {
+        this.speed = speed;
+        this.copies = copies;
+        this.port = port;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Plays every session once per copy
+     *
+     * @return how long it took in ms
+     */
+    private long run() throws InterruptedException {
+        List<Runnable> replays = new ArrayList<>();
+        long[] starts = new long[sessions.size() * copies];
+        long first = sessions.isEmpty() ? 0L : sessions.get(0).start;
+        for (TraceRecorder.Session session : sessions) {
+            for (int copy = 0; copy < copies; copy++) {
+                String user = "replay" + copy;
+                starts[replays.size()] = session.start - first;
+                replays.add(() -> replay(session, user));
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(replays.size());
+        long began = System.nanoTime();
+        // sessions are sorted by start, they get a thread when it is their time
+        for (int i = 0; i < replays.size(); i++) {
+            waitUntil(began, starts[i]);
+            Runnable replay = replays.get(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    replay.run();
+                } finally {
+                    done.countDown();
+                }
+            }, "ftp-replay-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began);
+    }
+
+    private void replay(TraceRecorder.Session session, String user) {
+        long began = System.nanoTime();
+        TraceRecorder.Step current = null;
+        try (Socket control = new Socket("127.0.0.1", port)) {
+            control.setSoTimeout(120000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.UTF_8);
+            reply(in);
+            send(out, "USER " + user);
+            reply(in);
+            send(out, "PASS replay");
+            String reply = reply(in);
+            if (!reply.startsWith("230"))
+                throw new IOException("Login failed: " + reply);
+
+            boolean quit = false;
+            for (TraceRecorder.Step step : session.steps) {
+                current = step;
+                if (SKIPPED.contains(step.verb)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                // opened with the transfer, the command it was for may be skipped
+                if (PASSIVE.contains(step.verb))
+                    continue;
+                long late = waitUntil(began, step.at);
+                lateness.add(late);
+                commands.incrementAndGet();
+                long sent = System.nanoTime();
+
+                String line = step.argument.isEmpty() ? step.verb : step.verb + " " + step.argument;
+                if (TraceRecorder.isTransfer(step.verb)) {
+                    Socket data = passive(in, out);
+                    measure("PASV", sent);
+                    send(out, line);
+                    reply = reply(in);
+                    if (reply.startsWith("1") && data != null) {
+                        bytes.addAndGet(transfer(data, step));
+                        data.close();
+                        reply = reply(in);
+                    }
+                    close(data);
+                } else {
+                    send(out, line);
+                    reply = reply(in);
+                }
+                measure(step.verb, sent);
+                if (reply.startsWith("4") || reply.startsWith("5"))
+                    refused.incrementAndGet();
+                if (step.verb.equals("QUIT")) {
+                    quit = true;
+                    break;
+                }
+            }
+            if (!quit) {
+                send(out, "QUIT");
+                reply(in);
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.out.println("* Replay of session " + session.id + " as " + user + " failed" +
+                    (current == null ? "" : " at " + current.verb + " " + current.argument) + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Opens a passive data connection
+     *
+     * @return null if the server refused
+     */
+    private static Socket passive(BufferedReader in, Writer out) throws IOException {
+        send(out, "PASV");
+        String reply = reply(in);
+        Matcher m = PASV_REPLY.matcher(reply);
+        if (!reply.startsWith("227") || !m.find())
+            return null;
+        Socket data = new Socket();
+        data.connect(new InetSocketAddress(m.group(1) + "." + m.group(2) + "." + m.group(3) + "." + m.group(4),
+                Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6))), 10000);
+        data.setSoTimeout(120000);
+        return data;
+    }
+
+    /**
+     * @return the bytes sent or received
+     */
+    private static long transfer(Socket data, TraceRecorder.Step step) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long total = 0L;
+        if (step.verb.equals("STOR") || step.verb.equals("APPE")) {
+            OutputStream out = data.getOutputStream();
+            long size = Math.max(step.bytes, 0L);
+            while (total < size) {
+                int len = (int) Math.min(buffer.length, size - total);
+                out.write(buffer, 0, len);
+                total += len;
+            }
+            out.flush();
+            data.shutdownOutput();
+        } else {
+            InputStream in = data.getInputStream();
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                total += len;
+        }
+        return total;
+    }
+
+    private static void close(Socket socket) {
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    private static void send(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * @return the last line of the reply, the one that ends a multi-line reply
+     */
+    private static String reply(BufferedReader in) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed by the server");
+        } while (line.isEmpty());
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            String end = line.substring(0, 3) + " ";
+            while (!line.startsWith(end)) {
+                line = in.readLine();
+                if (line == null)
+                    throw new IOException("Connection closed by the server");
+            }
+        }
+        return line;
+    }
+
+    /**
+     * @return how many microseconds past the time it already was
+     */
+    private long waitUntil(long began, long at) throws InterruptedException {
+        if (speed <= 0)
+            return 0L;
+        long due = began + (long) (TimeUnit.MILLISECONDS.toNanos(at) / speed);
+        long now = System.nanoTime();
+        if (due > now) {
+            TimeUnit.NANOSECONDS.sleep(due - now);
+            return 0L;
+        }
+        return (now - due) / 1000;
+    }
+
+    private void measure(String verb, long sent) {
+        latencies.computeIfAbsent(verb, v -> Collections.synchronizedList(new ArrayList<>()))
+                .add((System.nanoTime() - sent) / 1000);
+    }
+
+    private Properties report(long millis) {
+        Properties report = new Properties();
+        report.setProperty("sessions", Long.toString(sessions.size()));
+        report.setProperty("copies", Integer.toString(copies));
+        report.setProperty("commands", Long.toString(commands.get()));
+        report.setProperty("commands.skipped", Long.toString(skipped.get()));
+        report.setProperty("replies.refused", Long.toString(refused.get()));
+        report.setProperty("sessions.failed", Long.toString(failed.get()));
+        report.setProperty("seconds", String.format("%.3f", millis / 1000.0));
+        report.setProperty("bytes", Long.toString(bytes.get()));
+        report.setProperty("throughput.kbps", String.format("%.1f", bytes.get() / 1024.0 * 1000 / Math.max(millis, 1)));
+        report.setProperty("commands.per.second", String.format("%.1f", commands.get() * 1000.0 / Math.max(millis, 1)));
+        percentiles(report, "lateness", lateness);
+
+        List<Long> all = new ArrayList<>();
+        for (Map.Entry<String, List<Long>> e : latencies.entrySet()) {
+            percentiles(report, "latency." + e.getKey(), e.getValue());
+            all.addAll(e.getValue());
+        }
+        percentiles(report, "latency.all", all);
+        return report;
+    }
+
+    private static void percentiles(Properties report, String name, List<Long> micros) {
+        long[] sorted;
+        synchronized (micros) {
+            sorted = micros.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+        report.setProperty(name + ".count", Integer.toString(sorted.length));
+        if (sorted.length == 0)
+            return;
+        for (int p : new int[]{50, 95, 99})
+            report.setProperty(name + ".p" + p + ".ms",
+                    String.format("%.3f", sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1000.0));
+    }
+
+    private static void print(Properties report, Properties baseline) {
+        for (String key : new TreeSet<>(report.stringPropertyNames())) {
+            String value = report.getProperty(key);
+            String before = baseline == null ? null : baseline.getProperty(key);
+            if (before == null) {
+                System.out.println(String.format("%-32s %12s", key, value));
+                continue;
+            }
+            double a = Double.parseDouble(before);
+            double b = Double.parseDouble(value);
+            System.out.println(String.format("%-32s %12s %12s %s", key, before, value,
+                    a == 0 ? "" : String.format("%+.1f%%", (b - a) * 100 / a)));
+        }
+    }
+
+    /**
+     * Works out the tree the sessions expect: the directories they change into
+     * or list and the files they read, sized for the most read of them, except
+     * for those they make themselves
+     *
+     * @param dirs  filled with the directories, relative to the user root
+     * @param files filled with the files and their sizes
+     */
+    static void plan(List<TraceRecorder.Session> sessions, Set<String> dirs, Map<String, Long> files) {
+        Set<String> made = new HashSet<>();
+        for (TraceRecorder.Session session : sessions) {
+            String cwd = "";
+            long offset = 0L;
+            for (TraceRecorder.Step step : session.steps) {
+                String path = resolve(cwd, pathOf(step));
+                switch (step.verb) {
+                    case "CWD":
+                        if (!made.contains(path) && !path.isEmpty())
+                            dirs.add(path);
+                        cwd = path;
+                        break;
+                    case "CDUP":
+                        cwd = resolve(cwd, "..");
+                        break;
+                    case "MKD":
+                    case "STOR":
+                    case "APPE":
+                    case "RNTO":
+                        made.add(path);
+                        break;
+                    case "REST":
+                        try {
+                            offset = Long.parseLong(step.argument.trim());
+                        } catch (NumberFormatException e) {
+                            offset = 0L;
+                        }
+                        continue;
+                    case "RETR":
+                    case "SIZE":
+                    case "MDTM":
+                    case "DELE":
+                    case "RNFR":
+                    case "HASH":
+                        if (!made.contains(path) && !path.isEmpty())
+                            files.merge(path, offset + Math.max(step.bytes, 0L), Math::max);
+                        break;
+                    case "RMD":
+                    case "LIST":
+                    case "NLST":
+                    case "MLSD":
+                        if (!made.contains(path) && !path.isEmpty() && !files.containsKey(path))
+                            dirs.add(path);
+                        break;
+                    default:
+                        break;
+                }
+                offset = 0L;
+            }
+        }
+        dirs.removeAll(files.keySet());
+    }
+
+    /**
+     * @return the path argument of a command, without the options of LIST
+     */
+    private static String pathOf(TraceRecorder.Step step) {
+        String argument = step.argument;
+        while (argument.startsWith("-")) {
+            int i = argument.indexOf(' ');
+            argument = i < 0 ? "" : argument.substring(i + 1).trim();
+        }
+        return argument;
+    }
+
+    /**
+     * @return the path relative to the user root, "" for the root
+     */
+    static String resolve(String cwd, String argument) {
+        Deque<String> parts = new ArrayDeque<>();
+        if (!argument.startsWith("/")) {
+            for (String part : cwd.split("/"))
+                if (!part.isEmpty())
+                    parts.addLast(part);
+        }
+        for (String part : argument.split("/")) {
+            if (part.isEmpty() || part.equals("."))
+                continue;
+            if (part.equals("..")) {
+                parts.pollLast();
+                continue;
+            }
+            parts.addLast(part);
+        }
+        return String.join("/", parts);
+    }
+
+    /**
+     * Makes the tree of plan() under root, files filled with random bytes
+     */
+    static void generate(Path root, Set<String> dirs, Map<String, Long> files) throws IOException {
+        Files.createDirectories(root);
+        for (String dir : dirs)
+            Files.createDirectories(root.resolve(dir));
+
+        ByteBuffer block = ByteBuffer.allocate(1 << 20);
+        new Random(1).nextBytes(block.array());
+        for (Map.Entry<String, Long> e : files.entrySet()) {
+            Path file = root.resolve(e.getKey());
+            if (Files.isDirectory(file))
+                continue;
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long left = e.getValue();
+                while (left > 0) {
+                    block.clear().limit((int) Math.min(block.capacity(), left));
+                    left -= channel.write(block);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+                Files.deleteIfExists(path);
+        }
+    }
+
+    public static void main(String[] args) {
+        double speed = 1.0;
+        int copies = 1;
+        String config = "main/src/ftp.properties";
+        String reportFile = null;
+        String baselineFile = null;
+        List<Path> traces = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-speed") && i + 1 < args.length)
+                speed = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-copies") && i + 1 < args.length)
+                copies = Math.max(1, Integer.parseInt(args[++i]));
+            else if (args[i].equals("-config") && i + 1 < args.length)
+                config = args[++i];
+            else if (args[i].equals("-report") && i + 1 < args.length)
+                reportFile = args[++i];
+            else if (args[i].equals("-baseline") && i + 1 < args.length)
+                baselineFile = args[++i];
+            else
+                traces.add(Paths.get(args[i]));
+        }
+        if (traces.isEmpty()) {
+            System.out.println("Usage: java ftp.TraceReplay [-speed n] [-copies n] [-config file] " +
+                    "[-report file] [-baseline file] trace...");
+            return;
+        }
+
+        Path root = null;
+        try {
+            root = Files.createTempDirectory("ftp-replay");
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Map<String, String> overrides = new HashMap<>();
+            overrides.put("ftp.port", Integer.toString(port));
+            overrides.put("ftp.home", root.toString());
+            overrides.put("ftp.storage", "local");
+            overrides.put("ftp.sessions.max", "1000000");
+            overrides.put("ftp.sessions.max.per.ip", "1000000");
+            overrides.put("ftp.listen.inherited", "false");
+            overrides.put("ftp.tls.required", "false");
+            overrides.put("ftp.config.watch", "false");
+            overrides.put("ftp.trace.dir", "");
+            overrides.put("ftp.xferlog.dir", "");
+            overrides.put("ftp.events.subscribers", "");
+            for (int copy = 0; copy < copies; copy++) {
+                overrides.put("ftp.user.replay" + copy, "replay");
+                overrides.put("ftp.home.replay" + copy, root.resolve("replay" + copy).toString());
+            }
+            // before any other class of the server reads its settings
+            Config.load(config, overrides);
+
+            List<TraceRecorder.Session> sessions = new ArrayList<>();
+            for (Path trace : traces)
+                sessions.addAll(TraceRecorder.read(trace));
+            sessions.sort(Comparator.comparingLong(s -> s.start));
+
+            Set<String> dirs = new TreeSet<>();
+            Map<String, Long> files = new TreeMap<>();
+            plan(sessions, dirs, files);
+            long size = files.values().stream().mapToLong(Long::longValue).sum();
+            System.out.println("* Replaying " + sessions.size() + " sessions " + copies + " times at speed " +
+                    speed + ", tree of " + dirs.size() + " directories and " + files.size() + " files, " +
+                    size / 1024 + " KB each");
+            for (int copy = 0; copy < copies; copy++)
+                generate(root.resolve("replay" + copy), dirs, files);
+
+            Server server = new Server(port, root.toString());
+            Thread thread = new Thread(server::start, "ftp-replay-server");
+            thread.setDaemon(true);
+            thread.start();
+            for (int i = 0; ; i++) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    break;
+                } catch (IOException e) {
+                    if (i == 50)
+                        throw e;
+                    Thread.sleep(100);
+                }
+            }
+
+            TraceReplay replay = new TraceReplay(speed, copies, port, sessions);
+            long millis = replay.run();
+            server.drain(5000);
+
+            Properties report = replay.report(millis);
+            Properties baseline = null;
+            if (baselineFile != null) {
+                baseline = new Properties();
+                try (Reader reader = Files.newBufferedReader(Paths.get(baselineFile))) {
+                    baseline.load(reader);
+                }
+            }
+            print(report, baseline);
+            if (reportFile != null) {
+                try (Writer writer = Files.newBufferedWriter(Paths.get(reportFile))) {
+                    report.store(writer, "ftp.TraceReplay " + String.join(" ", args));
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (root != null)
+                    delete(root);
+            } catch (IOException e) {
+                System.out.println("* Can't remove " + root);
+            }
+        }
+        System.exit(0);
+    }
+}
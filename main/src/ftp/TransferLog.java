@@ -0,0 +1,338 @@
+package ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit record of every file transfer, written to ftp.xferlog.dir. Transfer
+ * threads only put a record on a lock-free queue, one writer thread appends
+ * them to memory mapped segment files of ftp.xferlog.segment.size bytes, so
+ * logging never waits for the disk. When the queue already holds
+ * ftp.xferlog.queue records further ones are dropped and counted instead.
+ *
+ * A segment starts with a magic number and a version, followed by records of
+ * a length and the fields below. The length is written last, so a record cut
+ * short by a crash is never read, and a length of 0 marks the end.
+ * Only the newest ftp.xferlog.keep segments are kept, all of them with 0.
+ *
+ * To print segments in the xferlog format of wu-ftpd:
+ * java ftp.TransferLog directory
+ */
+class TransferLog {
+
+    private static final int MAGIC = 0x5846524c; // "XFRL"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+
+    private static final byte BINARY = 1;
+    private static final byte INCOMING = 2;
+    private static final byte ANONYMOUS = 4;
+    private static final byte COMPLETE = 8;
+
+    private static final TransferLog instance = create();
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int keep;
+    private final int capacity;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean parked = false;
+    private volatile boolean closing = false;
+
+    /** Touched by the writer thread only */
+    private int sequence;
+    private FileChannel file;
+    private MappedByteBuffer segment;
+
+    private TransferLog(Path dir, int segmentSize, int keep, int capacity) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.keep = keep;
+        this.capacity = capacity;
+        Files.createDirectories(dir);
+        resume();
+        this.writer = new Thread(this::write, "ftp-xferlog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return null if ftp.xferlog.dir isn't set
+     */
+    static TransferLog getInstance() {
+        return instance;
+    }
+
+    private static TransferLog create() {
+        String dir = Config.get().get("ftp.xferlog.dir", "");
+        if (dir.isEmpty())
+            return null;
+        try {
+            return new TransferLog(Paths.get(dir),
+                    Math.max(Config.get().getInt("ftp.xferlog.segment.size", 16 << 20), 1 << 16),
+                    Config.get().getInt("ftp.xferlog.keep", 0),
+                    Config.get().getInt("ftp.xferlog.queue", 1 << 16));
+        } catch (IOException e) {
+            System.out.println("* Transfer log disabled, can't open " + dir);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Queues the record of a finished transfer, never waits
+     *
+     * @param millis how long the transfer took
+     */
+    void record(InetAddress remote, String user, boolean anonymous, Path path, long bytes, long millis,
+                boolean binary, boolean incoming, boolean complete) {
+        if (closing) {
+            dropped.increment();
+            return;
+        }
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        byte flags = (byte) ((binary ? BINARY : 0) | (incoming ? INCOMING : 0) |
+                (anonymous ? ANONYMOUS : 0) | (complete ? COMPLETE : 0));
+        queue.offer(new Entry(System.currentTimeMillis(), millis, bytes, flags,
+                remote.getAddress(), user, path.toString()));
+        if (parked)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Writes what is queued, then flushes and closes the segment
+     */
+    void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    String getStatistics() {
+        return "Transfer log: " + written.sum() + " records written, " + dropped.sum() + " dropped, " +
+                queued.get() + " queued, segment " + sequence;
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Entry entry = queue.poll();
+                if (entry == null) {
+                    if (closing)
+                        break;
+                    parked = true;
+                    // a record queued before the flag was set would otherwise wait for the timeout
+                    if (queue.isEmpty())
+                        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                    parked = false;
+                    continue;
+                }
+                queued.decrementAndGet();
+                append(entry);
+                written.increment();
+            }
+            segment.force();
+            file.close();
+        } catch (IOException e) {
+            System.out.println("* Transfer log stopped");
+            e.printStackTrace();
+            closing = true;
+        }
+    }
+
+    private void append(Entry entry) throws IOException {
+        byte[] user = truncate(entry.user.getBytes(StandardCharsets.UTF_8));
+        byte[] path = truncate(entry.path.getBytes(StandardCharsets.UTF_8));
+        int length = 8 + 8 + 8 + 1 + 1 + entry.address.length + 2 + user.length + 2 + path.length;
+        if (segment.remaining() < 4 + length + 4)
+            rotate();
+
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.putLong(entry.time);
+        segment.putLong(entry.millis);
+        segment.putLong(entry.bytes);
+        segment.put(entry.flags);
+        segment.put((byte) entry.address.length).put(entry.address);
+        segment.putShort((short) user.length).put(user);
+        segment.putShort((short) path.length).put(path);
+        segment.putInt(start, length);
+    }
+
+    private static byte[] truncate(byte[] field) {
+        return field.length > 4096 ? Arrays.copyOf(field, 4096) : field;
+    }
+
+    /**
+     * Continues the newest segment where its records end
+     */
+    private void resume() throws IOException {
+        List<Path> segments = segments(dir);
+        if (segments.isEmpty()) {
+            open(1);
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        sequence = sequenceOf(last);
+        file = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = file.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(file.size(), segmentSize));
+        if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+            // not one of ours or never finished, start a new one next to it
+            file.close();
+            open(sequence + 1);
+            return;
+        }
+        segment.position(HEADER);
+        int length;
+        while (segment.remaining() >= 4 && (length = segment.getInt(segment.position())) > 0 &&
+                length <= segment.remaining() - 4)
+            segment.position(segment.position() + 4 + length);
+    }
+
+    private void rotate() throws IOException {
+        segment.force();
+        file.close();
+        open(sequence + 1);
+        if (keep > 0) {
+            List<Path> segments = segments(dir);
+            for (int i = 0; i < segments.size() - keep; i++)
+                Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private void open(int sequence) throws IOException {
+        this.sequence = sequence;
+        file = FileChannel.open(dir.resolve(String.format("xferlog-%06d.bin", sequence)),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(4, VERSION);
+        segment.putInt(0, MAGIC);
+        segment.position(HEADER);
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        File[] files = dir.toFile().listFiles((d, name) -> name.matches("xferlog-[0-9]+\\.bin"));
+        if (files == null)
+            throw new IOException("Can't list " + dir);
+        for (File f : files)
+            segments.add(f.toPath());
+        segments.sort((a, b) -> Integer.compare(sequenceOf(a), sequenceOf(b)));
+        return segments;
+    }
+
+    private static int sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring("xferlog-".length(), name.length() - ".bin".length()));
+    }
+
+    /**
+     * Prints the records of every segment in a directory as xferlog lines
+     */
+    static void export(Path dir, PrintStream out) throws IOException {
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US)
+                .withZone(ZoneId.systemDefault());
+        for (Path path : segments(dir)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                System.err.println("Skipping " + path + ", not a transfer log segment");
+                continue;
+            }
+            int length;
+            while (buffer.remaining() >= 4 && (length = buffer.getInt()) > 0 && length <= buffer.remaining()) {
+                long time = buffer.getLong();
+                long millis = buffer.getLong();
+                long bytes = buffer.getLong();
+                byte flags = buffer.get();
+                byte[] address = new byte[buffer.get()];
+                buffer.get(address);
+                byte[] user = new byte[buffer.getShort() & 0xffff];
+                buffer.get(user);
+                byte[] file = new byte[buffer.getShort() & 0xffff];
+                buffer.get(file);
+
+                String host;
+                try {
+                    host = InetAddress.getByAddress(address).getHostAddress();
+                } catch (UnknownHostException e) {
+                    host = "-";
+                }
+                // fields are separated by blanks, so names mustn't have any
+                out.println(format.format(Instant.ofEpochMilli(time)) + " " + (millis + 500) / 1000 + " " +
+                        host + " " + bytes + " " + new String(file, StandardCharsets.UTF_8).replaceAll("\\s", "_") +
+                        " " + ((flags & BINARY) != 0 ? "b" : "a") + " _ " + ((flags & INCOMING) != 0 ? "i" : "o") +
+                        " " + ((flags & ANONYMOUS) != 0 ? "a" : "r") + " " +
+                        new String(user, StandardCharsets.UTF_8).replaceAll("\\s", "_") + " ftp 0 * " +
+                        ((flags & COMPLETE) != 0 ? "c" : "i"));
+            }
+        }
+    }
+
+    private static class Entry {
+        final long time;
+        final long millis;
+        final long bytes;
+        final byte flags;
+        final byte[] address;
+        final String user;
+        final String path;
+
+        Entry(long time, long millis, long bytes, byte flags, byte[] address, String user, String path) {
+            this.time = time;
+            this.millis = millis;
+            this.bytes = bytes;
+            this.flags = flags;
+            this.address = address;
+            this.user = user;
+            this.path = path;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java ftp.TransferLog directory");
+            return;
+        }
+        try {
+            export(Paths.get(args[0]), System.out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
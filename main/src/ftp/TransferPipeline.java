@@ -0,0 +1,153 @@
+package ftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copy engine for transfers that can't use transferTo. A read-ahead task fills
+ * a ring of pooled buffers from the source while the calling thread pushes
+ * filled buffers through the sink, so the disk and the network are kept busy at
+ * the same time. Transform stages (ASCII conversion, MODE Z...) are plugged in by
+ * wrapping the sink in filter channels.
+ *
+ * When the sink is slower than the source the reader blocks on the free ring, and
+ * the other way round, so at most depth buffers are held per transfer
+ */
+class TransferPipeline {
+
+    private static final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ftp-readahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Placed in the filled ring by the reader once the source is exhausted */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel source;
+    private final WritableByteChannel sink;
+    private final BufferPool pool;
+    private final int depth;
+
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final CountDownLatch readerDone = new CountDownLatch(1);
+    private volatile IOException readError = null;
+    private long transferred = 0L;
+
+    TransferPipeline(ReadableByteChannel source, WritableByteChannel sink, BufferPool pool) {
+        this(source, sink, pool, Config.get().getInt("ftp.transfer.readahead", 4));
+    }
+
+    TransferPipeline(ReadableByteChannel source, WritableByteChannel sink, BufferPool pool, int depth) {
+        this.source = source;
+        this.sink = sink;
+        this.pool = pool;
+        this.depth = depth;
+        this.free = new ArrayBlockingQueue<>(Math.max(depth, 1));
+        this.filled = new ArrayBlockingQueue<>(Math.max(depth, 1) + 1);
+    }
+
+    /**
+     * Copies the source to the sink until the source reaches end of stream
+     *
+     * @return the number of bytes read from the source
+     * @throws IOException if either side fails. The other side is stopped before returning
+     */
+    long copy() throws IOException {
+        if (depth <= 1) {
+            ByteBuffer buf = pool.acquire();
+            try {
+                return FtpUtil.readWriteOperation(source, sink, buf);
+            } finally {
+                pool.release(buf);
+            }
+        }
+
+        List<ByteBuffer> buffers = new ArrayList<>(depth);
+        for (int i = 0; i < depth; i++) {
+            ByteBuffer buf = pool.acquire();
+            buffers.add(buf);
+            free.add(buf);
+        }
+
+        Future<?> reader = readers.submit(this::readAhead);
+        boolean completed = false;
+        try {
+            writeBehind();
+            completed = true;
+        } finally {
+            if (!completed)
+                reader.cancel(true);
+            awaitReader();
+            for (ByteBuffer buf : buffers)
+                pool.release(buf);
+        }
+
+        if (readError != null)
+            throw readError;
+        return transferred;
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                ByteBuffer buf = free.take();
+                buf.clear();
+                int len = source.read(buf);
+                if (len < 0)
+                    break;
+                buf.flip();
+                filled.put(buf);
+            }
+        } catch (IOException e) {
+            readError = e;
+        } catch (InterruptedException e) {
+            // cancelled by the writer
+        } finally {
+            filled.offer(END);
+            readerDone.countDown();
+        }
+    }
+
+    private void writeBehind() throws IOException {
+        try {
+            while (true) {
+                ByteBuffer buf = filled.take();
+                if (buf == END)
+                    break;
+                transferred += buf.remaining();
+                while (buf.hasRemaining())
+                    sink.write(buf);
+                free.put(buf);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Transfer interrupted");
+        }
+    }
+
+    private void awaitReader() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                readerDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,91 @@
+package ftp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Server side copy used by SITE COPY. Files are copied with FileChannel.transferTo
+ * between the two files so the data never leaves the kernel, and directory trees
+ * are walked in parallel with one task per entry.
+ * Symbolic links and special files inside a tree are skipped
+ */
+class TreeCopy extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Config.get().getInt("ftp.copy.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    private final Path source;
+    private final Path target;
+
+    private TreeCopy(Path source, Path target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * Copies a file or a whole directory tree. The target must not exist yet
+     *
+     * @throws IOException if any entry couldn't be copied. Entries copied before the
+     *                     failure are left in place
+     */
+    static void copy(Path source, Path target) throws IOException {
+        try {
+            pool.invoke(new TreeCopy(source, target));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    protected void compute() {
+        try {
+            if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+                copyDirectory();
+            } else if (Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS)) {
+                copyFile(source, target);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void copyDirectory() throws IOException {
+        Files.createDirectory(target);
+
+        List<TreeCopy> tasks = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+            for (Path entry : entries)
+                tasks.add(new TreeCopy(entry, target.resolve(entry.getFileName().toString())));
+        }
+        invokeAll(tasks);
+
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+
+    static void copyFile(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0L;
+            while (position < size) {
+                long len = in.transferTo(position, size - position, out);
+                if (len <= 0)
+                    break; // source was truncated while copying
+                position += len;
+            }
+        }
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+}
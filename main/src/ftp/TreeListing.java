@@ -0,0 +1,169 @@
+package ftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Listing of a whole tree for LIST -R, NLST -R and SITE TREE, made while it is
+ * sent. Directories are sent depth first in name order, like ls -R, each as soon
+ * as it is read; up to ftp.tree.readahead of the next ones are read ahead on a
+ * pool of ftp.tree.parallelism threads. So the memory taken depends on the read
+ * ahead and on the width of the tree along the branch being sent, never on the
+ * size of the tree.
+ *
+ * Symbolic links to directories are listed but not followed, which keeps the
+ * walk inside the user root and out of cycles
+ */
+class TreeListing implements ReadableByteChannel {
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Config.get().getInt("ftp.tree.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Turns the entries of one directory into listing text
+     */
+    interface Format {
+        /**
+         * @param path  the directory relative to the top of the listing, "" for the top
+         * @param first whether this is the first directory of the listing
+         */
+        String directory(String path, List<FileStat> entries, boolean first);
+    }
+
+    private final Storage storage;
+    private final Format format;
+    private final Charset charset;
+    private final boolean recursive;
+    private final int readahead = Math.max(Config.get().getInt("ftp.tree.readahead", 64), 1);
+
+    /** Directories still to send, in the order they are sent */
+    private final Deque<Node> upcoming = new ArrayDeque<>();
+    /** Reads started and not sent yet */
+    private int reading = 0;
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private boolean first = true;
+    private boolean closed = false;
+
+    /**
+     * @param recursive false to list the top directory only
+     */
+    TreeListing(Storage storage, Path top, Format format, Charset charset, boolean recursive) {
+        this.storage = storage;
+        this.format = format;
+        this.charset = charset;
+        this.recursive = recursive;
+        upcoming.add(new Node(top, ""));
+        readAhead();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        while (!pending.hasRemaining()) {
+            Node node = upcoming.pollFirst();
+            if (node == null)
+                return -1;
+            List<FileStat> entries = node.entries();
+            reading--;
+
+            if (recursive) {
+                // subdirectories come right after their parent, in name order
+                List<Node> children = new ArrayList<>();
+                for (FileStat entry : entries) {
+                    Path dir = node.dir.resolve(entry.getName());
+                    if (entry.isDirectory() && !(storage.hasSymbolicLinks() && Files.isSymbolicLink(dir)))
+                        children.add(new Node(dir, node.path.isEmpty() ? entry.getName() :
+                                node.path + "/" + entry.getName()));
+                }
+                for (int i = children.size() - 1; i >= 0; i--)
+                    upcoming.addFirst(children.get(i));
+                readAhead();
+            }
+
+            pending = charset.encode(format.directory(node.path, entries, first));
+            first = false;
+        }
+
+        int len = Math.min(dst.remaining(), pending.remaining());
+        ByteBuffer slice = pending.duplicate();
+        slice.limit(slice.position() + len);
+        dst.put(slice);
+        pending.position(pending.position() + len);
+        return len;
+    }
+
+    /**
+     * Starts reading the next directories to send, as far as the read ahead allows
+     */
+    private void readAhead() {
+        Iterator<Node> it = upcoming.iterator();
+        while (reading < readahead && it.hasNext()) {
+            Node node = it.next();
+            if (node.read == null) {
+                node.read = pool.submit(() -> {
+                    try {
+                        List<FileStat> entries = storage.list(node.dir);
+                        return entries == null ? Collections.<FileStat>emptyList() : entries;
+                    } catch (IOException e) {
+                        // unreadable or removed meanwhile, the rest of the tree is still sent
+                        System.out.println("* Can't list " + node.dir + ": " + e);
+                        return Collections.<FileStat>emptyList();
+                    }
+                });
+                reading++;
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Node node : upcoming) {
+            if (node.read != null)
+                node.read.cancel(false);
+        }
+        upcoming.clear();
+    }
+
+    private static class Node {
+        final Path dir;
+        final String path;
+        ForkJoinTask<List<FileStat>> read;
+
+        Node(Path dir, String path) {
+            this.dir = dir;
+            this.path = path;
+        }
+
+        List<FileStat> entries() throws IOException {
+            try {
+                return read.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Listing interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Can't list " + dir, e.getCause());
+            }
+        }
+    }
+}
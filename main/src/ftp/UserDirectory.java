@@ -0,0 +1,264 @@
+package ftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accounts read from the file named by ftp.users.file, one per line:
+ *
+ * <pre>
+ *   name:password[:home[:quota[:rate[:files]]]]
+ * </pre>
+ *
+ * where password is a hash made by Authentication (or plain text for old
+ * entries), quota is in bytes and rate in bytes per second, both with an
+ * optional K, M or G suffix and 0 or empty for no limit. Each data transfer of
+ * the user is held to the rate. Quota and files (the most files and
+ * directories) may be given as soft/hard, going over the soft limit only
+ * brings a warning. Lines starting with # are ignored.
+ *
+ * The file is checked for changes at most every ftp.users.reload.interval ms
+ * and read again into a new table, which replaces the old one in a single step.
+ * Users that aren't in the file are looked up in the ftp.user.&lt;name&gt; settings
+ */
+class UserDirectory {
+
+    private static final UserDirectory instance = new UserDirectory(Config.get().get("ftp.users.file", null));
+
+    private final File file;
+
+    private volatile Map<String, User> users = Collections.emptyMap();
+    private volatile long nextCheck = 0L;
+    private long loadedModified = -1L;
+    private long loadedSize = -1L;
+
+    private UserDirectory(String file) {
+        this.file = file == null ? null : new File(file);
+    }
+
+    static UserDirectory getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the account, or null if there is no such user
+     */
+    User find(String name) {
+        if (file != null && System.currentTimeMillis() >= nextCheck)
+            checkReload();
+
+        User user = users.get(name);
+        if (user != null)
+            return user;
+
+        return Config.get().getUser(name);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * @return the homes given in the file
+     */
+    List<String> getHomes() {
+        if (file != null && System.currentTimeMillis() >= nextCheck)
+            checkReload();
+        List<String> homes = new ArrayList<>();
+        for (User user : users.values()) {
+            if (user.getHome() != null)
+                homes.add(user.getHome());
+        }
+        return homes;
+    }
+
+    private synchronized void checkReload() {
+        long now = System.currentTimeMillis();
+        if (now < nextCheck)
+            return; // another thread just did it
+        nextCheck = now + Config.get().getLong("ftp.users.reload.interval", 2000L);
+
+        long modified = file.lastModified();
+        long size = file.length();
+        if (modified == loadedModified && size == loadedSize)
+            return;
+
+        try {
+            users = load(users);
+            loadedModified = modified;
+            loadedSize = size;
+        } catch (NoSuchFileException e) {
+            System.out.println("* User file " + file + " not found");
+            users = Collections.emptyMap();
+            loadedModified = modified;
+            loadedSize = size;
+        } catch (IOException e) {
+            // keep serving the accounts read last time
+            System.out.println("Error reading user file " + file);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the file into a new table. Unchanged entries keep their User object,
+     * so their cached verifications stay valid
+     */
+    private Map<String, User> load(Map<String, User> previous) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, User> loaded = new HashMap<>(Math.max(16, previous.size() * 4 / 3 + 16));
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.charAt(0) == '#')
+                    continue;
+
+                try {
+                    User user = User.parse(line);
+                    User old = previous.get(user.getName());
+                    loaded.put(user.getName(), user.sameAs(old) ? old : user);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("* " + file + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        System.out.println("* Loaded " + loaded.size() + " users from " + file + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return loaded;
+    }
+
+    /**
+     * A single account
+     */
+    static class User {
+        private final String name;
+        private final String password;
+        private final String home;
+        private final long softQuota;
+        private final long quota;
+        private final long rate;
+        private final long softFiles;
+        private final long files;
+
+        User(String name, String password, String home, long softQuota, long quota, long rate,
+             long softFiles, long files) {
+            this.name = name;
+            this.password = password;
+            this.home = home;
+            this.softQuota = softQuota;
+            this.quota = quota;
+            this.rate = rate;
+            this.softFiles = softFiles;
+            this.files = files;
+        }
+
+        static User parse(String line) {
+            String[] fields = line.split(":", -1);
+            if (fields.length < 2 || fields.length > 6 || fields[0].isEmpty())
+                throw new IllegalArgumentException("expected name:password[:home[:quota[:rate[:files]]]]");
+
+            String home = fields.length > 2 && !fields[2].isEmpty() ? fields[2] : null;
+            long[] quota = fields.length > 3 ? parseLimit(fields[3]) : new long[2];
+            long rate = fields.length > 4 ? parseSize(fields[4]) : 0L;
+            long[] files = fields.length > 5 ? parseLimit(fields[5]) : new long[2];
+            return new User(fields[0], fields[1], home, quota[0], quota[1], rate, files[0], files[1]);
+        }
+
+        /**
+         * @return the soft and the hard limit of a size or soft/size field
+         */
+        private static long[] parseLimit(String value) {
+            int slash = value.indexOf('/');
+            if (slash < 0)
+                return new long[]{0L, parseSize(value)};
+            return new long[]{parseSize(value.substring(0, slash)), parseSize(value.substring(slash + 1))};
+        }
+
+        private static long parseSize(String value) {
+            if (value.isEmpty())
+                return 0L;
+
+            long unit = 1L;
+            char suffix = Character.toUpperCase(value.charAt(value.length() - 1));
+            if (suffix == 'K' || suffix == 'M' || suffix == 'G') {
+                unit = suffix == 'K' ? 1L << 10 : suffix == 'M' ? 1L << 20 : 1L << 30;
+                value = value.substring(0, value.length() - 1);
+            }
+            try {
+                return Long.parseLong(value) * unit;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid size " + value);
+            }
+        }
+
+        boolean sameAs(User other) {
+            return other != null && name.equals(other.name) && password.equals(other.password) &&
+                    (home == null ? other.home == null : home.equals(other.home)) &&
+                    softQuota == other.softQuota && quota == other.quota && rate == other.rate &&
+                    softFiles == other.softFiles && files == other.files;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the stored password hash
+         */
+        String getPassword() {
+            return password;
+        }
+
+        /**
+         * @return the root directory of the user, null for the one under ftp.home
+         */
+        String getHome() {
+            return home;
+        }
+
+        /**
+         * @return the most bytes the user may store, 0 for no limit
+         */
+        long getQuota() {
+            return quota;
+        }
+
+        /**
+         * @return the bytes above which the user is warned, 0 for no warning
+         */
+        long getSoftQuota() {
+            return softQuota;
+        }
+
+        /**
+         * @return the most files and directories the user may have, 0 for no limit
+         */
+        long getFileQuota() {
+            return files;
+        }
+
+        /**
+         * @return the file count above which the user is warned, 0 for no warning
+         */
+        long getSoftFileQuota() {
+            return softFiles;
+        }
+
+        /**
+         * @return the transfer rate limit in bytes per second, 0 for no limit
+         */
+        long getRate() {
+            return rate;
+        }
+    }
+}